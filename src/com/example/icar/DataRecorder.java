@@ -3,6 +3,8 @@
  */
 package com.example.icar;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
@@ -11,7 +13,6 @@ import java.util.Map;
 import android.util.Log;
 
 import com.couchbase.lite.*;
-import com.example.icar.OBDReader.executeQueryCallback;
 import com.example.icar.OBDReader.pidDesc;
 
 /**
@@ -26,6 +27,26 @@ public class DataRecorder extends Thread {
 	private Parameters params;
 	private Database database;
 
+	// write-behind stage, records are committed in batches
+	private RecordWriter writer;
+	// views over recorded documents
+	private final RecordIndex index;
+	private volatile boolean closed;
+
+	// open trip-minute bucket per record type, guarded by buckets
+	private final Map<String, TripBucket> buckets;
+	private final String trip;
+
+	// local segment log and its compactor, set when log storage is open
+	private volatile SegmentLog log;
+	private volatile LogCompactor compactor;
+	// log record payload, guarded by logbuf
+	private final ByteBuffer logbuf;
+	private static final int LOG_RECORD_MAX = 4096;
+
+	// ms run() wait writer and compactor flush on exit
+	private static final long FLUSH_TIMEOUT = 5000;
+
 	// @description recorder parameters
 	public static class Parameters {
 		Parameters() {
@@ -100,6 +121,30 @@ public class DataRecorder extends Thread {
 
 		// @description eventEmitter for async operations
 		private volatile EventEmitter eventemitter;
+
+		// @description storage mode
+		// STORAGE_DOCUMENT: one document per sample
+		// STORAGE_BUCKET: one columnar document per record type and trip-minute
+		// STORAGE_LOG: append to local segment log, compacted into summary
+		// documents in background
+		public static final int STORAGE_DOCUMENT = 0;
+		public static final int STORAGE_BUCKET = 1;
+		public static final int STORAGE_LOG = 2;
+		private volatile int storage;
+
+		// @description segment log directory and segment bytes
+		private volatile File log_dir;
+		private volatile int log_segment = SegmentLog.SEGMENT_DEFAULT;
+
+		// @description bucket span ms
+		private volatile long bucket_span = TripBucket.SPAN_DEFAULT;
+
+		// @description bucket encoding
+		// ENCODING_JSON: columns as JSON arrays
+		// ENCODING_SERIES: number columns as SeriesCodec attachment
+		public static final int ENCODING_JSON = 0;
+		public static final int ENCODING_SERIES = 1;
+		private volatile int encoding;
 		
 		/**
 		 * @return the usrinfo
@@ -275,6 +320,76 @@ public class DataRecorder extends Thread {
 		public void setEventemitter(EventEmitter eventemitter) {
 			this.eventemitter = eventemitter;
 		}
+
+		/**
+		 * @return the storage
+		 */
+		public int getStorage() {
+			return storage;
+		}
+
+		/**
+		 * @param storage the storage to set
+		 */
+		public void setStorage(int storage) {
+			this.storage = storage;
+		}
+
+		/**
+		 * @return the bucket_span
+		 */
+		public long getBucket_span() {
+			return bucket_span;
+		}
+
+		/**
+		 * @param bucket_span the bucket_span to set
+		 */
+		public void setBucket_span(long bucket_span) {
+			this.bucket_span = bucket_span;
+		}
+
+		/**
+		 * @return the log_dir
+		 */
+		public File getLog_dir() {
+			return log_dir;
+		}
+
+		/**
+		 * @param log_dir the log_dir to set
+		 */
+		public void setLog_dir(File log_dir) {
+			this.log_dir = log_dir;
+		}
+
+		/**
+		 * @return the log_segment
+		 */
+		public int getLog_segment() {
+			return log_segment;
+		}
+
+		/**
+		 * @param log_segment the log_segment to set
+		 */
+		public void setLog_segment(int log_segment) {
+			this.log_segment = log_segment;
+		}
+
+		/**
+		 * @return the encoding
+		 */
+		public int getEncoding() {
+			return encoding;
+		}
+
+		/**
+		 * @param encoding the encoding to set
+		 */
+		public void setEncoding(int encoding) {
+			this.encoding = encoding;
+		}
 	}
 
 	// @description OBD2 data record as Map for JSON
@@ -869,8 +984,7 @@ public class DataRecorder extends Thread {
 						setMaf_ets(desc.getRts());
 					} else if (pid == getFuelTypePid()) {
 						// data - fuel type
-						setFuel_type(desc.getResult_item_value_number()[0]
-								.intValue());
+						setFuel_type((int) desc.getResult_item_value_number()[0]);
 						setFuel_type_ets(desc.getRts());
 					} else {
 						Log.w(TAG, "unknown PID desc: " + desc);
@@ -1965,6 +2079,11 @@ public class DataRecorder extends Thread {
 		this.reader = reader;
 		this.params = params;
 		this.database = couchbase;
+		this.writer = new RecordWriter(couchbase);
+		this.index = new RecordIndex(couchbase);
+		this.buckets = new Hashtable<String, TripBucket>();
+		this.trip = Long.toString(System.currentTimeMillis(), 36);
+		this.logbuf = ByteBuffer.allocate(LOG_RECORD_MAX);
 	}
 
 	// @description start data retrieve/store thread
@@ -1974,7 +2093,17 @@ public class DataRecorder extends Thread {
 		int steps_run = 0;
 
 		List<data_record_t> records = params.getRecords();
-		while (true) {
+
+		// commit on writer thread, response thread only queue records
+		writer.start();
+
+		// local log, fall back to buckets if it can't be opened
+		if ((params.getStorage() == Parameters.STORAGE_LOG) && (openLog() != 0)) {
+			Log.w(TAG, "fail to open log, record in buckets");
+			params.setStorage(Parameters.STORAGE_BUCKET);
+		}
+
+		while (!closed) {
 			try {
 				// waiting for prefix idle cycle
 				if (steps_run < steps_pre) {
@@ -1987,98 +2116,96 @@ public class DataRecorder extends Thread {
 				for (int i = 0; i < records.size(); i++) {
 					final data_record_t record = records.get(i);
 					final List<String> pids = record.getPids();
-					final List<pidDesc> descs = new ArrayList<pidDesc>();
 
 					// 1.
-					// collect requested PID data as a record
-					for (int j = 0; j < pids.size(); j++) {
-						String pid = pids.get(j);
-
-						if (0 != reader.executeQuery(pid,
-								new executeQueryCallback() {
-
-									@Override
-									public void cb(int error, pidDesc desc) {
-										if ((error == 0) && (desc != null)) {
-											descs.add(desc);
-										}
-
-										// 2.
-										// check if query done
-										if (descs.size() == pids.size()) {
-											Log.d(TAG, "query done record:"
-													+ record);
-
-											// 3.
-											// fill OBD2 data
-											if (!record.fillPidData(descs)) {
-												Log.w(TAG, "fillPidData fail");
-											}
-
-											// 5.
-											// fill dedicated data from
-											// recorder.param
-
-											// 5.1
-											// create time
-											if (!record.fillCreatetime(System.currentTimeMillis())) {
-												Log.w(TAG, "fillCreatetime fail");
-											}
-
-											// 5.2
-											// geo location "x y"
-											if (params.isGeoenabled()) {
-												if (!record.fillGeoinfo(params
-														.getGeoinfo()
-														.getSimpleLocation())) {
-													Log.w(TAG, "fillGeoinfo fail");
-												}
-											}
-
-											// 5.3
-											// user info
-											if (!record.fillUsrinfo(params
-													.getUsrinfo())) {
-												Log.w(TAG, "fillUsrinfo fail");
-											}
-
-											// 5.4
-											// security info
-											if (!record.fillSecinfo(params
-													.getSecinfo())) {
-												Log.w(TAG, "fillSecinfo fail");
-											}
-
-											// 6.
-											// store record in database
-											{
-												// create an empty document
-												Document document = database
-														.createDocument();
-
-												// write the document to the
-												// database
-												try {
-													document.putProperties(record
-															.toJsonMap(null));
-												} catch (CouchbaseLiteException e) {
-													Log.e(TAG,
-															"Cannot write document to database",
-															e);
-												}
-											}
-
-										} else {
-											Log.d(TAG, "waiting for next query done");
-										}
-									}
-
-								})) {
-							Log.w(TAG, "fail to query record:" + record
-									+ ":pid: " + pid);
-							break;
+					// collect requested PID data as a record, supported PIDs
+					// are packed in batched query
+					reader.queryAll(pids).then(new QueryFuture.listener<List<pidDesc>>() {
+
+						@Override
+						public void cb(int error, List<pidDesc> descs) {
+							// 2.
+							// check if query done
+							if (error != 0) {
+								Log.w(TAG, "fail to query record:" + record
+										+ ":pids: " + pids);
+								return;
+							}
+							Log.d(TAG, "query done record:" + record);
+
+							// late response after close, records are flushed
+							if (closed) {
+								return;
+							}
+
+							// columnar bucket keep PID data as is
+							if (params.getStorage() == Parameters.STORAGE_BUCKET) {
+								bucket(record, descs);
+								return;
+							}
+
+							// so does log
+							if (params.getStorage() == Parameters.STORAGE_LOG) {
+								log(record, descs);
+								return;
+							}
+
+							// 3.
+							// fill OBD2 data
+							if (!record.fillPidData(descs)) {
+								Log.w(TAG, "fillPidData fail");
+							}
+
+							// 5.
+							// fill dedicated data from
+							// recorder.param
+
+							// 5.1
+							// create time
+							if (!record.fillCreatetime(System.currentTimeMillis())) {
+								Log.w(TAG, "fillCreatetime fail");
+							}
+
+							// 5.2
+							// geo location "x y"
+							if (params.isGeoenabled()) {
+								if (!record.fillGeoinfo(params
+										.getGeoinfo()
+										.getSimpleLocation())) {
+									Log.w(TAG, "fillGeoinfo fail");
+								}
+							}
+
+							// 5.3
+							// user info
+							if (!record.fillUsrinfo(params
+									.getUsrinfo())) {
+								Log.w(TAG, "fillUsrinfo fail");
+							}
+
+							// 5.4
+							// security info
+							if (!record.fillSecinfo(params
+									.getSecinfo())) {
+								Log.w(TAG, "fillSecinfo fail");
+							}
+
+							// 5.5
+							// vehicle identified by reader
+							String vin = reader.getSupportedPidIndex().getVin();
+							if ((vin != null) && !record.fillVin(vin)) {
+								Log.w(TAG, "fillVin fail");
+							}
+
+							// 6.
+							// queue record for batched commit in database,
+							// trip let RecordIndex find it
+							Map<String, Object> doc = record.toJsonMap(null);
+							doc.put("trip", trip);
+							writer.write(doc);
 						}
-					}
+
+					});
 
 				}
 				// ////////////////////////////////////////////////////////////////
@@ -2103,6 +2230,181 @@ public class DataRecorder extends Thread {
 				// /e.printStackTrace();
 			}
 		}
+
+		// oneshot records still on bus are answered within a sample interval
+		if (!closed) {
+			try {
+				sleep(params.getSample_interval());
+			} catch (InterruptedException e) {
+				// closed
+			}
+		}
+
+		// only here flush open buckets, log and queued records; bucket() and
+		// log() take no sample once closed is set
+		closed = true;
+		seal();
+		closeLog(FLUSH_TIMEOUT);
+		writer.shutdown(FLUSH_TIMEOUT);
+	}
+
+	// @description stop sampling, recorder thread flush records and exit
+	// @param timeout - ms to wait for recorder thread, 0 not wait
+	public void close(long timeout) {
+		closed = true;
+		interrupt();
+
+		if (timeout > 0) {
+			try {
+				join(timeout);
+			} catch (InterruptedException e) {
+				Log.w(TAG, "close interrupted");
+			}
+		}
+	}
+
+	// @description open segment log and start compactor
+	// @return 0 on success, -1 on failure
+	private int openLog() {
+		if (params.getLog_dir() == null) {
+			return -1;
+		}
+
+		SegmentLog l = new SegmentLog(params.getLog_dir(), trip,
+				reader.getSupportedPidIndex().getVin(), params.getLog_segment());
+		if (l.open() != 0) {
+			return -1;
+		}
+
+		// segments left by previous runs are compacted first
+		compactor = new LogCompactor(l, database);
+		compactor.start();
+		log = l;
+
+		return 0;
+	}
+
+	// @description close open segment, compactor finish closed ones
+	private void closeLog(long timeout) {
+		SegmentLog l = log;
+
+		if (l != null) {
+			// wait append in progress
+			synchronized (logbuf) {
+				l.close();
+			}
+			compactor.shutdown(timeout);
+		}
+	}
+
+	// @description append record sample to segment log
+	private void log(data_record_t record, List<pidDesc> descs) {
+		SegmentLog l = log;
+		String geo = params.isGeoenabled() ?
+				params.getGeoinfo().getSimpleLocation() : null;
+
+		if (l == null) {
+			return;
+		}
+
+		synchronized (logbuf) {
+			if (closed) {
+				return;
+			}
+			logbuf.clear();
+			if ((LogCompactor.encode(logbuf, record.getType(), System.currentTimeMillis(),
+					geo, descs) != 0)
+					|| (l.append(logbuf.array(), 0, logbuf.position()) != 0)) {
+				Log.w(TAG, "fail to log record:" + record);
+			}
+		}
+	}
+
+	// @description append record sample to its trip-minute bucket
+	// notes: bucket left behind is sealed and queued for commit
+	private void bucket(data_record_t record, List<pidDesc> descs) {
+		long cts = System.currentTimeMillis();
+		String geo = params.isGeoenabled() ?
+				params.getGeoinfo().getSimpleLocation() : null;
+
+		synchronized (buckets) {
+			// seal() already flushed
+			if (closed) {
+				return;
+			}
+			TripBucket b = buckets.get(record.getType());
+
+			if ((b != null) && !b.covers(cts)) {
+				// queued under lock, so it is ahead of writer shutdown
+				writer.write(b.seal(params.getEncoding() == Parameters.ENCODING_SERIES));
+				b = null;
+			}
+			if (b == null) {
+				b = new TripBucket(trip, cts, params.getBucket_span(), header(record));
+				buckets.put(record.getType(), b);
+			}
+			b.append(cts, geo, descs);
+		}
+	}
+
+	// @description record info shared by samples of bucket
+	private Map<String, Object> header(data_record_t record) {
+		Map<String, Object> h = new Hashtable<String, Object>();
+		Object[] kv = { "category", record.getCategory(), "type", record.getType(),
+				"tags", record.getTags(), "uid", params.getUsrinfo(),
+				"vin", reader.getSupportedPidIndex().getVin(), "sec", params.getSecinfo() };
+
+		for (int i = 0; i < kv.length; i += 2) {
+			if (kv[i + 1] != null) {
+				h.put((String) kv[i], kv[i + 1]);
+			}
+		}
+
+		return h;
+	}
+
+	// @description seal open buckets and queue them
+	private void seal() {
+		List<Map<String, Object>> sealed = new ArrayList<Map<String, Object>>();
+
+		synchronized (buckets) {
+			for (TripBucket b : buckets.values()) {
+				sealed.add(b.seal(params.getEncoding() == Parameters.ENCODING_SERIES));
+			}
+			buckets.clear();
+		}
+
+		for (int i = 0; i < sealed.size(); i++) {
+			writer.write(sealed.get(i));
+		}
+	}
+
+	/**
+	 * @return the segment log, null if log storage is not open
+	 */
+	public SegmentLog getLog() {
+		return log;
+	}
+
+	/**
+	 * @return the log compactor, null if log storage is not open
+	 */
+	public LogCompactor getCompactor() {
+		return compactor;
+	}
+
+	/**
+	 * @return the record index
+	 */
+	public RecordIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the trip id
+	 */
+	public String getTrip() {
+		return trip;
 	}
 
 	/**
@@ -2119,6 +2421,13 @@ public class DataRecorder extends Thread {
 		return params;
 	}
 
+	/**
+	 * @return the writer, for queue depth and commit latency
+	 */
+	public RecordWriter getWriter() {
+		return writer;
+	}
+
 	/**
 	 * @return the database
 	 */
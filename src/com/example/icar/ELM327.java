@@ -4,16 +4,15 @@
 package com.example.icar;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.example.icar.OBDReader.pidDesc;
 
-import android.os.AsyncTask;
-import android.os.Handler;
 import android.util.Log;
 
 /**
@@ -23,19 +22,153 @@ import android.util.Log;
  */
 public class ELM327 implements OBDReader.queryResponse {
 	private static final String TAG = "ELM327";
-	private InputStream sockin;
-	private OutputStream sockout;
-	private BufferedReader in;
-	private BufferedWriter out;
-	private Hashtable<String, LinkedList<OBDReader.pidDesc>> descCnt;
-	private rxThread rxTask;
-	private Handler timeoutMonitor;
-	private LinkedList<cmdPidDesc> sendQueue;
-	private txThread txTask;
-	private static final long txIPG = 150; // 150ms or 50ms TBO...
-	private static final long txMaxScaler = 6000 / txIPG; // 6s TBO...
-	private volatile long txScaler; // tx IPG scaler
-	private volatile boolean txSyncFlag[] = {true};
+	private ELM327Transport transport;
+	private ELM327EventLoop loop;
+	private ELM327Parser parser;
+	private PendingTable descCnt;
+	private ConcurrentLinkedQueue<cmdPidDesc> sendQueue;
+
+	// link state, touched on loop thread only
+	private boolean opened;
+	private volatile boolean closed;
+
+	// command pump kicked on loop thread by queue, prompt and timer
+	private final AtomicBoolean pumpKicked = new AtomicBoolean(false);
+	private final Runnable pumpTask = new Runnable() {
+
+		@Override
+		public void run() {
+			pumpKicked.set(false);
+			pump();
+		}
+
+	};
+	private HashedWheelTimer.timeout_t pumpTimer;
+
+	// ASCII hex digits, commands are encoded by table
+	private static final byte[] HEX = {
+		'0', '1', '2', '3', '4', '5', '6', '7',
+		'8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+	};
+
+	// precomputed AT commands
+	private static final byte[] CMD_CR = ascii("\r");
+	private static final byte[] CMD_ATZ = ascii("ATZ\r");
+	private static final byte[] CMD_ATL1 = ascii("ATL1\r");
+	private static final byte[] CMD_ATL0 = ascii("ATL0\r");
+	private static final byte[] CMD_ATS1 = ascii("ATS1\r");
+	private static final byte[] CMD_ATS0 = ascii("ATS0\r");
+	private static final byte[] CMD_ATH1 = ascii("ATH1\r");
+	private static final byte[] CMD_ATH0 = ascii("ATH0\r");
+	private static final byte[] CMD_ATSH7E0 = ascii("ATSH7E0\r");
+	private static final byte[] CMD_ATCRA7E8 = ascii("ATCRA7E8\r");
+	private static final byte[] CMD_ATSHDA10F1 = ascii("ATSHDA10F1\r");
+	private static final byte[] CMD_ATCRA18DAF110 = ascii("ATCRA18DAF110\r");
+	private static final byte[] CMD_ATDPN = ascii("ATDPN\r");
+	private static final byte[] CMD_0100 = ascii("0100\r");
+	private static final byte[] CMD_ATE1 = ascii("ATE1\r");
+	private static final byte[] CMD_ATE0 = ascii("ATE0\r");
+	private static final byte[] CMD_ATAT2 = ascii("ATAT2\r");
+	private static final byte[] CMD_ATST0A = ascii("ATST0A\r");
+	private static final byte[] CMD_ATSP0 = ascii("ATSP0\r");
+	private static final byte[] CMD_ATMA = ascii("ATMA\r");
+	private static final byte[] CMD_ATCRA = ascii("ATCRA\r");
+
+	// max command length, like 01 0C 0D 05 10 11 5E 3 with \r
+	private static final int cmdMax = 64;
+
+	// reusable command bytes and direct buffer
+	private final byte[] txBytes = new byte[cmdMax];
+	private final ByteBuffer txBuf = ByteBuffer.allocateDirect(cmdMax);
+
+	// in-flight commands waiting for '>' prompt, in send order
+	// notes: touched on loop thread only
+	private LinkedList<cmdPidDesc> inflight;
+
+	// control commands sent before queued queries, like monitor setup
+	// notes: touched on loop thread only
+	private LinkedList<cmdPidDesc> ctrlQueue;
+	// last command written, bare \r repeats it on adapter
+	private cmdPidDesc lastCmd;
+
+	// @description reply line listener of AT command, like ATDPN
+	private interface textListener {
+		public void onText(byte[] line, int off, int len);
+	}
+
+	// @description raw bus frame listener in monitor mode
+	public interface monitorListener {
+		// @param hdr - header/CAN ID of the frame
+		// @param buf - frame data bytes, buffer is reused, copy what you need
+		public void onFrame(int hdr, byte[] buf, int off, int len);
+	}
+
+	// @description high rate single PID stream state
+	private static class stream_t {
+		private OBDReader.pidDesc desc;
+		private int lines;
+		private boolean stopped;
+	}
+
+	// @description passive bus monitor state
+	private static class monitor_t {
+		private int filter; // CAN ID filter(ATCRA), -1 for all
+		private OBDReader.pidDesc[] descs;
+		private monitorListener listener;
+		private boolean stopped;
+		private boolean filterSet; // ATCRA filter active on adapter
+	}
+
+	// streaming and monitor state, touched on loop thread only
+	private stream_t stream;
+	private monitor_t monitor;
+	// ATMA running, adapter reports bus frames until interrupted
+	private boolean monitoring;
+
+	private volatile int txWindow; // max in-flight commands
+	private static final long txCmdTimeout = 6000; // 6s TBO...
+	// protocol search on first query after ATSP0/ATSPAn, slow on K-line
+	private static final long txSearchTimeout = 20000;
+	private final AtomicInteger txSeq = new AtomicInteger(0);
+
+	// adaptive gap after '>' prompt, driven by measured RTT
+	private TxGapController txGap;
+	private volatile long rxPromptTs;
+
+	// max PIDs in one batched query
+	public static final int batchPidsMax = 6;
+
+	// OBD protocol number(ATSPn/ATDPN), 0 for automatic
+	public static final String[] PROTOCOLS = {
+		"auto",
+		"SAE J1850 PWM",
+		"SAE J1850 VPW",
+		"ISO 9141-2",
+		"ISO 14230-4 KWP 5 baud",
+		"ISO 14230-4 KWP fast",
+		"ISO 15765-4 CAN 11/500",
+		"ISO 15765-4 CAN 29/500",
+		"ISO 15765-4 CAN 11/250",
+		"ISO 15765-4 CAN 29/250",
+		"SAE J1939 CAN 29/250",
+		"USER1 CAN 11/125",
+		"USER2 CAN 11/50"
+	};
+
+	// @description negotiated protocol persistence, like per adapter address
+	public interface protocolStore {
+		// @return protocol number 1 - C, -1 if unknown
+		public int getProtocol(String key);
+
+		public void putProtocol(String key, int protocol);
+	}
+
+	// negotiated protocol, -1 before ATDPN answered
+	private volatile int protocol;
+	private protocolStore store;
+	private String storeKey;
+	// engine ECU receive filter, restored after monitor
+	private byte[] rxFilter;
 
 	// flag to save ELM327 work sate
 	private volatile int FLAGS;
@@ -44,592 +177,1020 @@ public class ELM327 implements OBDReader.queryResponse {
 	public static int FLAG_H1 = 0x4; // headers and checksum to be sent
 	public static int FLAG_E1 = 0x8; // echo
 
+	// @description adapter on blocking streams, like Bluetooth socket
 	public ELM327(InputStream in, OutputStream out, int flags) throws IOException {
-		this.sockin = in;
-		this.sockout = out;
-		this.descCnt = new Hashtable<String, LinkedList<OBDReader.pidDesc>>();
-		this.sendQueue = new LinkedList<cmdPidDesc>();
-		this.timeoutMonitor = new Handler();
-		this.txScaler = 1;
-		this.txTask = new txThread();
-		this.rxTask = new rxThread();
+		this(new StreamTransport(in, out), ELM327EventLoop.getDefault(), flags);
+	}
+
+	// @description adapter on transport, driven by shared event loop
+	public ELM327(ELM327Transport transport, int flags) throws IOException {
+		this(transport, ELM327EventLoop.getDefault(), flags);
+	}
+
+	// @description adapter on transport, negotiated protocol persisted in store
+	// @param key - store key, like adapter address or VIN
+	public ELM327(ELM327Transport transport, int flags,
+			protocolStore store, String key) throws IOException {
+		this(transport, ELM327EventLoop.getDefault(), flags, store, key);
+	}
+
+	public ELM327(ELM327Transport transport, ELM327EventLoop loop, int flags) {
+		this(transport, loop, flags, null, null);
+	}
+
+	public ELM327(ELM327Transport transport, ELM327EventLoop loop, int flags,
+			protocolStore store, String key) {
+		this.transport = transport;
+		this.loop = loop;
+		this.descCnt = new PendingTable();
+		this.sendQueue = new ConcurrentLinkedQueue<cmdPidDesc>();
+		this.inflight = new LinkedList<cmdPidDesc>();
+		this.ctrlQueue = new LinkedList<cmdPidDesc>();
+		this.txWindow = 1;
+		this.txGap = new TxGapController(TAG + "@" + transport);
 
 		this.FLAGS = flags;
+		this.protocol = -1;
+		this.store = store;
+		this.storeKey = (key != null) ? key : transport.toString();
 
-		// create buffered I/O
-		this.in = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-		this.out = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		// create response parser
+		this.parser = new ELM327Parser((flags & FLAG_H1) != 0,
+				(flags & FLAG_E1) != 0, new rxListener());
 
 		// Queue initial AT command with \r
 
 		// make sure '>' prompt show out
-		this.sendQueue.add(new cmdPidDesc("\r", null));
+		this.sendQueue.add(new cmdPidDesc(CMD_CR));
 
 		// reset
-		this.sendQueue.add(new cmdPidDesc("ATZ\r", null));
+		this.sendQueue.add(new cmdPidDesc(CMD_ATZ));
 
 		// Turns off extra line feed after carriage return
 		if ((this.FLAGS & FLAG_L1) != 0) {
-			this.sendQueue.add(new cmdPidDesc("ATL1\r", null));
+			this.sendQueue.add(new cmdPidDesc(CMD_ATL1));
 		} else {
-			this.sendQueue.add(new cmdPidDesc("ATL0\r", null));
+			this.sendQueue.add(new cmdPidDesc(CMD_ATL0));
 		}
 
 		// This disables spaces in in output, which is faster!
 		if ((this.FLAGS & FLAG_S1) != 0) {
-			this.sendQueue.add(new cmdPidDesc("ATS1\r", null));
+			this.sendQueue.add(new cmdPidDesc(CMD_ATS1));
 		} else {
-			this.sendQueue.add(new cmdPidDesc("ATS0\r", null));
+			this.sendQueue.add(new cmdPidDesc(CMD_ATS0));
 		}
 
 		// Turns on/off(H1/H0) headers and checksum to be sent.
 		if ((this.FLAGS & FLAG_H1) != 0) {
-			this.sendQueue.add(new cmdPidDesc("ATH1\r", null));
+			this.sendQueue.add(new cmdPidDesc(CMD_ATH1));
 		} else {
-			this.sendQueue.add(new cmdPidDesc("ATH0\r", null));
+			this.sendQueue.add(new cmdPidDesc(CMD_ATH0));
 		}
 
 
-		// Setting the Header / ID Bit
-		// TBD... tuning
-		///this.sendQueue.add(new cmdPidDesc("ATSH7E0\r", null));
-
-		// Receive Filtering - the CRA command
-		// TBD... tuning
-		///this.sendQueue.add(new cmdPidDesc("ATCRA7E8\r", null));
-
+		// Setting the Header / ID Bit and Receive Filtering(CRA) are
+		// set once protocol is known, see onProtocol
 
 		// Turns off echo
 		if ((this.FLAGS & FLAG_E1) != 0) {
-			this.sendQueue.add(new cmdPidDesc("ATE1\r", null));
+			this.sendQueue.add(new cmdPidDesc(CMD_ATE1));
 		} else {
-			this.sendQueue.add(new cmdPidDesc("ATE0\r", null));
+			this.sendQueue.add(new cmdPidDesc(CMD_ATE0));
 		}
 
 		// Turn adaptive timing to 2. This is an aggressive learn curve for
 		// adjusting the timeout. Will make huge difference on slow systems.
-		this.sendQueue.add(new cmdPidDesc("ATAT2\r", null));
+		this.sendQueue.add(new cmdPidDesc(CMD_ATAT2));
 
 		// Set timeout to 10 * 4 = 40msec, allows +20 queries per second.
 		// This is the maximum wait-time. ATAT will decide if it should wait
 		// shorter or not.
-		///this.sendQueue.add(new cmdPidDesc("ATST0A\r", null));
+		///this.sendQueue.add(new cmdPidDesc(CMD_ATST0A));
+
+		// Try the protocol negotiated last time first, then search
+		// automatic. Skip the seconds long search on later connects.
+		int last = (store != null) ? store.getProtocol(storeKey) : -1;
+		if ((last > 0) && (last < PROTOCOLS.length)) {
+			Log.d(TAG, "try last protocol " + PROTOCOLS[last] + " on " + storeKey);
+			this.sendQueue.add(new cmdPidDesc(ascii("ATSPA" + (char) HEX[last] + "\r")));
+		} else {
+			this.sendQueue.add(new cmdPidDesc(CMD_ATSP0));
+		}
 
-		// Set the protocol to automatic.
-		this.sendQueue.add(new cmdPidDesc("ATSP0\r", null));
+		// Probe vehicle to settle protocol, then read it back. Adapter search
+		// protocol on probe, ATDPN written before its prompt abort search.
+		cmdPidDesc probe = new cmdPidDesc(CMD_0100);
+		probe.expiry = txSearchTimeout;
+		this.sendQueue.add(probe);
+		cmdPidDesc dpn = new cmdPidDesc(CMD_ATDPN);
+		dpn.reply = new textListener() {
+
+			@Override
+			public void onText(byte[] line, int off, int len) {
+				// only A6 in automatic mode, or 6, not late probe
+				// response or status like BUFFER FULL
+				int end = off + len;
+				while ((end > off) && (line[end - 1] == ' ')) {
+					end--;
+				}
+				int pos = ((end - off == 2) && (line[off] == 'A')) ? off + 1 : off;
+				if (end - pos != 1) {
+					return;
+				}
+				int c = line[pos];
+				int n = ((c >= '1') && (c <= '9')) ? (c - '0') :
+						((c >= 'A') && (c <= 'C')) ? (c - 'A' + 10) : -1;
 
-		// make sure '>' prompt show out
-		this.sendQueue.add(new cmdPidDesc("\r", null));
+				if (n > 0) {
+					onProtocol(n);
+				}
+			}
 
-		// start both tx and rx thread
+		};
+		this.sendQueue.add(dpn);
+
+		// open link on event loop
 		start();
 	}
 
-	// @description start both recv and send thread
+	// @description open transport on loop thread
 	private void start() {
-		Log.d(TAG, "start both rx and tx thread");
-		rxTask.start();
-		txTask.start();
+		Log.d(TAG, "open transport " + transport);
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				transport.open(loop, new linkListener());
+			}
+
+		});
 	}
-		
-	// @description response retrieve thread
-	private class rxThread extends Thread {
-		
-		public void run() {
-    		Log.d(TAG, "rx thread started");
-			
-			final List<String> lines = new ArrayList<String>();
-			String line;
 
-			try {
-				while ((line = in.readLine()) != null) {
-					Log.d(TAG, "PID line:" + line);
+	// @description close transport, pending queries fail
+	public void close() {
+		loop.execute(new Runnable() {
 
-					// 1.
-					// make sure \r in line
-					if (!line.matches("[\\r\\n]$")) {
-						line += "\r";
-					}
+			@Override
+			public void run() {
+				transport.close();
+			}
 
-					// 2.
-					// store line
-					lines.add(line);
-
-					// 3.
-					// parse lines to PIDDesc
-					List<OBDReader.pidDesc> descs = parsePidDescs(lines);
-					if (descs != null && descs.size() > 0) {
-						for (int idx = 0; idx < descs.size(); idx++) {
-							// 4.
-							// time stamp on response
-							descs.get(idx).setRts(System.currentTimeMillis());
-
-							// 5.
-							// execute response callback
-							if (descs.get(idx).getResCb() != null) {
-								descs.get(idx).getResCb()
-										.onResponse(0, descs.get(idx));
-							} else {
-								Log.d(TAG, "Dummy PID response:" + descs.get(idx));
-							}
-						}
-					}
+		});
+	}
+
+	/**
+	 * @return the in-flight window
+	 */
+	public int getWindow() {
+		return txWindow;
+	}
+
+	/**
+	 * @param window
+	 *            max commands in flight before '>' prompt: 1 for strict
+	 *            ELM327(any byte received while busy aborts the command),
+	 *            more for adapters buffering commands like STN11xx
+	 */
+	public void setWindow(int window) {
+		this.txWindow = (window > 0) ? window : 1;
+
+		kickPump();
+	}
+
+	/**
+	 * @return the current gap ms between '>' prompt and next command
+	 */
+	public long getTxGap() {
+		return txGap.getGap();
+	}
+
+	/**
+	 * @param percentile
+	 *            0 - 100
+	 * @return query round trip time percentile ms, -1 if no sample
+	 */
+	public long getRtt(int percentile) {
+		return txGap.getRtt(percentile);
+	}
+
+	/**
+	 * @return estimated queries per second
+	 */
+	public long getQueryRate() {
+		return txGap.getQueryRate();
+	}
+
+	/**
+	 * @return the negotiated protocol number, -1 if unknown yet
+	 */
+	public int getProtocol() {
+		return protocol;
+	}
+
+	// @description protocol got by ATDPN, persist it and set header and
+	// receive filter, so only engine ECU answers on CAN
+	// notes: run on loop thread, before prompt of ATDPN
+	private void onProtocol(int n) {
+		Log.d(TAG, "protocol " + PROTOCOLS[n] + " on " + storeKey);
+		protocol = n;
+		txGap.setProtocol(PROTOCOLS[n]);
+
+		if ((n > 0) && (store != null) && (store.getProtocol(storeKey) != n)) {
+			store.putProtocol(storeKey, n);
+		}
+
+		// header to engine ECU, receive engine ECU only
+		if ((n == 6) || (n == 8)) {
+			ctrlQueue.add(new cmdPidDesc(CMD_ATSH7E0));
+			rxFilter = CMD_ATCRA7E8;
+		} else if ((n == 7) || (n == 9)) {
+			ctrlQueue.add(new cmdPidDesc(CMD_ATSHDA10F1));
+			rxFilter = CMD_ATCRA18DAF110;
+		} else {
+			rxFilter = null;
+		}
+
+		if (rxFilter != null) {
+			ctrlQueue.add(new cmdPidDesc(rxFilter));
+		}
+		parser.setFiltered(rxFilter != null);
+	}
+
+	// @description test if protocol accept multiple PIDs in one request
+	// notes: unknown protocol, like before ATDPN answer, is taken as non-CAN,
+	// K-line and J1850 ECUs don't support multi-PID request
+	private boolean isCanProtocol() {
+		int n = protocol;
+
+		return (n >= 6) && (n <= 9);
+	}
+
+	// @description stream one PID at high rate, after first query each next
+	// one is a bare \r repeating last command, which skips command parsing
+	// on adapter. pidDesc response callback is executed on each response.
+	// notes: queued queries take turns before next repeat, then the full
+	// command is sent again
+	public int startStream(final OBDReader.pidDesc desc) {
+		if ((desc == null) || (desc.getResCb() == null) || closed ||
+			((desc.getMode() != 0x01) && (desc.getMode() != 0x02) &&
+			 (desc.getMode() != 0x09))) {
+			return -1;
+		}
+
+		final stream_t st = new stream_t();
+		st.desc = desc;
+		st.lines = (desc.getBytes_number() > 0) ?
+				responseLines(desc.getMode(), 1, desc.getBytes_number()) : 0;
+
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (monitor != null) {
+					monitor.stopped = true;
 				}
-			} catch (Exception e) {
-				Log.w(TAG, "Retrieve PID response exception:" + e);
+				stream = st;
+				pump();
+			}
 
-				try {
-					in.close();
-					sockin.close();
-				} catch (IOException e1) {
-					// TODO Auto-generated catch block
-					///e1.printStackTrace();
-					Log.e(TAG, "clost input stream execption:" + e1);
+		});
+
+		return 0;
+	}
+
+	// @description stop streaming, resumeStream continue it
+	public void stopStream() {
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (stream != null) {
+					stream.stopped = true;
 				}
+			}
+
+		});
+	}
 
-				// clear pending query
-				while (descCnt.elements().hasMoreElements()) {
-					LinkedList<OBDReader.pidDesc> descl = descCnt.elements()
-							.nextElement();
+	// @description resume stopped streaming
+	public void resumeStream() {
+		loop.execute(new Runnable() {
 
-					OBDReader.pidDesc desc;
-					while ((desc = descl.poll()) != null) {
-						if (desc.getResCb() != null) {
-							desc.getResCb().onResponse(-1, desc);
-						}
+			@Override
+			public void run() {
+				if (stream != null) {
+					if (monitor != null) {
+						monitor.stopped = true;
 					}
+					stream.stopped = false;
+					pump();
 				}
 			}
+
+		});
+	}
+
+	// @description monitor bus passively(ATCRA/ATMA) without request overhead,
+	// OBD response frames matching descs execute pidDesc response callback,
+	// every frame is reported to listener
+	// @param filter - CAN ID to receive only(ATCRA), like 0x7E8, -1 for all
+	// @param descs - pidDesc to decode, null for raw frames only
+	// @param listener - raw frame listener, may be null
+	// notes: need headers on(FLAG_H1). Queued queries interrupt monitor,
+	// it's resumed once they are done, or after adapter BUFFER FULL.
+	public int startMonitor(int filter, List<OBDReader.pidDesc> descs,
+			monitorListener listener) {
+		if (((FLAGS & FLAG_H1) == 0) || closed) {
+			Log.w(TAG, "monitor need headers on");
+			return -1;
 		}
-		
+
+		final monitor_t mon = new monitor_t();
+		mon.filter = filter;
+		mon.descs = (descs != null) ?
+				descs.toArray(new OBDReader.pidDesc[descs.size()]) : null;
+		mon.listener = listener;
+
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (stream != null) {
+					stream.stopped = true;
+				}
+				if (monitor != null) {
+					// keep adapter filter state for reset
+					mon.filterSet = monitor.filterSet;
+					monitor.stopped = true;
+				}
+				monitor = mon;
+				pump();
+			}
+
+		});
+
+		return 0;
+	}
+
+	// @description stop monitor, resumeMonitor continue it
+	public void stopMonitor() {
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (monitor != null) {
+					monitor.stopped = true;
+					pump();
+				}
+			}
+
+		});
+	}
+
+	// @description resume stopped monitor
+	public void resumeMonitor() {
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				if (monitor != null) {
+					if (stream != null) {
+						stream.stopped = true;
+					}
+					monitor.stopped = false;
+					pump();
+				}
+			}
+
+		});
 	}
-	
-	// @description query command with pidDesc bean
-	private class cmdPidDesc {
-		private final String cmd;
-		private final OBDReader.pidDesc desc;
 		
-		cmdPidDesc(String cmd, OBDReader.pidDesc desc) {
-			this.cmd = cmd;
-			this.desc = desc;
+	// @description transport event listener
+	private class linkListener implements ELM327Transport.transportListener {
+
+		@Override
+		public void onOpen() {
+			Log.d(TAG, "transport opened " + transport);
+			opened = true;
+			pump();
+		}
+
+		@Override
+		public void onRead(ByteBuffer buf) {
+			// parser decodes direct buffer in place
+			parser.feed(buf);
+		}
+
+		@Override
+		public void onClose(Exception e) {
+			Log.w(TAG, "transport closed " + transport + ":" + e);
+			opened = false;
+			closed = true;
+
+			if (pumpTimer != null) {
+				pumpTimer.cancel();
+			}
+
+			// clear pending query
+			inflight.clear();
+			ctrlQueue.clear();
+			sendQueue.clear();
+			descCnt.claimAll(new OBDReader.responseCallback() {
+
+				@Override
+				public void onResponse(int error, OBDReader.pidDesc desc) {
+					if (desc.getResCb() != null) {
+						desc.getResCb().onResponse(error, desc);
+					}
+				}
+
+			});
 		}
+
 	}
-	
-	// @description query send thread
-    private class txThread extends Thread {
-   	
-    	// check command queue and schedule query in next IPG
-    	public void run() {
-    		Log.d(TAG, "tx thread started");
-    		
-    		while (true) {
-                // check 
-    			final cmdPidDesc cmd = sendQueue.poll();
-
-                if (cmd != null) {
-                	// down scaler
-                	txScaler = (txScaler / 2) | 1;
-    				final OBDReader.pidDesc desc = cmd.desc;
-
-    				// send command
-                	try {
-						out.write(cmd.cmd);
-	        			out.flush();
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						///e.printStackTrace();
-						try {
-							out.close();
-							sockout.close();
-						} catch (IOException e1) {
-							// TODO Auto-generated catch block
-							///e1.printStackTrace();
-							Log.e(TAG, "clost output stream execption:" + e1);
-						}
-						
-						// check PID descriptor
-						if ((desc != null) && tstDesc(desc)) {
-							delDesc(desc);
-							desc.getResCb().onResponse(-1, desc);
-							Log.e(TAG, "query fail on PID" + desc.getMode()
-									+ "-" + desc.getPid() + ":" + desc + " " + e);
-						}
+
+	// @description dispatch parsed response to pidDesc
+	private class rxListener implements ELM327Parser.responseListener {
+
+		@Override
+		public void onMessage(int ecu, byte[] buf, int off, int len) {
+			int obd_mode = buf[off] & 0xff;
+
+			// negative response like 7F 01 12, the query fail on prompt
+			if (obd_mode == 0x7f) {
+				Log.w(TAG, "negative response on mode "
+						+ ((len > 1) ? (buf[off + 1] & 0xff) : -1));
+				return;
+			}
+
+			// response's mode should be 0x4x
+			if ((len < 1) || ((obd_mode & 0xc0) != 0x40)) {
+				Log.w(TAG, "invalid OBD response mode:" + obd_mode);
+				return;
+			}
+			obd_mode &= 0x3f;
+
+			// mode 01/02 carry one or more(batched query) PID items like
+			// 41 0C 1A F8 0D 3C 05 7B
+			// each item is PID, frame number(freeze data only) and data bytes
+			if ((obd_mode == 0x01) || (obd_mode == 0x02)) {
+				int skip = (obd_mode == 0x02) ? 2 : 1;
+				int pos = off + 1;
+
+				while (pos + skip <= off + len) {
+					int obd_pid = buf[pos] & 0xff;
+
+					// dequeue pidDesc
+					OBDReader.pidDesc qdesc = matchDesc(obd_mode, obd_pid);
+					if (qdesc == null) {
+						// unknown item length, stop demultiplex
+						Log.d(TAG, "Dummy PID response: mode " + obd_mode + ",pid " + obd_pid);
+						break;
 					}
-                	
-            		// start timeout monitor in case timeout > 0 ms
-            		// TBD... hard-code on 600ms
-            		if ((desc != null) && tstDesc(desc) &&
-            			(desc.getResCb() != null) 
-            			/* && desc.getTimeout() > 0 */) {
-            			timeoutMonitor.postDelayed(new Runnable() {
-
-            				@Override
-            				public void run() {
-            					// TODO Auto-generated method stub
-            					if (tstDesc(desc)) {
-            						delDesc(desc);
-            						desc.getResCb().onResponse(-2, desc);
-            						Log.e(TAG, "query timeout on PID" + desc.getMode()
-            								+ "-" + desc.getPid() + ":" + desc);
-            					}
-            				}
-
-            			}, 600);
-            			// /desc.getTimeout());
-            		}
-                } else {
-                	// up scaler
-                	txScaler *= 2;
-
-                	// schedule after next IPG or tx request come
-                	synchronized(txSyncFlag) {
-                		if (txSyncFlag[0]) txSyncFlag[0] = false;
-
-                		try {
-							txSyncFlag.wait(txIPG * (txScaler % txMaxScaler));
-						} catch (InterruptedException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-                	}
-                }
-    		}
-    	}
-    	
-    }
-
-	// parse PID and clear parsed lines
-	private List<OBDReader.pidDesc> parsePidDescs(List<String> lines) {
-		List<OBDReader.pidDesc> descsReturn = new ArrayList<OBDReader.pidDesc>();
 
-		// 1.
-		// parse command array
-		String cmdsStr = "";
-		for (int idx = 0; idx < lines.size(); idx++) {
-			cmdsStr += lines.get(idx);
+					int remain = off + len - pos - skip;
+					int cnt = (qdesc.getBytes_number() > 0) ? qdesc.getBytes_number() : remain;
+					if (remain < cnt) {
+						Log.w(TAG, "invalid response length:" + len + ",mode "
+								+ obd_mode + ",pid " + obd_pid);
+						fail(qdesc);
+						break;
+					}
+
+					complete(qdesc, buf, pos + skip, cnt);
+					pos += skip + cnt;
+				}
+
+				return;
+			}
+
+			// mode 09 carry PID, skip PID and data item count for
+			// multiple frame VIN data
+			int obd_pid = 0;
+			int skip = 1;
+			if (obd_mode == 0x09) {
+				if (len < 2) {
+					Log.w(TAG, "corrupted OBD message mode:" + obd_mode);
+					return;
+				}
+				obd_pid = buf[off + 1] & 0xff;
+				skip = (len > 7) ? 3 : 2;
+			} else if ((obd_mode == 0x03) && ((len & 1) == 0)) {
+				// CAN carry DTC count before DTCs
+				skip = 2;
+			}
+
+			// dequeue pidDesc
+			OBDReader.pidDesc qdesc = matchDesc(obd_mode, obd_pid);
+			if (qdesc == null) {
+				Log.d(TAG, "Dummy PID response: mode " + obd_mode + ",pid " + obd_pid);
+				return;
+			}
+
+			// check bytes number
+			if ((qdesc.getBytes_number() > 0)
+					&& (len - skip < qdesc.getBytes_number())) {
+				Log.w(TAG, "invalid response length:" + len + ",mode "
+						+ obd_mode + ",pid " + obd_pid);
+				fail(qdesc);
+				return;
+			}
+
+			complete(qdesc, buf, off + skip,
+					(qdesc.getBytes_number() > 0) ? qdesc.getBytes_number() : (len - skip));
 		}
-		Log.d(TAG, "Cmd strs: " + cmdsStr);
 
-		String[] cmdsArray = cmdsStr.split(">");
+		// @description fill response bytes and execute response callback
+		private void complete(OBDReader.pidDesc qdesc, byte[] buf, int off, int cnt) {
+			// push byte in result
+			byte[] resBytes = new byte[cnt];
+			System.arraycopy(buf, off, resBytes, 0, cnt);
+			qdesc.setBytes_return(resBytes);
+
+			// time stamp on response
+			qdesc.setRts(System.currentTimeMillis());
+			if (!monitoring) {
+				txGap.onResponse(qdesc.getRts() - qdesc.getQts());
+			}
 
-		// 1.1
-		// check cmdsArray
-		if ((cmdsArray == null) || (cmdsArray.length == 0)) {
-			Log.d(TAG, "No valid cmd: " + cmdsStr);
-			return null;
+			// execute response callback
+			callback(0, qdesc);
 		}
 
-		// 1.2
-		// nothing to do why ??? refer to
-		if (cmdsArray.length < 2) {
-			Log.d(TAG, "AT cmd: " + cmdsArray[0]);
-			return null;
+		// @description execute response callback on corrupted response
+		private void fail(OBDReader.pidDesc qdesc) {
+			callback(-1, qdesc);
 		}
 
-		// 2.
-		// parse PID desc one by one
-		for (int idx = 0; idx < cmdsArray.length; idx++) {
-			if (cmdsArray[idx] == "")
-				continue;
+		// @description execute response callback
+		// notes: exception in callback must not kill rx
+		private void callback(int error, OBDReader.pidDesc qdesc) {
+			if (qdesc.getResCb() != null) {
+				try {
+					qdesc.getResCb().onResponse(error, qdesc);
+				} catch (Exception e) {
+					Log.e(TAG, "response callback exception on PID"
+							+ qdesc.getMode() + "-" + qdesc.getPid() + ":" + e);
+				}
+			}
+		}
 
-			String[] resStrs = cmdsArray[idx].split("[\\n\\r]+");
-			Log.d(TAG, "parse "
-					+ ((resStrs.length > 1) ? "multiple line respones"
-							: "signle line response"));
+		// @description find pidDesc of head in-flight command
+		// notes: adapter answers commands in order, so response before next
+		// '>' prompt always belongs to the oldest in-flight command
+		private OBDReader.pidDesc matchDesc(int mode, int pid) {
+			cmdPidDesc cmd = inflight.peek();
+			if ((cmd == null) || (cmd.descs == null)) {
+				return null;
+			}
 
-			ArrayList<String> mixLines = new ArrayList<String>();
-			// 2.1
-			// check for No data or OK is the response
-			for (int i = 0; i < resStrs.length; i++) {
-				if ((resStrs[i].indexOf("NO DATA") > 0) ||
-					(resStrs[i].indexOf("OK") > 0) ||
-					(resStrs[i].indexOf("?") > 0) ||
-					(resStrs[i] == "")) {
-					continue;
-				} else {
-					mixLines.add(resStrs[i]);
+			// monitored pidDesc are never pending, match each broadcast
+			if (cmd.monitor) {
+				for (OBDReader.pidDesc desc : cmd.descs) {
+					if ((desc.getMode() == mode) && (desc.getPid() == pid)) {
+						return desc;
+					}
+				}
+				return null;
+			}
+
+			for (int i = 0; i < cmd.descs.length; i++) {
+				OBDReader.pidDesc desc = cmd.descs[i];
+
+				if ((desc.getMode() == mode) && (desc.getPid() == pid)
+						&& claimDesc(desc)) {
+					cmd.cancelTimeout(i);
+					return desc;
 				}
 			}
 
-			// extract only one ECU's response in case multiple ECU response
-			ArrayList<String> resLines = new ArrayList<String>();
-
-			// prefer first line of ECU's response
-			String ecu = mixLines.get(0).substring(0, 3);
-
-			for (int i = 0; i < mixLines.size(); i++)
-				if (ecu == mixLines.get(i).substring(0, 3))
-					resLines.add(mixLines.get(i));
-
-			Log.d(TAG, "parse response from ECU " + ecu);
-
-			// 3.
-			// single line response per query
-			if (resLines.size() == 1) {
-				Log.d(TAG, "valid single response:" + resLines.get(0));
-
-				// 3.1
-				// parse mode&pid like below (for detail refer to
-				// http://elmelectronics.com/DSheets/ELM329DS.pdf)
-				// >01 00
-				// 7E8 06 41 00 BE 3F B8 13 00
-				String[] valStrs;
-				if ((this.FLAGS & FLAG_S1) != 0) {
-					valStrs = resLines.get(0).split(" ");
-				} else {
-					String rlstr = resLines.get(0);
-					int rlcnt = 1 + (rlstr.length() - 3) / 2;
-					valStrs = new String[rlcnt];
-
-					valStrs[0] = rlstr.substring(0, 3);
-					for (int i = 1; i < rlcnt; i++) {
-						valStrs[i] = rlstr
-								.substring(3 + (i - 1) * 2, 3 + i * 2);
+			return null;
+		}
+
+		@Override
+		public void onStatus(int status, byte[] line, int off, int len) {
+			Log.d(TAG, "status line:" + new String(line, off, len));
+
+			// adapter overrun, back off
+			// notes: monitor end with BUFFER FULL or STOPPED normally
+			if (!monitoring &&
+				((status == ELM327Parser.STATUS_BUFFER_FULL) ||
+				 (status == ELM327Parser.STATUS_STOPPED))) {
+				txGap.onOverrun();
+			}
+
+			cmdPidDesc cmd = inflight.peek();
+			if (cmd != null) {
+				cmd.status = status;
+
+				if (cmd.reply != null) {
+					try {
+						cmd.reply.onText(line, off, len);
+					} catch (Exception e) {
+						Log.e(TAG, "reply listener exception:" + e);
 					}
 				}
+			}
+		}
 
-				// parse CAN message ID
-				int msg_id, msg_len, obd_mode, obd_pid;
-				try {
-					msg_id = Integer.parseInt(valStrs[0], 16);
-					msg_len = Integer.parseInt(valStrs[1], 16);
+		@Override
+		public void onPrompt() {
+			// complete head in-flight command
+			rxPromptTs = System.currentTimeMillis();
+			cmdPidDesc cmd = inflight.poll();
 
-					// check message length
-					if (valStrs.length < (2 + msg_len)) {
-						Log.w(TAG, "corrupted CAN message:" + resLines.get(0));
-						continue;
+			if ((cmd != null) && (cmd.reply != null)) {
+				parser.setRaw(false);
+			}
+
+			if ((cmd != null) && cmd.monitor) {
+				endMonitor();
+			} else if ((cmd != null) && (cmd.descs != null)) {
+				// PID not answered before prompt never get response, like NO DATA
+				for (int i = 0; i < cmd.descs.length; i++) {
+					OBDReader.pidDesc desc = cmd.descs[i];
+
+					if (claimDesc(desc)) {
+						cmd.cancelTimeout(i);
+						Log.w(TAG, "no response on PID" + desc.getMode() + "-"
+								+ desc.getPid() + " seq " + cmd.seq + " status "
+								+ cmd.status);
+						fail(desc);
 					}
+				}
+			}
+
+			// window has room, send next
+			pump();
+		}
 
-					obd_mode = Integer.parseInt(valStrs[2], 16);
-					obd_pid = Integer.parseInt(valStrs[3], 16);
+		@Override
+		public void onFrame(int hdr, byte[] buf, int off, int len) {
+			if ((monitor != null) && (monitor.listener != null)) {
+				try {
+					monitor.listener.onFrame(hdr, buf, off, len);
 				} catch (Exception e) {
-					Log.w(TAG, "parse CAN message exception:" + e);
-					continue;
+					Log.e(TAG, "monitor listener exception:" + e);
 				}
+			}
+		}
 
-				Log.d(TAG,
-						"parsed CAN message: "
-								+ String.format("%03x %02x %02x %02x", msg_id,
-										msg_len, obd_mode, obd_pid));
+	}
+	
+	// @description query command with pidDesc bean
+	// notes: batched query carry multiple pidDesc, AT command carry null
+	private class cmdPidDesc {
+		// precomputed AT command, null for OBD query
+		private final byte[] at;
+		// OBD query mode and response line count, 0 if not appended
+		private final int mode;
+		private final int lines;
+		private final OBDReader.pidDesc[] descs;
+
+		// per-request sequence id
+		private final int seq;
+		// sent at time
+		private long txts;
+		// ms to wait for prompt after sent
+		private long expiry = txCmdTimeout;
+		// last status line got, like NO DATA
+		private volatile int status;
+
+		// streaming query, repeated by bare \r if it's same as last command
+		private boolean stream;
+		private boolean repeat;
+		// monitor command(ATMA), stopping after interrupt byte sent
+		private boolean monitor;
+		private boolean stopping;
+		private monitor_t owner;
+		// AT command reply listener, every line before prompt is reported
+		private textListener reply;
+		
+		cmdPidDesc(byte[] at) {
+			this(at, 0, null, 0);
+		}
 
-				// response's mode should be 0x4x
-				if ((obd_mode & 0xc0) == 0x40) {
-					// 3.2
-					// dequeue pidDesc
-					OBDReader.pidDesc qdesc = this.getDesc(obd_mode & 0x3f,
-							obd_pid);
-
-					if (qdesc != null) {
-						// parse result and fill in pidDesc like
-						// >01 00
-						// 7E8 06 41 00 BE 3F B8 13 00
-
-						// check bytes number
-						if (qdesc.getBytes_number() > 0) {
-							if (qdesc.getBytes_number() != (msg_len - 2)) {
-								Log.w(TAG,
-										"invalid response length:"
-												+ resLines.get(0));
-								continue;
-							}
-						}
-
-						// push byte in result
-						byte[] resBytes = new byte[msg_len - 2];
-						for (int i = 4; i < (msg_len + 2); i++) {
-							resBytes[i - 4] = (byte) Integer.parseInt(
-									valStrs[i], 16);
-						}
-						qdesc.setBytes_return(resBytes);
-
-						// 3.3
-						// add pidDesc in returned list
-						descsReturn.add(qdesc);
-					}
-				} else {
-					Log.w(TAG, "invalid OBD response mode:" + obd_mode
-							+ ",pid:" + obd_pid);
+		cmdPidDesc(byte[] at, OBDReader.pidDesc[] descs) {
+			this(at, 0, descs, 0);
+		}
+
+		cmdPidDesc(int mode, OBDReader.pidDesc[] descs, int lines) {
+			this(null, mode, descs, lines);
+		}
+
+		private cmdPidDesc(byte[] at, int mode, OBDReader.pidDesc[] descs, int lines) {
+			this.at = at;
+			this.mode = mode;
+			this.lines = lines;
+			this.descs = descs;
+			this.seq = txSeq.incrementAndGet();
+			this.status = -1;
+
+			if (descs != null) {
+				this.timeouts = new HashedWheelTimer.timeout_t[descs.length];
+
+				for (OBDReader.pidDesc desc : descs) {
+					desc.setSeq(this.seq);
 				}
 			} else {
-				// 4.
-				// multiple line response per query, like VID, follow ISO
-				// 15765-4 Message Types
-				Log.d(TAG, "valid multiple response:" + resLines);
-
-				// 4.1
-				// reorder lines according to ISO 15765-4,
-				// http://en.wikipedia.org/wiki/ISO_15765-2
-				// >09 04
-				// 7E8 10 13 49 04 01 35 36 30
-				// 7E8 21 32 38 39 35 34 41 43
-				// 7E8 22 00 00 00 00 00 00 00
-				ArrayList<String> orderLines = new ArrayList<String>();
-
-				for (int i = 0; i < resLines.size(); i++) {
-					int seq_exp = ((i == 0) ? 0x10 : (0x20 + i));
-
-					for (int j = 0; j < resLines.size(); j++) {
-						int seq_cur = Integer.parseInt(resLines.get(j)
-								.substring(4, 6), 16);
-
-						if (seq_exp == seq_cur)
-							orderLines.add(resLines.get(j));
-					}
+				this.timeouts = null;
+			}
+		}
+
+		// timeout monitor per pidDesc
+		private final HashedWheelTimer.timeout_t[] timeouts;
+
+		// @description encode command as ASCII in buf
+		// @return bytes number
+		private int encode(byte[] buf) {
+			if (at != null) {
+				System.arraycopy(at, 0, buf, 0, at.length);
+				return at.length;
+			}
+
+			if (repeat) {
+				buf[0] = '\r';
+				return 1;
+			}
+
+			int n = putHex(buf, 0, mode);
+
+			// mode 01/02/09 carry PIDs, others only mode like 03
+			if ((mode == 0x01) || (mode == 0x02) || (mode == 0x09)) {
+				for (OBDReader.pidDesc desc : descs) {
+					n = putHex(buf, n, desc.getPid());
 				}
 
-				// 4.2
-				// parse mode&pid
-				String[] valStrs;
-				if ((this.FLAGS & FLAG_S1) != 0) {
-					valStrs = orderLines.get(0).split(" ");
-				} else {
-					String rlstr = orderLines.get(0);
-					int rlcnt = 1 + (rlstr.length() - 3) / 2;
-					valStrs = new String[rlcnt];
-
-					valStrs[0] = rlstr.substring(0, 3);
-					for (int c = 1; c < rlcnt; c++) {
-						valStrs[c] = rlstr
-								.substring(3 + (c - 1) * 2, 3 + c * 2);
-					}
+				// one hex digit line count only
+				if ((lines > 0) && (lines <= 0xf)) {
+					buf[n++] = HEX[lines];
 				}
+			}
+			buf[n++] = '\r';
 
-				// parse CAN message ID
-				int msg_id, msg_len, obd_mode, obd_pid;
-				try {
-					msg_id = Integer.parseInt(valStrs[0], 16);
-					msg_len = Integer.parseInt(valStrs[2], 16)
-							+ (Integer.parseInt(valStrs[1], 16) & 0x0f) * 256;
-
-					// check message length
-					if ((6 + (resLines.size() - 1) * 7) < msg_len) {
-						Log.w(TAG, "corrupted CAN message:" + resLines);
-						continue;
-					}
+			return n;
+		}
 
-					obd_mode = Integer.parseInt(valStrs[3], 16);
-					obd_pid = Integer.parseInt(valStrs[4], 16);
-				} catch (Exception e) {
-					Log.w(TAG, "parse CAN message exception:" + e);
-					continue;
-				}
+		@Override
+		public String toString() {
+			byte[] buf = new byte[cmdMax];
+			int n = encode(buf);
 
-				Log.i(TAG,
-						"parsed CAN message: "
-								+ String.format("%03x %02x %02x %02x", msg_id,
-										msg_len, obd_mode, obd_pid));
+			return new String(buf, 0, n - 1);
+		}
 
-				// response's mode should be 0x4x
-				if ((obd_mode & 0xc0) == 0x40) {
-					// 2.3
-					// dequeue pidDesc
-					OBDReader.pidDesc qdesc = this.getDesc(obd_mode & 0x3f,
-							obd_pid);
-
-					if (qdesc != null) {
-						// 2.4
-						// parse result and fill multiple line response in
-						// pidDesc like
-						// >09 04
-						// 7E8 10 13 49 04 01 35 36 30
-						// 7E8 21 32 38 39 35 34 41 43
-						// 7E8 22 00 00 00 00 00 00 00
-
-						// check bytes number
-						if (qdesc.getBytes_number() > 0) {
-							if (qdesc.getBytes_number() != (msg_len - 3)) {
-								Log.w(TAG, "invalid response length:"
-										+ orderLines.get(0));
-								continue;
-							}
-						}
-
-						// push byte in result
-						byte[] resBytes = new byte[msg_len - 3];
-
-						// first line
-						int idxb = 0;
-						if ((this.FLAGS & FLAG_S1) != 0) {
-							valStrs = orderLines.get(0).split(" ");
-						} else {
-							String rlstr = orderLines.get(0);
-							int rlcnt = 1 + (rlstr.length() - 3) / 2;
-							valStrs = new String[rlcnt];
-
-							valStrs[0] = rlstr.substring(0, 3);
-							for (int c = 1; c < rlcnt; c++) {
-								valStrs[c] = rlstr.substring(3 + (c - 1) * 2,
-										3 + c * 2);
-							}
-						}
-
-						resBytes[idxb++] = (byte) Integer.parseInt(valStrs[6],
-								16);
-						resBytes[idxb++] = (byte) Integer.parseInt(valStrs[7],
-								16);
-						resBytes[idxb++] = (byte) Integer.parseInt(valStrs[8],
-								16);
-
-						// sequence line
-						for (int i = 1; i < orderLines.size(); i++) {
-							String rlstr = orderLines.get(i);
-
-							if ((this.FLAGS & FLAG_S1) != 0) {
-								valStrs = rlstr.split(" ");
-							} else {
-								int rlcnt = 1 + (rlstr.length() - 3) / 2;
-								valStrs = new String[rlcnt];
-
-								valStrs[0] = rlstr.substring(0, 3);
-								for (int c = 1; c < rlcnt; c++) {
-									valStrs[c] = rlstr.substring(
-											3 + (c - 1) * 2, 3 + c * 2);
-								}
-							}
-
-							for (int j = 2; j < valStrs.length; j++) {
-								resBytes[idxb++] = (byte) Integer.parseInt(
-										valStrs[j], 16);
-								if (idxb >= (msg_len - 3))
-									break;
-							}
-
-							if (idxb >= (msg_len - 3))
-								break;
-						}
-						qdesc.setBytes_return(resBytes);
-
-						// 2.5
-						// add pidDesc in returned list
-						descsReturn.add(qdesc);
-					}
-				} else {
-					Log.w(TAG, "invalid OBD response mode:" + obd_mode
-							+ ",pid:" + obd_pid);
+		// @description cancel timeout monitor of pidDesc idx
+		private void cancelTimeout(int idx) {
+			if (timeouts[idx] != null) {
+				timeouts[idx].cancel();
+			}
+		}
+	}
+	
+	// @description send queued commands once in-flight window has room, the
+	// window is released by '>' prompt, then next command wait for adaptive gap
+	// notes: run on loop thread, kicked by queue, prompt and pump timer
+	private void pump() {
+		if (!opened) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		expireInflight(now);
+
+		// monitor hold adapter until any byte interrupt it
+		cmdPidDesc head = inflight.peek();
+		if ((head != null) && head.monitor) {
+			if (!head.stopping && ((monitor != head.owner) || monitor.stopped ||
+				(ctrlQueue.peek() != null) || (sendQueue.peek() != null))) {
+				head.stopping = true;
+				writeRaw(CMD_CR);
+			}
+			return;
+		}
+
+		while (inflight.size() < txWindow) {
+			cmdPidDesc cmd = peekCmd();
+			if (cmd == null) {
+				break;
+			}
+
+			// AT command with reply need adapter alone
+			if ((cmd.reply != null) && (inflight.peek() != null)) {
+				break;
+			}
+
+			long wait = rxPromptTs + txGap.getGap() - now;
+			if (wait > 0) {
+				schedulePump(wait);
+				return;
+			}
+
+			pollCmd();
+			cmd.txts = now;
+			startTimeout(cmd);
+			inflight.add(cmd);
+
+			writeCmd(cmd);
+
+			// nothing else until monitor interrupted or reply got
+			if (cmd.monitor || (cmd.reply != null)) {
+				break;
+			}
+		}
+
+		// check head in-flight command again when it expires
+		if (inflight.peek() != null) {
+			schedulePump(inflight.peek().txts + inflight.peek().expiry - now + 1);
+		}
+	}
+
+	// @description next command to send: control, queued query, then
+	// monitor or stream once adapter is idle
+	private cmdPidDesc peekCmd() {
+		if (ctrlQueue.peek() != null) {
+			return ctrlQueue.peek();
+		}
+		if (sendQueue.peek() != null) {
+			return sendQueue.peek();
+		}
+		if (inflight.peek() != null) {
+			return null;
+		}
+
+		if ((monitor != null) && !monitor.stopped) {
+			// receive filter, or clear engine ECU filter, then monitor all
+			if (!monitor.filterSet && ((monitor.filter >= 0) || (rxFilter != null))) {
+				ctrlQueue.add(new cmdPidDesc((monitor.filter < 0) ? CMD_ATCRA :
+						ascii("ATCRA" + hexString(monitor.filter,
+								(monitor.filter > 0x7ff) ? 8 : 3) + "\r")));
+				monitor.filterSet = true;
+			}
+
+			cmdPidDesc cmd = new cmdPidDesc(CMD_ATMA, monitor.descs);
+			cmd.monitor = true;
+			cmd.owner = monitor;
+			ctrlQueue.add(cmd);
+		} else if ((stream != null) && !stream.stopped) {
+			OBDReader.pidDesc desc = stream.desc;
+
+			// queue pidDesc again for this round
+			putDesc(desc);
+
+			cmdPidDesc cmd = new cmdPidDesc(desc.getMode(),
+					new OBDReader.pidDesc[] {desc}, stream.lines);
+			cmd.stream = true;
+			cmd.repeat = (lastCmd != null) && lastCmd.stream &&
+					(lastCmd.descs[0] == desc);
+			ctrlQueue.add(cmd);
+		}
+
+		return ctrlQueue.peek();
+	}
+
+	private cmdPidDesc pollCmd() {
+		return (ctrlQueue.peek() != null) ? ctrlQueue.poll() : sendQueue.poll();
+	}
+
+	// @description monitor command got prompt, like interrupted or BUFFER FULL
+	private void endMonitor() {
+		monitoring = false;
+		parser.setMonitor(false);
+
+		// restore engine ECU receive filter before any other command
+		if ((monitor != null) && monitor.filterSet &&
+			(monitor.stopped || (ctrlQueue.peek() != null) || (sendQueue.peek() != null))) {
+			ctrlQueue.addFirst(new cmdPidDesc((rxFilter != null) ? rxFilter : CMD_ATCRA));
+			monitor.filterSet = false;
+		}
+	}
+
+	// @description ASCII hex string of value
+	private static String hexString(int value, int digits) {
+		char[] buf = new char[digits];
+
+		for (int i = digits - 1; i >= 0; i--) {
+			buf[i] = (char) HEX[value & 0x0f];
+			value >>= 4;
+		}
+
+		return new String(buf);
+	}
+
+	// @description run pump on loop thread
+	private void kickPump() {
+		if (pumpKicked.compareAndSet(false, true)) {
+			loop.execute(pumpTask);
+		}
+	}
+
+	// @description run pump after delay ms, replace former one
+	private void schedulePump(long delay) {
+		if (pumpTimer != null) {
+			pumpTimer.cancel();
+		}
+		pumpTimer = loop.schedule(pumpTask, delay);
+	}
+
+	// @description write command on transport
+	private void writeCmd(cmdPidDesc cmd) {
+		final OBDReader.pidDesc[] descs = (cmd.descs != null) ?
+				cmd.descs : new OBDReader.pidDesc[0];
+
+		// time stamp on actual query, RTT count from here
+		for (OBDReader.pidDesc desc : descs) {
+			desc.setQts(cmd.txts);
+		}
+
+		// monitor mode start with command, parser report every frame
+		if (cmd.monitor) {
+			monitoring = true;
+			parser.setMonitor(true);
+		} else if (cmd.reply != null) {
+			parser.setRaw(true);
+		}
+		lastCmd = cmd;
+
+		// fill command bytes
+		txBuf.clear();
+		txBuf.put(txBytes, 0, cmd.encode(txBytes));
+		txBuf.flip();
+
+		// send command
+		if (transport.write(txBuf) != 0) {
+			inflight.remove(cmd);
+
+			// check PID descriptor
+			for (int i = 0; i < descs.length; i++) {
+				OBDReader.pidDesc desc = descs[i];
+
+				if (claimDesc(desc)) {
+					cmd.cancelTimeout(i);
+					desc.getResCb().onResponse(-1, desc);
+					Log.e(TAG, "query fail on PID" + desc.getMode()
+							+ "-" + desc.getPid() + ":" + desc);
 				}
 			}
 		}
+	}
 
-		// 3.
-		// clear lines container
-		lines.clear();
+	// @description write bytes out of command flow, like monitor interrupt
+	private void writeRaw(byte[] raw) {
+		txBuf.clear();
+		txBuf.put(raw);
+		txBuf.flip();
 
-		return descsReturn;
+		transport.write(txBuf);
+	}
+
+	// @description start timeout monitor on each pidDesc of command
+	// notes: use pidDesc own timeout, or timeout follow measured RTT
+	private void startTimeout(cmdPidDesc cmd) {
+		if ((cmd.descs == null) || cmd.monitor) {
+			return;
+		}
+
+		for (int i = 0; i < cmd.descs.length; i++) {
+			final OBDReader.pidDesc desc = cmd.descs[i];
+
+			if (desc.getResCb() == null) {
+				continue;
+			}
+
+			long timeout = (desc.getTimeout() > 0) ?
+					desc.getTimeout() : txGap.getTimeout();
+			cmd.timeouts[i] = loop.newTimeout(new Runnable() {
+
+				@Override
+				public void run() {
+					if (claimDesc(desc)) {
+						txGap.onTimeout();
+						desc.getResCb().onResponse(-2, desc);
+						Log.e(TAG, "query timeout on PID" + desc.getMode()
+								+ "-" + desc.getPid() + ":" + desc);
+					}
+				}
+
+			}, timeout);
+		}
+	}
+
+	// @description drop head in-flight command in case its prompt never come
+	private void expireInflight(long now) {
+		while ((inflight.peek() != null) && !inflight.peek().monitor &&
+			   (now - inflight.peek().txts > inflight.peek().expiry)) {
+			cmdPidDesc cmd = inflight.poll();
+			txGap.onTimeout();
+			Log.w(TAG, "no prompt on command seq " + cmd.seq + ":" + cmd);
+		}
 	}
 
 	@Override
-	// TBD... timeout mechanism
 	public int send(final OBDReader.pidDesc desc) {
-		// TODO Auto-generated method stub
-
-		if (desc == null) {
+		if ((desc == null) || closed) {
 			return -1;
 		}
 
-		// 0.
-		// down tx scaler
-		txScaler = 1;
-		
 		// 1.
 		// time stamp on query
 		desc.setQts(System.currentTimeMillis());
@@ -641,80 +1202,152 @@ public class ELM327 implements OBDReader.queryResponse {
 		}
 
 		// 3.
-		// query command 
-		String cmd = String.format("%02X", desc.getMode());
-		if ((desc.getMode() == 0x01) || // current data
-			(desc.getMode() == 0x02) || // freeze data
-			(desc.getMode() == 0x09)) { // VIN data
-			cmd += String.format("%02X", desc.getPid());
+		// query command, encoded as ASCII on write
+		int lines = 0;
+		if (((desc.getMode() == 0x01) || // current data
+			 (desc.getMode() == 0x02) || // freeze data
+			 (desc.getMode() == 0x09)) && // VIN data
+			(desc.getBytes_number() > 0)) {
+			lines = responseLines(desc.getMode(), 1, desc.getBytes_number());
+		}
+		
+		return queueCmd(new cmdPidDesc(desc.getMode(),
+				new OBDReader.pidDesc[] {desc}, lines));
+	}
+
+	@Override
+	// @description pack up to 6 same mode PIDs in one query like 01 0C 0D 05 10 11 5E,
+	// the combined response is demultiplexed back to each pidDesc by rx.
+	// notes: only CAN vehicle accept multiple PIDs in one request
+	public int sendBatch(final List<OBDReader.pidDesc> descs) {
+		if ((descs == null) || (descs.size() == 0) || closed) {
+			return -1;
+		}
 
-			// append response line count in case each response line have 4 data bytes
-			if (desc.getBytes_number() > 0) {
-				cmd += String.format("%X", (desc.getBytes_number() + 4) / 4);
+		// 1.
+		// check batch, must be mode 01/02 with known response length
+		final int mode = descs.get(0).getMode();
+		for (OBDReader.pidDesc desc : descs) {
+			if ((desc == null) || (desc.getMode() != mode) ||
+				((mode != 0x01) && (mode != 0x02)) ||
+				(desc.getBytes_number() <= 0)) {
+				Log.w(TAG, "invalid batch query:" + desc);
+				return -1;
 			}
 		}
-		cmd += "\r";
-		
-		if (sendQueue.add(new cmdPidDesc(cmd, desc))) {
-			// notify tx task
-			synchronized(txSyncFlag) {
-				if (!txSyncFlag[0]) {
-					txSyncFlag[0] = true;
-					txSyncFlag.notifyAll();
+
+		// 1.1
+		// only CAN vehicle accept multiple PIDs, query one by one otherwise
+		if (!isCanProtocol()) {
+			for (OBDReader.pidDesc desc : descs) {
+				if (send(desc) != 0) {
+					return -1;
 				}
 			}
-			
 			return 0;
-		} else {
-			Log.e(TAG, "queue query command fail");
-			return -1;
 		}
-	}
 
-	// @description queue pidDesc
-	private int putDesc(OBDReader.pidDesc desc) {
-		String k = String.format("pid%02x%02x", desc.getMode(), desc.getPid());
+		// 2.
+		// split in commands of up to batchPidsMax PIDs
+		for (int from = 0; from < descs.size(); from += batchPidsMax) {
+			int to = Math.min(from + batchPidsMax, descs.size());
+			OBDReader.pidDesc[] batch = new OBDReader.pidDesc[to - from];
 
-		if (!descCnt.containsKey(k)) {
-			descCnt.put(k, new LinkedList<OBDReader.pidDesc>());
-		}
-		if (descCnt.get(k).add(desc)) {
-			return 0;
-		} else {
-			return -1;
+			// 2.1
+			// time stamp and queue pidDesc
+			long now = System.currentTimeMillis();
+			int bytes = 0;
+			for (int i = from; i < to; i++) {
+				OBDReader.pidDesc desc = descs.get(i);
+
+				desc.setQts(now);
+				if (putDesc(desc) != 0) {
+					return -1;
+				}
+				batch[i - from] = desc;
+
+				bytes += desc.getBytes_number();
+			}
+
+			// 2.2
+			// append response line count
+			int lines = responseLines(mode, batch.length, bytes);
+
+			if (queueCmd(new cmdPidDesc(mode, batch, lines)) != 0) {
+				return -1;
+			}
 		}
+
+		return 0;
 	}
 
-	// @description dequeue pidDesc
-	private OBDReader.pidDesc getDesc(int mode, int pid) {
-		String k = String.format("pid%02x%02x", mode, pid);
+	// @description response line count appended to query, so adapter answer
+	// right after last line instead of waiting for its ATST timeout
+	// @param pids - PIDs number in query
+	// @param data - data bytes of all PIDs
+	// @return line count, 0 if not known
+	private int responseLines(int mode, int pids, int data) {
+		// mode byte, PID byte and frame number of mode 02 per PID
+		int bytes = 1 + pids * ((mode == 0x02) ? 2 : 1) + data;
+
+		if (isCanProtocol()) {
+			// record like VIN carry data item count
+			if ((mode == 0x09) && (data > 4)) {
+				bytes++;
+			}
 
-		if (descCnt.containsKey(k)) {
-			// pop first pidDesc
-			return descCnt.get(k).poll();
-		} else {
-			return null;
+			// ISO 15765-4 frames: single frame carry up to 7 bytes, first
+			// frame carry 6 bytes, consecutive frame carry 7 bytes
+			return (bytes <= 7) ? 1 : (1 + (bytes - 6 + 6) / 7);
 		}
+
+		// one message per response on K-line and J1850, message count of
+		// longer record like VIN vary by ECU, let adapter time out
+		return (bytes <= 7) ? 1 : 0;
 	}
 
-	// @description test if pidDesc in queue
-	private boolean tstDesc(OBDReader.pidDesc desc) {
-		String k = String.format("pid%02x%02x", desc.getMode(), desc.getPid());
+	// @description put byte as 2 ASCII hex digits
+	// @return next position
+	private static int putHex(byte[] buf, int pos, int b) {
+		buf[pos] = HEX[(b >> 4) & 0x0f];
+		buf[pos + 1] = HEX[b & 0x0f];
+
+		return pos + 2;
+	}
+
+	// @description ASCII bytes of constant command
+	private static byte[] ascii(String cmd) {
+		byte[] buf = new byte[cmd.length()];
+
+		for (int i = 0; i < buf.length; i++) {
+			buf[i] = (byte) cmd.charAt(i);
+		}
 
-		if (descCnt.containsKey(k)) {
-			return descCnt.get(k).contains(desc);
+		return buf;
+	}
+
+	// @description queue command and kick pump
+	private int queueCmd(cmdPidDesc cmd) {
+		if (sendQueue.add(cmd)) {
+			kickPump();
+			
+			return 0;
 		} else {
-			return false;
+			Log.e(TAG, "queue query command fail");
+			return -1;
 		}
 	}
 
-	// @description delete if pidDesc in queue
-	private void delDesc(OBDReader.pidDesc desc) {
-		String k = String.format("pid%02x%02x", desc.getMode(), desc.getPid());
+	// @description queue pidDesc
+	private int putDesc(OBDReader.pidDesc desc) {
+		descCnt.put(desc);
+		return 0;
+	}
 
-		if (descCnt.containsKey(k) && descCnt.get(k).contains(desc)) {
-			descCnt.get(k).remove(desc);
-		}
+	// @description take pidDesc out of queue if it's still pending
+	// notes: only one of response, prompt, timeout and tx failure claim it
+	private boolean claimDesc(OBDReader.pidDesc desc) {
+		return descCnt.claim(desc);
 	}
 
 }
@@ -0,0 +1,171 @@
+/**
+ * @description single thread event loop driving ELM327 adapters
+ */
+package com.example.icar;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: one selector thread serve I/O, command pump and response parsing
+ * of every adapter registered on it, the shared default loop drive
+ * several adapters from one thread.
+ */
+public class ELM327EventLoop {
+	private static final String TAG = "ELM327EventLoop";
+
+	// @description selected channel handler, called on loop thread
+	public interface selectHandler {
+		public void onSelect(SelectionKey key) throws IOException;
+
+		// @description onSelect failed, like listener threw; handler close
+		// its link so owner learn it is down
+		public void onError(SelectionKey key, Exception e);
+	}
+
+	private static ELM327EventLoop defaultLoop;
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	private final HashedWheelTimer timer;
+	private final loopThread loop;
+	private volatile boolean running;
+
+	public ELM327EventLoop() throws IOException {
+		this.selector = Selector.open();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.timer = new HashedWheelTimer();
+		this.running = true;
+
+		this.loop = new loopThread();
+		this.loop.setDaemon(true);
+		this.loop.start();
+	}
+
+	// @description shared loop of all adapters
+	public static synchronized ELM327EventLoop getDefault() throws IOException {
+		if (defaultLoop == null) {
+			defaultLoop = new ELM327EventLoop();
+		}
+
+		return defaultLoop;
+	}
+
+	// @description run task on loop thread
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	// @description run task on loop thread after delay ms
+	public HashedWheelTimer.timeout_t schedule(final Runnable task, long delay) {
+		return timer.newTimeout(new Runnable() {
+
+			@Override
+			public void run() {
+				execute(task);
+			}
+
+		}, delay);
+	}
+
+	// @description run task on timer thread after delay ms
+	// notes: task must be short and thread safe, like query timeout
+	public HashedWheelTimer.timeout_t newTimeout(Runnable task, long delay) {
+		return timer.newTimeout(task, delay);
+	}
+
+	// @description test if caller is on loop thread
+	public boolean inLoop() {
+		return Thread.currentThread() == loop;
+	}
+
+	// @description register channel on selector
+	// notes: call on loop thread only
+	public SelectionKey register(SelectableChannel ch, int ops, selectHandler handler)
+			throws IOException {
+		ch.configureBlocking(false);
+		return ch.register(selector, ops, handler);
+	}
+
+	// @description stop loop and timer, registered channels are left open
+	public void stop() {
+		running = false;
+		timer.stop();
+		selector.wakeup();
+	}
+
+	// @description cancel key and let handler close its link
+	private static void error(SelectionKey key, selectHandler handler, Exception e) {
+		key.cancel();
+		try {
+			handler.onError(key, e);
+		} catch (Exception e1) {
+			Log.e(TAG, "channel handler error exception:" + e1);
+		}
+	}
+
+	private class loopThread extends Thread {
+
+		public void run() {
+			Log.d(TAG, "event loop started");
+
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					Log.e(TAG, "select exception:" + e);
+					break;
+				}
+
+				// dispatch ready channels
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					selectHandler handler = (selectHandler) key.attachment();
+					try {
+						if (key.isValid()) {
+							handler.onSelect(key);
+						}
+					} catch (ClosedChannelException e) {
+						error(key, handler, e);
+					} catch (Exception e) {
+						Log.e(TAG, "channel handler exception:" + e);
+						error(key, handler, e);
+					}
+				}
+
+				// run queued tasks
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (Exception e) {
+						Log.e(TAG, "loop task exception:" + e);
+					}
+				}
+			}
+
+			try {
+				selector.close();
+			} catch (IOException e) {
+				Log.e(TAG, "close selector exception:" + e);
+			}
+			Log.d(TAG, "event loop stopped");
+		}
+
+	}
+
+}
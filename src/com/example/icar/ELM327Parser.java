@@ -0,0 +1,437 @@
+/**
+ * @description incremental byte level ELM327 response parser
+ */
+package com.example.icar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ */
+public class ELM327Parser {
+	private static final String TAG = "ELM327Parser";
+
+	// @description parsed response event listener
+	// notes: buffers passed in are reused by parser, copy what you need
+	public interface responseListener {
+		// @description one complete OBD message(single frame or ISO-TP assembled)
+		// @param ecu - header/CAN ID of the responding ECU, -1 if headers off
+		// @param buf - message bytes, buf[off] is the service byte like 0x41
+		public void onMessage(int ecu, byte[] buf, int off, int len);
+
+		// @description non-hex line like OK, NO DATA, BUFFER FULL, ...
+		public void onStatus(int status, byte[] line, int off, int len);
+
+		// @description '>' prompt, the adapter is ready for next command
+		public void onPrompt();
+
+		// @description raw frame in monitor mode(ATMA), before ISO-TP assembly
+		// @param hdr - header/CAN ID of the frame
+		// @param buf - frame data bytes after header, checksum stripped
+		public void onFrame(int hdr, byte[] buf, int off, int len);
+	}
+
+	// status of non-hex response line
+	public static final int STATUS_TEXT = 0; // unknown text, like ATZ banner
+	public static final int STATUS_OK = 1;
+	public static final int STATUS_UNKNOWN_CMD = 2; // ?
+	public static final int STATUS_NO_DATA = 3;
+	public static final int STATUS_SEARCHING = 4;
+	public static final int STATUS_BUFFER_FULL = 5;
+	public static final int STATUS_STOPPED = 6;
+	public static final int STATUS_UNABLE_TO_CONNECT = 7;
+	public static final int STATUS_BUS_ERROR = 8; // BUS INIT/BUSY/ERROR, CAN ERROR, ...
+	public static final int STATUS_DATA_ERROR = 9;
+
+	private static final byte[][] STATUS_PATTERNS = {
+		"OK".getBytes(), "?".getBytes(), "NO DATA".getBytes(),
+		"SEARCHING".getBytes(), "BUFFER FULL".getBytes(), "STOPPED".getBytes(),
+		"UNABLE TO CONNECT".getBytes(),
+		"BUS INIT".getBytes(), "BUS BUSY".getBytes(), "BUS ERROR".getBytes(),
+		"CAN ERROR".getBytes(), "FB ERROR".getBytes(), "LV RESET".getBytes(),
+		"DATA ERROR".getBytes(), "<DATA ERROR".getBytes(), "<RX ERROR".getBytes()
+	};
+	private static final int[] STATUS_CODES = {
+		STATUS_OK, STATUS_UNKNOWN_CMD, STATUS_NO_DATA,
+		STATUS_SEARCHING, STATUS_BUFFER_FULL, STATUS_STOPPED,
+		STATUS_UNABLE_TO_CONNECT,
+		STATUS_BUS_ERROR, STATUS_BUS_ERROR, STATUS_BUS_ERROR,
+		STATUS_BUS_ERROR, STATUS_BUS_ERROR, STATUS_BUS_ERROR,
+		STATUS_DATA_ERROR, STATUS_DATA_ERROR, STATUS_DATA_ERROR
+	};
+
+	// max characters in one response line
+	private static final int LINE_MAX = 256;
+	// max ISO 15765-2 message length
+	private static final int MSG_MAX = 4095;
+
+	private final responseListener listener;
+	private volatile boolean headers;
+	private volatile boolean echo;
+	private volatile boolean monitor;
+	private volatile boolean raw;
+	private volatile boolean filtered;
+
+	// current line state, reused for every line
+	private final byte[] line = new byte[LINE_MAX];
+	private final byte[] nib = new byte[LINE_MAX];
+	private final byte[] frame = new byte[LINE_MAX / 2];
+	private int lineLen;
+	private int nibCnt;
+	private int tok0; // nibble count of first token, -1 before first space
+	private int colonAt; // nibble count before ':', -1 if no colon
+	private boolean text; // line has non-hex character
+	private boolean overflow;
+	private boolean echoSkipped;
+
+	// multiple frame message state, reused for every message
+	private final byte[] msg = new byte[MSG_MAX];
+	private int msgEcu;
+	private int msgTotal; // expected length, -1 if no message in progress
+	private int msgRecv;
+	private int msgSeq; // consecutive frames got
+
+	// responding ECU locked on first header after prompt
+	private int ecu;
+
+	public ELM327Parser(boolean headers, boolean echo, responseListener listener) {
+		this.listener = listener;
+		this.headers = headers;
+		this.echo = echo;
+
+		resetLine();
+		resetResponse();
+	}
+
+	/**
+	 * @param headers
+	 *            true if adapter sends headers(ATH1)
+	 */
+	public void setHeaders(boolean headers) {
+		this.headers = headers;
+	}
+
+	/**
+	 * @param echo
+	 *            true if adapter echoes command(ATE1)
+	 */
+	public void setEcho(boolean echo) {
+		this.echo = echo;
+	}
+
+	/**
+	 * @param monitor
+	 *            true while adapter monitors bus(ATMA), frames of every
+	 *            header are reported instead of locking on first ECU
+	 */
+	public void setMonitor(boolean monitor) {
+		this.monitor = monitor;
+	}
+
+	/**
+	 * @param raw
+	 *            true while reply of AT command like ATDPN is expected, every
+	 *            line is reported by onStatus even if it looks like hex
+	 */
+	public void setRaw(boolean raw) {
+		this.raw = raw;
+	}
+
+	/**
+	 * @param filtered
+	 *            true if adapter receive filter(ATCRA) pass one ECU only, so
+	 *            response needn't lock on first header
+	 */
+	public void setFiltered(boolean filtered) {
+		this.filtered = filtered;
+	}
+
+	// @description feed raw bytes from adapter
+	// notes: called from one thread only, like event loop
+	public void feed(byte[] buf, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			feedByte(buf[i] & 0xff);
+		}
+	}
+
+	// @description feed raw bytes from position to limit, like direct buffer
+	// notes: buffer position is moved to limit
+	public void feed(ByteBuffer buf) {
+		int lim = buf.limit();
+
+		for (int i = buf.position(); i < lim; i++) {
+			feedByte(buf.get(i) & 0xff);
+		}
+		buf.position(lim);
+	}
+
+	private void feedByte(int c) {
+		if (c == '>') {
+			endLine();
+			listener.onPrompt();
+			resetResponse();
+		} else if ((c == '\r') || (c == '\n')) {
+			endLine();
+		} else if (c != 0) {
+			putChar(c);
+		}
+	}
+
+	// @description reset parser state, like after adapter reset
+	public void reset() {
+		resetLine();
+		resetResponse();
+	}
+
+	private void putChar(int c) {
+		if (lineLen >= LINE_MAX) {
+			overflow = true;
+			return;
+		}
+		line[lineLen++] = (byte) c;
+
+		if ((c >= '0') && (c <= '9')) {
+			nib[nibCnt++] = (byte) (c - '0');
+		} else if ((c >= 'A') && (c <= 'F')) {
+			nib[nibCnt++] = (byte) (c - 'A' + 10);
+		} else if ((c >= 'a') && (c <= 'f')) {
+			nib[nibCnt++] = (byte) (c - 'a' + 10);
+		} else if (c == ' ') {
+			if ((tok0 < 0) && (nibCnt > 0)) {
+				tok0 = nibCnt;
+			}
+		} else if ((c == ':') && (colonAt < 0) && !headers) {
+			colonAt = nibCnt;
+		} else {
+			text = true;
+		}
+	}
+
+	private void resetLine() {
+		lineLen = 0;
+		nibCnt = 0;
+		tok0 = -1;
+		colonAt = -1;
+		text = false;
+		overflow = false;
+	}
+
+	private void resetResponse() {
+		ecu = -1;
+		msgTotal = -1;
+		msgRecv = 0;
+		msgSeq = 0;
+		echoSkipped = false;
+	}
+
+	// @description process one completed line
+	private void endLine() {
+		if (lineLen == 0) {
+			return;
+		}
+
+		if (overflow) {
+			listener.onStatus(STATUS_DATA_ERROR, line, 0, lineLen);
+		} else if (echo && !echoSkipped) {
+			// first line after prompt is command echo
+			echoSkipped = true;
+		} else if (raw) {
+			listener.onStatus(text ? matchStatus() : STATUS_TEXT, line, 0, lineLen);
+		} else if (text) {
+			listener.onStatus(matchStatus(), line, 0, lineLen);
+		} else if (headers) {
+			headerLine();
+		} else {
+			plainLine();
+		}
+
+		resetLine();
+	}
+
+	private int matchStatus() {
+		for (int p = 0; p < STATUS_PATTERNS.length; p++) {
+			byte[] pat = STATUS_PATTERNS[p];
+
+			// check pattern at any position, like "SEARCHING...\rUNABLE TO CONNECT"
+			for (int s = 0; s + pat.length <= lineLen; s++) {
+				int k = 0;
+				while ((k < pat.length) && (line[s + k] == pat[k]))
+					k++;
+				if (k == pat.length)
+					return STATUS_CODES[p];
+			}
+		}
+
+		return STATUS_TEXT;
+	}
+
+	// @description decode nibbles from nib[start] into frame bytes
+	// @return bytes number
+	private int decodeFrame(int start) {
+		int n = (nibCnt - start) / 2;
+
+		for (int i = 0; i < n; i++) {
+			frame[i] = (byte) ((nib[start + 2 * i] << 4) | nib[start + 2 * i + 1]);
+		}
+
+		return n;
+	}
+
+	private int nibbleValue(int start, int count) {
+		int v = 0;
+
+		for (int i = start; i < start + count; i++) {
+			v = (v << 4) | nib[i];
+		}
+
+		return v;
+	}
+
+	// @description line with header, like below
+	// 7E8 06 41 00 BE 3F B8 13 00 (CAN 11 bits)
+	// 18 DA F1 10 03 41 0D 00 (CAN 29 bits)
+	// 48 6B 10 41 0D 00 CS (ISO 9141/14230, J1850 with checksum)
+	private void headerLine() {
+		int hdrNibs;
+		boolean can;
+
+		if (((tok0 == 3) || ((tok0 < 0) && ((nibCnt & 1) != 0))) && (nibCnt > 3)) {
+			hdrNibs = 3;
+			can = true;
+		} else if ((nibCnt > 8) && (nibbleValue(0, 4) == 0x18DA)) {
+			hdrNibs = 8;
+			can = true;
+		} else if (nibCnt > 6) {
+			hdrNibs = 6;
+			can = false;
+		} else {
+			listener.onStatus(STATUS_DATA_ERROR, line, 0, lineLen);
+			return;
+		}
+
+		int hdr = nibbleValue(0, hdrNibs);
+		int n = decodeFrame(hdrNibs);
+
+		if (monitor) {
+			// report every frame on bus
+			if (can) {
+				listener.onFrame(hdr, frame, 0, n);
+			} else if (n > 1) {
+				listener.onFrame(hdr, frame, 0, n - 1);
+			}
+		} else if (filtered) {
+			// adapter pass one ECU's response only
+		} else if (ecu < 0) {
+			// extract only one ECU's response in case multiple ECU response
+			ecu = hdr;
+		} else if (ecu != hdr) {
+			return;
+		}
+
+		if (!can) {
+			// strip checksum byte
+			if (n > 1) {
+				listener.onMessage(hdr, frame, 0, n - 1);
+			}
+			return;
+		}
+
+		// ISO 15765-2 protocol control information
+		if (n < 1) {
+			return;
+		}
+		int pci = frame[0] & 0xff;
+
+		switch (pci >> 4) {
+		case 0: // single frame
+			int sfl = pci & 0x0f;
+			if ((sfl > 0) && (sfl < n)) {
+				listener.onMessage(hdr, frame, 1, sfl);
+			}
+			break;
+
+		case 1: // first frame
+			if (n > 2) {
+				startMessage(hdr, ((pci & 0x0f) << 8) | (frame[1] & 0xff));
+				putSegment(0, frame, 2, n - 2);
+			}
+			break;
+
+		case 2: // consecutive frame
+			if ((msgTotal > 0) && (msgEcu == hdr)) {
+				putSegment(pci & 0x0f, frame, 1, n - 1);
+			}
+			break;
+
+		default: // flow control
+			break;
+		}
+	}
+
+	// @description line without header, like below
+	// 41 00 BE 3F B8 13 (single line)
+	// 014 (multiple line message length)
+	// 0: 49 02 01 31 44 34
+	// 1: 47 50 30 30 52 35 35
+	private void plainLine() {
+		if (colonAt > 0) {
+			if (msgTotal > 0) {
+				int n = decodeFrame(colonAt);
+				putSegment(nibbleValue(0, colonAt) & 0x0f, frame, 0, n);
+			}
+		} else if (((nibCnt & 1) != 0) && (nibCnt <= 3)) {
+			startMessage(-1, nibbleValue(0, nibCnt));
+		} else {
+			int n = decodeFrame(0);
+			if (n > 0) {
+				listener.onMessage(-1, frame, 0, n);
+			}
+		}
+	}
+
+	private void startMessage(int hdr, int total) {
+		msgEcu = hdr;
+		msgTotal = (total > MSG_MAX) ? MSG_MAX : total;
+		msgRecv = 0;
+		msgSeq = 0;
+	}
+
+	// @description place segment in message by its sequence number
+	// notes: segment 0 carries 6 bytes, others 7 bytes; sequence wraps at 16
+	private void putSegment(int seq, byte[] src, int off, int len) {
+		int idx;
+
+		if (seq == 0 && msgSeq == 0 && msgRecv == 0) {
+			idx = 0;
+		} else {
+			// nearest index to next expected one with same low nibble
+			int exp = msgSeq + 1;
+			int d = (seq - exp) & 0x0f;
+			idx = exp + ((d > 8) ? (d - 16) : d);
+			if (idx < 1)
+				return;
+			msgSeq++;
+		}
+
+		int pos = (idx == 0) ? 0 : (6 + (idx - 1) * 7);
+		int cnt = (idx == 0) ? Math.min(len, 6) : Math.min(len, 7);
+		if (pos + cnt > msgTotal) {
+			cnt = msgTotal - pos;
+		}
+		if (cnt <= 0) {
+			return;
+		}
+
+		System.arraycopy(src, off, msg, pos, cnt);
+		msgRecv += cnt;
+
+		if (msgRecv >= msgTotal) {
+			int total = msgTotal;
+			msgTotal = -1;
+			listener.onMessage(msgEcu, msg, 0, total);
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+/**
+ * @description byte transport between ELM327 driver and adapter
+ */
+package com.example.icar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: transport is driven by ELM327EventLoop, all methods and listener
+ * callbacks run on loop thread.
+ */
+public interface ELM327Transport {
+
+	// @description transport event listener
+	public interface transportListener {
+		// @description link is up, ready to write
+		public void onOpen();
+
+		// @description bytes from adapter
+		// notes: buf is reused by transport, consume it before return
+		public void onRead(ByteBuffer buf);
+
+		// @description link is down
+		// @param e - cause, null on local close
+		public void onClose(Exception e);
+	}
+
+	// @description open link on loop
+	// @return 0 on success, -1 on failure
+	public int open(ELM327EventLoop loop, transportListener listener);
+
+	// @description write bytes to adapter, bytes not written at once are
+	// buffered and flushed when link is writable
+	// @return 0 on success, -1 on failure
+	public int write(ByteBuffer buf);
+
+	// @description close link
+	public void close();
+
+}
@@ -3,6 +3,8 @@
  */
 package com.example.icar;
 
+import java.util.Map;
+
 import android.util.Log;
 
 /**
@@ -95,5 +97,49 @@ public class FuelConsumption {
 				to.getDistance_traveled_since_codes_cleared(), to.getDistance_traveled_with_malfunction_indicator_lamp_on(),
 				from.getFuel_input_level(), to.getFuel_input_level());
 	}
+
+	// @description average fuel consumption of trip, from its first and last
+	// average fuel consumption samples found by RecordIndex
+	// @param trip - trip id of DataRecorder
+	// @return average Km/L, NaN if trip has no two samples with the values
+	public static float averageKMPL(RecordIndex index, String trip) {
+		String type = new DataRecorder.average_fuel_consumption_record_t().getType();
+		Map<String, Object> from = index.firstSample(trip, type);
+		Map<String, Object> to = index.lastSample(trip, type);
+		float[] s = averageValues(from);
+		float[] e = averageValues(to);
+
+		if ((s == null) || (e == null) || from.get("cts").equals(to.get("cts"))) {
+			Log.w(TAG, "no average fuel consumption samples of trip " + trip);
+			return Float.NaN;
+		}
+
+		Object vin = from.get("vin");
+		return averageKMPL((vin instanceof String) ? (String) vin : "",
+				s[0], s[1], e[0], e[1], s[2], e[2]);
+	}
+
+	// @description distance since codes cleared, distance with MIL on and
+	// fuel input level of sample
+	// @return null if any is missing
+	private static float[] averageValues(Map<String, Object> sample) {
+		String[] pids = {
+				DataRecorder.average_fuel_consumption_record_t.getDistanceTraveledSinceCodesClearedPid(),
+				DataRecorder.average_fuel_consumption_record_t.getDistanceTraveledWithMalfunctionIndicatorLampOnPid(),
+				DataRecorder.average_fuel_consumption_record_t.getFuelInputLevelPid() };
+		float[] v = new float[pids.length];
+
+		if ((sample == null) || !sample.containsKey("cts")) {
+			return null;
+		}
+		for (int i = 0; i < pids.length; i++) {
+			if (!(sample.get(pids[i]) instanceof Number)) {
+				return null;
+			}
+			v[i] = ((Number) sample.get(pids[i])).floatValue();
+		}
+
+		return v;
+	}
 	
 }
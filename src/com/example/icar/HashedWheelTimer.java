@@ -0,0 +1,245 @@
+/**
+ * @description hashed wheel timer for query timeout
+ */
+package com.example.icar;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: timer run in own thread without Looper. Timeout is hashed into
+ * wheel bucket by deadline tick, each tick expire one bucket in batch.
+ * Cancel only flip state by CAS, cancelled timeout is unlinked when its
+ * bucket is swept. Timer thread park while wheel is empty, next timeout
+ * wake it up, so an idle timer is not a wakeup source.
+ */
+public class HashedWheelTimer {
+	private static final String TAG = "HashedWheelTimer";
+
+	private static final int ST_INIT = 0;
+	private static final int ST_CANCELLED = 1;
+	private static final int ST_EXPIRED = 2;
+
+	// @description timeout handle
+	public static final class timeout_t {
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state;
+
+		// remaining wheel rounds before expire
+		private long rounds;
+
+		// bucket double link
+		private timeout_t prev;
+		private timeout_t next;
+
+		private timeout_t(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+			this.state = new AtomicInteger(ST_INIT);
+		}
+
+		// @description cancel timeout, O(1)
+		// @return false if already expired or cancelled
+		public boolean cancel() {
+			return state.compareAndSet(ST_INIT, ST_CANCELLED);
+		}
+
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == ST_EXPIRED;
+		}
+	}
+
+	// @description wheel bucket as double linked list, touched by timer thread only
+	private static final class bucket_t {
+		private timeout_t head;
+		private timeout_t tail;
+
+		private void add(timeout_t t) {
+			t.prev = tail;
+			t.next = null;
+			if (tail == null) {
+				head = t;
+			} else {
+				tail.next = t;
+			}
+			tail = t;
+		}
+
+		private void remove(timeout_t t) {
+			if (t.prev != null) {
+				t.prev.next = t.next;
+			} else {
+				head = t.next;
+			}
+			if (t.next != null) {
+				t.next.prev = t.prev;
+			} else {
+				tail = t.prev;
+			}
+			t.prev = t.next = null;
+		}
+	}
+
+	private final long tickMs;
+	private final bucket_t[] wheel;
+	private final int mask;
+	private final ConcurrentLinkedQueue<timeout_t> newTimeouts;
+	private final workerThread worker;
+	private final long startTime;
+	private volatile boolean running;
+	// timer thread parked or about to park on empty wheel
+	private volatile boolean idle;
+	private long tick;
+	// timeouts in wheel, touched by timer thread only
+	private int count;
+
+	// @param tickMs - tick duration ms
+	// @param wheelSize - buckets number, round up to power of 2
+	public HashedWheelTimer(long tickMs, int wheelSize) {
+		int n = 1;
+		while (n < wheelSize)
+			n <<= 1;
+
+		this.tickMs = (tickMs > 0) ? tickMs : 1;
+		this.wheel = new bucket_t[n];
+		for (int i = 0; i < n; i++) {
+			this.wheel[i] = new bucket_t();
+		}
+		this.mask = n - 1;
+		this.newTimeouts = new ConcurrentLinkedQueue<timeout_t>();
+		this.startTime = System.currentTimeMillis();
+		this.running = true;
+
+		this.worker = new workerThread();
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	public HashedWheelTimer() {
+		this(10, 512);
+	}
+
+	// @description schedule task after delay ms
+	// notes: task run on timer thread, keep it short
+	public timeout_t newTimeout(Runnable task, long delay) {
+		timeout_t t = new timeout_t(task,
+				System.currentTimeMillis() - startTime + Math.max(0, delay));
+
+		newTimeouts.add(t);
+		if (idle) {
+			LockSupport.unpark(worker);
+		}
+		return t;
+	}
+
+	// @description stop timer thread, pending timeouts never fire
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	private class workerThread extends Thread {
+
+		public void run() {
+			Log.d(TAG, "timer thread started");
+
+			while (running) {
+				// nothing to expire, wait for new timeout
+				if ((count == 0) && newTimeouts.isEmpty()) {
+					idle = true;
+					// check again, timeout added before idle set doesn't unpark
+					if (newTimeouts.isEmpty()) {
+						LockSupport.park(this);
+					}
+					idle = false;
+					if (!running) {
+						break;
+					}
+
+					// catch up ticks passed while parked, wheel is empty
+					tick = Math.max(tick, (System.currentTimeMillis() - startTime) / tickMs);
+				}
+
+				// wait for next tick
+				long deadline = (tick + 1) * tickMs;
+				long sleep = deadline - (System.currentTimeMillis() - startTime);
+				if (sleep > 0) {
+					try {
+						Thread.sleep(sleep);
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+
+				transferTimeouts();
+				expireTimeouts(wheel[(int) (tick & mask)], deadline);
+				tick++;
+			}
+
+			Log.d(TAG, "timer thread stopped");
+		}
+
+		// @description hash new timeouts into bucket, 100000 per tick at most
+		private void transferTimeouts() {
+			for (int i = 0; i < 100000; i++) {
+				timeout_t t = newTimeouts.poll();
+				if (t == null) {
+					break;
+				}
+				if (t.isCancelled()) {
+					continue;
+				}
+
+				long calculated = t.deadline / tickMs;
+				t.rounds = (calculated - tick) / wheel.length;
+
+				// expire in current tick in case already passed
+				long ticks = Math.max(calculated, tick);
+				wheel[(int) (ticks & mask)].add(t);
+				count++;
+			}
+		}
+
+		// @description sweep one bucket, expire due timeouts in batch
+		private void expireTimeouts(bucket_t bucket, long deadline) {
+			timeout_t t = bucket.head;
+
+			while (t != null) {
+				timeout_t next = t.next;
+
+				if (t.isCancelled()) {
+					bucket.remove(t);
+					count--;
+				} else if ((t.rounds <= 0) && (t.deadline <= deadline)) {
+					bucket.remove(t);
+					count--;
+
+					if (t.state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+						try {
+							t.task.run();
+						} catch (Exception e) {
+							Log.e(TAG, "timeout task exception:" + e);
+						}
+					}
+				} else {
+					t.rounds--;
+				}
+
+				t = next;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,375 @@
+/**
+ * @description compactor of closed log segments into summary documents
+ */
+package com.example.icar;
+
+import java.io.File;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Database;
+import com.example.icar.OBDReader.pidDesc;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: log record payload of one sample, written by DataRecorder through
+ * encode():
+ *   type cts geo count { mode pid rts items { kind value } }
+ * strings are short length prefixed UTF-8, kind 0 float, 1 string, 2 none.
+ * Compactor take closed segments of SegmentLog one by one and write one
+ * summary document per segment, then delete segment file:
+ * {
+ *  _id: log:trip:seq
+ *  category: "log", trip, vin, segment: seq, from, to, count
+ *  types: {"<type>": {count, from, to,
+ *          stats: {"<pid>": {count, min, max, sum}}}}
+ * }
+ * Stats cover first number item of each PID. Raw segment is kept as
+ * attachment "log" of summary, so no sample is lost, sample() turn its
+ * records back into sample maps. Document id is fixed by segment, so a
+ * segment compacted again after crash overwrite its own summary.
+ * Compactor release dir lock of log when it exit.
+ */
+public class LogCompactor extends Thread {
+	private static final String TAG = "LogCompactor";
+
+	// log attachment name
+	public static final String LOG = "log";
+
+	// value kinds
+	private static final int KIND_NUMBER = 0;
+	private static final int KIND_STRING = 1;
+	private static final int KIND_NONE = 2;
+
+	private final SegmentLog log;
+	private final Database database;
+
+	private volatile boolean running;
+
+	// metrics, guarded by compactor
+	private long compacted;
+	private long samples;
+	private long failed;
+
+	public LogCompactor(SegmentLog log, Database database) {
+		super(TAG);
+		this.log = log;
+		this.database = database;
+		this.running = true;
+	}
+
+	// @description encode one sample as log record payload
+	// @param geo - location, null if not available
+	// @return 0 on success, -1 if buffer is too small
+	public static int encode(ByteBuffer b, String type, long cts, String geo,
+			List<pidDesc> descs) {
+		try {
+			SegmentLog.putString(b, type);
+			b.putLong(cts);
+			SegmentLog.putString(b, geo);
+
+			int at = b.position();
+			int n = 0;
+			b.put((byte) 0);
+			for (int i = 0; i < descs.size(); i++) {
+				pidDesc desc = descs.get(i);
+				if (desc == null) {
+					continue;
+				}
+
+				int items = desc.getResult_item_number();
+				int[] kinds = desc.getResult_item_value_type();
+				if (kinds == null) {
+					items = 0;
+				}
+				b.put((byte) desc.getMode());
+				b.put((byte) desc.getPid());
+				b.putLong(desc.getRts());
+				b.put((byte) items);
+				for (int k = 0; k < items; k++) {
+					switch (kinds[k]) {
+					case 0:
+						b.put((byte) KIND_NUMBER);
+						b.putFloat(desc.getResult_item_value_number()[k]);
+						break;
+					case 1:
+						b.put((byte) KIND_STRING);
+						SegmentLog.putString(b, desc.getResult_item_value_string()[k]);
+						break;
+					default:
+						b.put((byte) KIND_NONE);
+						break;
+					}
+				}
+				n++;
+			}
+			b.put(at, (byte) n);
+		} catch (BufferOverflowException e) {
+			return -1;
+		}
+
+		return 0;
+	}
+
+	@Override
+	public void run() {
+		while (running || (log.getClosedCount() > 0)) {
+			File seg;
+
+			try {
+				seg = log.takeClosed(1000);
+			} catch (InterruptedException e) {
+				// shutdown, compact what is closed
+				continue;
+			}
+			if (seg != null) {
+				compact(seg);
+			}
+		}
+
+		// closed segments are done, next log may own dir
+		log.release();
+		Log.d(TAG, "compactor done " + this);
+	}
+
+	// @description summarize segment into database, delete it when committed
+	// @return 0 on success, -1 on failure, segment is left for next run
+	public int compact(File seg) {
+		SegmentLog.reader r = SegmentLog.read(seg);
+
+		if (r == null) {
+			Log.w(TAG, "skip broken segment " + seg);
+			seg.delete();
+			return -1;
+		}
+
+		long seq = SegmentLog.seqOf(seg);
+		Map<String, Object> summary = new Hashtable<String, Object>();
+		Map<String, Map<String, Object>> types = new Hashtable<String, Map<String, Object>>();
+		long count = 0;
+		long from = 0;
+		long to = 0;
+
+		ByteBuffer payload;
+		while ((payload = r.next()) != null) {
+			try {
+				long cts = summarize(sample(payload, null, null), types);
+				from = (count == 0) ? cts : Math.min(from, cts);
+				to = Math.max(to, cts);
+				count++;
+			} catch (BufferUnderflowException e) {
+				Log.w(TAG, "bad record in segment " + seg);
+			}
+		}
+
+		// header only segment, like one closed right after open
+		if (count == 0) {
+			seg.delete();
+			return 0;
+		}
+
+		summary.put("_id", "log:" + r.getTrip() + ":" + seq);
+		summary.put("category", "log");
+		summary.put("trip", r.getTrip());
+		if (r.getVin().length() > 0) {
+			summary.put("vin", r.getVin());
+		}
+		summary.put("segment", seq);
+		summary.put("from", from);
+		summary.put("to", to);
+		summary.put("count", count);
+		summary.put("types", types);
+
+		Map<String, byte[]> attachments = new Hashtable<String, byte[]>();
+		attachments.put(LOG, r.getContent());
+
+		try {
+			RecordWriter.save(database.getDocument((String) summary.remove("_id")),
+					summary, attachments);
+		} catch (CouchbaseLiteException e) {
+			Log.e(TAG, "Cannot write summary of " + seg, e);
+			synchronized (this) {
+				failed++;
+			}
+			return -1;
+		}
+
+		if (!seg.delete()) {
+			Log.w(TAG, "cannot delete segment " + seg);
+		}
+		synchronized (this) {
+			compacted++;
+			samples += count;
+		}
+
+		return 0;
+	}
+
+	// @description decode log record payload as sample map, like
+	// TripBucket.reader: {type, cts, geo, trip, vin, <pid>: value, <pid>_ets}
+	// @param trip - trip of segment, null to leave out
+	// @param vin - vin of segment, null or empty to leave out
+	public static Map<String, Object> sample(ByteBuffer b, String trip, String vin) {
+		Map<String, Object> sample = new Hashtable<String, Object>();
+
+		sample.put("type", SegmentLog.getString(b));
+		sample.put("cts", b.getLong());
+		String geo = SegmentLog.getString(b);
+		if (geo.length() > 0) {
+			sample.put("geo", geo);
+		}
+		if (trip != null) {
+			sample.put("trip", trip);
+		}
+		if ((vin != null) && (vin.length() > 0)) {
+			sample.put("vin", vin);
+		}
+
+		int n = b.get() & 0xff;
+		for (int i = 0; i < n; i++) {
+			String pid = String.format("%02X%02X", b.get() & 0xff, b.get() & 0xff);
+			sample.put(pid + "_ets", b.getLong());
+
+			int items = b.get() & 0xff;
+			List<Object> values = new ArrayList<Object>(items);
+			for (int k = 0; k < items; k++) {
+				switch (b.get()) {
+				case KIND_NUMBER:
+					values.add(b.getFloat());
+					break;
+				case KIND_STRING:
+					values.add(SegmentLog.getString(b));
+					break;
+				default:
+					values.add(null);
+					break;
+				}
+			}
+			if ((items == 1) && (values.get(0) != null)) {
+				sample.put(pid, values.get(0));
+			} else if (items > 1) {
+				sample.put(pid, values);
+			}
+		}
+
+		return sample;
+	}
+
+	// @description fold one sample in type stats
+	// @return created time of sample
+	@SuppressWarnings("unchecked")
+	private static long summarize(Map<String, Object> sample,
+			Map<String, Map<String, Object>> types) {
+		String type = (String) sample.get("type");
+		long cts = (Long) sample.get("cts");
+
+		Map<String, Object> t = types.get(type);
+		if (t == null) {
+			t = new Hashtable<String, Object>();
+			t.put("count", 0L);
+			t.put("from", cts);
+			t.put("to", cts);
+			t.put("stats", new Hashtable<String, Map<String, Object>>());
+			types.put(type, t);
+		}
+		t.put("count", (Long) t.get("count") + 1);
+		t.put("from", Math.min((Long) t.get("from"), cts));
+		t.put("to", Math.max((Long) t.get("to"), cts));
+		Map<String, Map<String, Object>> stats =
+				(Map<String, Map<String, Object>>) t.get("stats");
+
+		for (Map.Entry<String, Object> e : sample.entrySet()) {
+			String pid = e.getKey();
+			Object v = e.getValue();
+			if ((pid.length() != 4) || "type".equals(pid) || "trip".equals(pid)) {
+				continue;
+			}
+
+			// first number item of PID
+			if (v instanceof List) {
+				for (Object o : (List<Object>) v) {
+					if (o instanceof Float) {
+						v = o;
+						break;
+					}
+				}
+			}
+			if (v instanceof Float) {
+				stat(stats, pid, (Float) v);
+			}
+		}
+
+		return cts;
+	}
+
+	// @description fold PID value in {count, min, max, sum} of stats
+	static void stat(Map<String, Map<String, Object>> stats, String pid, float v) {
+		Map<String, Object> s = stats.get(pid);
+
+		if (s == null) {
+			s = new Hashtable<String, Object>();
+			s.put("count", 0L);
+			s.put("min", v);
+			s.put("max", v);
+			s.put("sum", 0.0);
+			stats.put(pid, s);
+		}
+		s.put("count", (Long) s.get("count") + 1);
+		s.put("min", Math.min((Float) s.get("min"), v));
+		s.put("max", Math.max((Float) s.get("max"), v));
+		s.put("sum", (Double) s.get("sum") + v);
+	}
+
+	// @description stop after closed segments are compacted
+	// @param timeout - ms to wait, 0 not wait
+	public void shutdown(long timeout) {
+		running = false;
+		interrupt();
+
+		if (timeout > 0) {
+			try {
+				join(timeout);
+			} catch (InterruptedException e) {
+				Log.w(TAG, "shutdown interrupted");
+			}
+		}
+	}
+
+	/**
+	 * @return the compacted segments
+	 */
+	public synchronized long getCompacted() {
+		return compacted;
+	}
+
+	/**
+	 * @return the compacted samples
+	 */
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the failed
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "compacted=" + compacted + " samples=" + samples + " failed=" + failed
+				+ " closed=" + log.getClosedCount();
+	}
+
+}
@@ -1,5 +1,6 @@
 package com.example.icar;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -30,6 +31,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.IntentSender;
+import android.content.SharedPreferences;
 ///import android.support.v4.app.DialogFragment;
 ///import android.support.v4.app.FragmentActivity;
 import android.util.Log;
@@ -68,6 +70,10 @@ DataRecorder.Parameters.geoInfoCallback {
     
     // wifi connection
     private WifiManager mWifiManager;
+
+    // wifi device for ELM327, dongle act as access point
+    private final static String mWifiDeviceHost = TcpTransport.DEFAULT_HOST;
+    private final static int mWifiDevicePort = TcpTransport.DEFAULT_PORT;
     
     ////////////////////////////////////////////////////////////////////////////////////////////////////
     // GPS/location service
@@ -165,6 +171,44 @@ DataRecorder.Parameters.geoInfoCallback {
     // OBD2 reader
     private ELM327 mELM327;
     private OBDReader mOBD2Reader;
+
+    // ELM327 negotiated protocol per adapter address
+    private final static String mPrefsNameELM327 = "elm327_protocol";
+    private final ELM327.protocolStore mProtocolStore = new ELM327.protocolStore() {
+
+		@Override
+		public int getProtocol(String key) {
+			SharedPreferences prefs = getSharedPreferences(mPrefsNameELM327, Context.MODE_PRIVATE);
+			return prefs.getInt(key, -1);
+		}
+
+		@Override
+		public void putProtocol(String key, int protocol) {
+			SharedPreferences prefs = getSharedPreferences(mPrefsNameELM327, Context.MODE_PRIVATE);
+			// apply, called on event loop thread, commit would block it on disk I/O
+			prefs.edit().putInt(key, protocol).apply();
+		}
+
+    };
+
+    // supported PIDs bitmap per VIN
+    private final static String mPrefsNameSupportedPids = "obd2_supported_pids";
+    private final SupportedPids.store mSupportedPidsStore = new SupportedPids.store() {
+
+		@Override
+		public String getSupportedPids(String vin) {
+			SharedPreferences prefs = getSharedPreferences(mPrefsNameSupportedPids, Context.MODE_PRIVATE);
+			return prefs.getString(vin, null);
+		}
+
+		@Override
+		public void putSupportedPids(String vin, String bits) {
+			SharedPreferences prefs = getSharedPreferences(mPrefsNameSupportedPids, Context.MODE_PRIVATE);
+			// apply, called on event loop thread
+			prefs.edit().putString(vin, bits).apply();
+		}
+
+    };
     
     // OBD2 data recorder
     private ArrayList<DataRecorder> mDataRecorders;
@@ -336,6 +380,17 @@ DataRecorder.Parameters.geoInfoCallback {
 	 */
 	@Override
 	protected void onStop() {
+		// stop data recorders, each recorder thread flush its queued records
+		// and log on its own; don't wait for disk on UI thread
+		if (mDataRecorders != null) {
+			synchronized (mDataRecorders) {
+				for (DataRecorder recorder : mDataRecorders) {
+					recorder.close(0);
+				}
+				mDataRecorders.clear();
+			}
+		}
+
 		// disconnecting bluetooth socket
 		if (mBluetoothSocket != null) {
 			Log.d(TAG, "close bluetooth socket");
@@ -541,7 +596,12 @@ DataRecorder.Parameters.geoInfoCallback {
 	// @description working with bluetooth and wifi available
 	// notes: only call from UI thread
 	private void startAppWithBluetoothWifi() {
-		
+		// prefer bluetooth device, then wifi device
+		if (mBluetoothAdapter.isEnabled()) {
+			startAppWithBluetooth();
+		} else {
+			startAppWithWifi();
+		}
 	}
 	
 	// @description working with bluetooth available
@@ -616,7 +676,16 @@ DataRecorder.Parameters.geoInfoCallback {
 	// @description working with wifi available
 	// notes: only call from UI thread
 	private void startAppWithWifi() {
-		
+		boolean ok = false;
+
+		// start services, ELM327 connect to wifi device on event loop
+		ok = startOBD2Reader();
+		Log.d(TAG, "start OBD2 reader..."+(ok ? "success" : "fail"));
+
+		if (ok) {
+			ok = startOBD2DataRecorder();
+			Log.d(TAG, "start OBD2 data recorder..."+(ok ? "success" : "fail"));
+		}
 	}
 	
 	// @description working offline without bluetooth and wifi
@@ -625,6 +694,23 @@ DataRecorder.Parameters.geoInfoCallback {
 		
 	}
 	
+	// @description create OBDReader on ELM327 driver, queries are
+	// scheduled by priority in front of the driver, polling planner
+	// share the scheduler
+	private boolean createOBD2Reader() {
+		try {
+			ELM327EventLoop loop = ELM327EventLoop.getDefault();
+
+			mOBD2Reader = new OBDReader(new QueryScheduler(mELM327, loop), loop);
+			mOBD2Reader.getSupportedPidIndex().setStore(mSupportedPidsStore);
+		} catch (IOException e) {
+			Log.e(TAG, "create OBD2 reader fail: "+e);
+			return false;
+		}
+
+		return true;
+	}
+
 	// @description start OBD2 reader
 	private boolean startOBD2Reader() {
 		boolean ok = false;
@@ -637,9 +723,11 @@ DataRecorder.Parameters.geoInfoCallback {
 				// FLAG_S1 | FLAG_H1 
 				try {
 					mELM327 = new ELM327(
-							mBluetoothSocket.getInputStream(),
-							mBluetoothSocket.getOutputStream(),
-							ELM327.FLAG_S1 | ELM327.FLAG_H1);
+							new StreamTransport(
+									mBluetoothSocket.getInputStream(),
+									mBluetoothSocket.getOutputStream()),
+							ELM327.FLAG_S1 | ELM327.FLAG_H1,
+							mProtocolStore, mBluetoothDevice.getAddress());
 				} catch (IOException e) {
 					// TODO Auto-generated catch block
 					///e.printStackTrace();
@@ -649,10 +737,30 @@ DataRecorder.Parameters.geoInfoCallback {
 			}
 
 			// create OBDReader
-			if (mOBD2Reader == null) {
-				mOBD2Reader = new OBDReader(mELM327);
+			if ((mOBD2Reader == null) && !createOBD2Reader()) {
+				return false;
 			}
 			
+			ok = true;
+		} else if ((workingMode == MODE_WIFI) || (workingMode == MODE_BT_WIFI)) {
+			// create ELM327 driver on TCP
+			if (mELM327 == null) {
+				try {
+					mELM327 = new ELM327(
+							new TcpTransport(mWifiDeviceHost, mWifiDevicePort),
+							ELM327.FLAG_S1 | ELM327.FLAG_H1,
+							mProtocolStore, mWifiDeviceHost + ":" + mWifiDevicePort);
+				} catch (IOException e) {
+					Log.e(TAG, "create ELM327 driver fail: "+e);
+					return false;
+				}
+			}
+
+			// create OBDReader
+			if ((mOBD2Reader == null) && !createOBD2Reader()) {
+				return false;
+			}
+
 			ok = true;
 		}
 		
@@ -686,8 +794,54 @@ DataRecorder.Parameters.geoInfoCallback {
 		     return false;
 		 }
 
-		
+
 		// 2.
+		// identify vehicle, supported PIDs are loaded by VIN or scanned,
+		// then records are selected by supported PIDs
+		final Database db = database;
+		mOBD2Reader.GetVIN(new OBDReader.getVINCallback() {
+
+			@Override
+			public void cb(int error, String vin, String vmi, String vds, String vis) {
+				Log.d(TAG, "vehicle VIN: " + ((error == 0) ? vin : "unknown"));
+
+				mOBD2Reader.getSupportedPIDs(0x01, new OBDReader.getSupportedPIDsCallback() {
+
+					@Override
+					public void cb(int error, List<Integer> pids) {
+						Log.d(TAG, "supported PIDs: " + pids);
+
+						launchOBD2DataRecorder(db);
+					}
+
+				});
+			}
+
+		});
+
+		return ok;
+	}
+
+	// @description check all PIDs of record against supported PIDs bitmap
+	private boolean isRecordSupported(DataRecorder.data_record_t record) {
+		List<String> pids = record.getPids();
+
+		for (int i = 0; i < pids.size(); i++) {
+			String qs = pids.get(i);
+			if (!mOBD2Reader.isPidSupported(
+					Integer.parseInt(qs.substring(0, 2), 16),
+					Integer.parseInt(qs.substring(2, 4), 16))) {
+				Log.d(TAG, "unsupported PID " + qs + " of record " + record.getType());
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// @description launch data recorder with records vehicle supports
+	private void launchOBD2DataRecorder(Database database) {
+		// 1.
 		// start data recorder with specific parameter
 		DataRecorder.Parameters param = new DataRecorder.Parameters();
 		List<DataRecorder.data_record_t> records = new ArrayList<DataRecorder.data_record_t>();
@@ -711,33 +865,49 @@ DataRecorder.Parameters.geoInfoCallback {
 		
 		// fill eventEmitter
 		param.setEventemitter(eventemitter);
+
+		// fill storage specific, samples in local segment log, compacted into
+		// summary documents; trip-minute buckets if log can't be opened
+		param.setStorage(DataRecorder.Parameters.STORAGE_LOG);
+		param.setLog_dir(new File(getFilesDir(), "obd2_log"));
+		param.setEncoding(DataRecorder.Parameters.ENCODING_SERIES);
 		
-		// 2.1
+		// 1.1
 		// realtime fuel consumption related data
-		// TBD... MAF or EFR selection
-		// EFR 
-		records.add(new DataRecorder.efr_realtime_fuel_consumption_record_t());
+		// EFR if engine fuel rate is supported, otherwise MAF
+		DataRecorder.data_record_t efr = new DataRecorder.efr_realtime_fuel_consumption_record_t();
+		DataRecorder.data_record_t maf = new DataRecorder.maf_realtime_fuel_consumption_record_t();
+		if (isRecordSupported(efr)) {
+			records.add(efr);
+		} else if (isRecordSupported(maf)) {
+			records.add(maf);
+		} else {
+			Log.w(TAG, "neither EFR nor MAF supported");
+		}
 		
-		// 2.2
+		// 1.2
 		// average fuel consumption related data
-		records.add(new DataRecorder.average_fuel_consumption_record_t());
+		DataRecorder.data_record_t avg = new DataRecorder.average_fuel_consumption_record_t();
+		if (isRecordSupported(avg)) {
+			records.add(avg);
+		}
 
-		// 2.3
+		// 1.3
 		// driving status
 		
 		// fill records
 		param.setRecords(records);
 		
-		// 3.
+		// 2.
 		// launch recorder
 		DataRecorder recorder = new DataRecorder(param, mOBD2Reader, database);
 		recorder.start();
 		
-		// 3.1
+		// 2.1
 		// manage it
-		mDataRecorders.add(recorder);
-		
-		return ok;
+		synchronized (mDataRecorders) {
+			mDataRecorders.add(recorder);
+		}
 	}
 
 	// @description start local database sync
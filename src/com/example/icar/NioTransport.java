@@ -0,0 +1,229 @@
+/**
+ * @description selector based ELM327 transport over NIO channels
+ */
+package com.example.icar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: rx channel is always selectable, tx channel may be the same
+ * channel(TCP), another selectable channel(pipe) or a plain blocking
+ * channel(stream). Both rx and tx use direct buffer allocated once.
+ */
+public abstract class NioTransport implements ELM327Transport, ELM327EventLoop.selectHandler {
+	private static final String TAG = "NioTransport";
+
+	private static final int rxBufSize = 1024;
+	private static final int txBufSize = 1024;
+	private static final long connectTimeout = 5000; // 5s
+
+	protected ELM327EventLoop loop;
+	protected transportListener listener;
+
+	// set by subclass in openChannels
+	protected SelectableChannel rxChannel;
+	protected WritableByteChannel txChannel;
+
+	private SelectionKey rxKey;
+	private SelectionKey txKey;
+
+	private final ByteBuffer rxBuf;
+	// pending tx bytes, always in fill mode
+	private final ByteBuffer txBuf;
+
+	private boolean opened;
+	private boolean closed;
+
+	protected NioTransport() {
+		this.rxBuf = ByteBuffer.allocateDirect(rxBufSize);
+		this.txBuf = ByteBuffer.allocateDirect(txBufSize);
+	}
+
+	// @description create rx/tx channels
+	// @return true if link is up, false if connect is pending on rx channel
+	protected abstract boolean openChannels() throws IOException;
+
+	// @description release subclass resources on close
+	protected void closeChannels() {
+	}
+
+	@Override
+	public int open(ELM327EventLoop loop, transportListener listener) {
+		this.loop = loop;
+		this.listener = listener;
+
+		try {
+			if (openChannels()) {
+				onOpen();
+			} else {
+				rxKey = loop.register(rxChannel, SelectionKey.OP_CONNECT, this);
+
+				// give up pending connect
+				loop.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						if (!opened) {
+							close(new SocketTimeoutException("connect timeout"));
+						}
+					}
+
+				}, connectTimeout);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "open transport exception:" + e);
+			close(e);
+			return -1;
+		}
+
+		return 0;
+	}
+
+	private void onOpen() throws IOException {
+		if (rxKey == null) {
+			rxKey = loop.register(rxChannel, SelectionKey.OP_READ, this);
+		} else {
+			rxKey.interestOps(SelectionKey.OP_READ);
+		}
+
+		if (txChannel == rxChannel) {
+			txKey = rxKey;
+		} else if (txChannel instanceof SelectableChannel) {
+			txKey = loop.register((SelectableChannel) txChannel, 0, this);
+		}
+
+		opened = true;
+		listener.onOpen();
+	}
+
+	@Override
+	public void onSelect(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				if (((SocketChannel) rxChannel).finishConnect()) {
+					onOpen();
+				}
+				return;
+			}
+
+			if (key.isReadable()) {
+				rxBuf.clear();
+				int n = ((ReadableByteChannel) rxChannel).read(rxBuf);
+
+				if (n < 0) {
+					close(new EOFException("link closed by adapter"));
+					return;
+				} else if (n > 0) {
+					rxBuf.flip();
+					listener.onRead(rxBuf);
+				}
+			}
+
+			if (key.isValid() && key.isWritable()) {
+				flush();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "transport exception:" + e);
+			close(e);
+		}
+	}
+
+	@Override
+	public void onError(SelectionKey key, Exception e) {
+		// exception out of listener, like parser or user callback
+		close(e);
+	}
+
+	@Override
+	public int write(ByteBuffer buf) {
+		if (closed || !opened) {
+			return -1;
+		}
+
+		try {
+			// write through in case nothing pending
+			if (txBuf.position() == 0) {
+				txChannel.write(buf);
+			}
+
+			if (buf.hasRemaining()) {
+				if (buf.remaining() > txBuf.remaining()) {
+					Log.w(TAG, "tx buffer overflow");
+					return -1;
+				}
+				txBuf.put(buf);
+				flush();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "write exception:" + e);
+			close(e);
+			return -1;
+		}
+
+		return 0;
+	}
+
+	// @description write pending bytes, wait OP_WRITE for the rest
+	private void flush() throws IOException {
+		txBuf.flip();
+		txChannel.write(txBuf);
+		txBuf.compact();
+
+		if (txKey != null) {
+			int ops = (txKey == rxKey) ? SelectionKey.OP_READ : 0;
+			if (txBuf.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			txKey.interestOps(ops);
+		}
+	}
+
+	@Override
+	public void close() {
+		close(null);
+	}
+
+	protected void close(Exception e) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		if (rxKey != null) {
+			rxKey.cancel();
+		}
+		if (txKey != null) {
+			txKey.cancel();
+		}
+
+		try {
+			if (rxChannel != null) {
+				rxChannel.close();
+			}
+			if ((txChannel != null) && (txChannel != rxChannel)) {
+				txChannel.close();
+			}
+		} catch (IOException e1) {
+			Log.e(TAG, "close channel exception:" + e1);
+		}
+		closeChannels();
+
+		if (listener != null) {
+			listener.onClose(e);
+		}
+	}
+
+}
@@ -11,9 +11,9 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -25,46 +25,235 @@ public class OBDReader {
 	private static final String TAG = "OBDReader";
 	private queryResponse query;
 
-	// cached supported PID
-	private Hashtable<String, ArrayList<Integer>> cache_supported_pids;
+	// supported PID bitmap of mode 1/2/9, checked before every query
+	private SupportedPids supported_pids;
 
-	// cached constant or real time parameters
-	private class cache_param_t {
-		/**
-		 * @return the time
-		 */
-		public long getTime() {
-			return time;
+	// cached PID responses with TTL
+	private PidCache pid_cache;
+
+	// periodic PID polling at declared rates
+	private PollingPlanner planner;
+
+	// recycled samples of subscription streams
+	private SamplePool sample_pool;
+
+
+	// @description decode raw response bytes into pidDesc result items
+	// @return 0 - convert success, -1 - convert fail
+	public interface pidDecoder {
+		public int decode(pidDesc desc);
+	}
+
+	// @description linear decoder, value = (A*256+B) * scale + offset
+	// notes: raw bytes are unsigned, big endian
+	private static final class linearDecoder implements pidDecoder {
+		private final String name;
+		private final int bytes;
+		private final float scale;
+		private final float offset;
+
+		linearDecoder(String name, int bytes, float scale, float offset) {
+			this.name = name;
+			this.bytes = bytes;
+			this.scale = scale;
+			this.offset = offset;
 		}
 
-		/**
-		 * @return the value
-		 */
-		public Object getValue() {
-			return value;
+		@Override
+		public int decode(pidDesc desc) {
+			byte[] buf = desc.bytes_return;
+
+			desc.result_item_name[0] = name;
+			if (buf.length != bytes) {
+				desc.result_item_value_type[0] = 2; // error
+				desc.result_item_value_string[0] = "invalid response";
+				return -1;
+			}
+
+			int raw = 0;
+			for (int i = 0; i < bytes; i++) {
+				raw = (raw << 8) | (buf[i] & 0xff);
+			}
+
+			desc.result_item_value_type[0] = 0;
+			desc.result_item_value_number[0] = raw * scale + offset;
+			return 0;
 		}
 
-		private long time;
-		private Object value;
+		// @description decode raw bytes straight into sample, no result items
+		int decode(byte[] buf, SamplePool.sample_t s) {
+			if (buf.length != bytes) {
+				return -1;
+			}
+
+			int raw = 0;
+			for (int i = 0; i < bytes; i++) {
+				raw = (raw << 8) | (buf[i] & 0xff);
+			}
 
-		cache_param_t(long time, Object value) {
-			this.time = time;
-			this.value = value;
+			s.add(raw * scale + offset);
+			return 0;
 		}
 	}
-	private Hashtable<String, cache_param_t> cache_params;
-	private final static long cache_timeout = 1000; // 1000ms TBO...
 
+	// @description supported PID bitmap decoder, [A7..D0] = [PID $01..PID $20]
+	// notes: bits are kept as int, PID list string is rendered on demand
+	private static final class bitmapDecoder implements pidDecoder {
 
-	// @description OBD2 PID query/response description
-	// notes: some info are determined by mode and pid, so no setter method
-	public static class pidDesc {
+		@Override
+		public int decode(pidDesc desc) {
+			byte[] buf = desc.bytes_return;
 
-		/**
-		 * @return the result_item_number
-		 */
-		public final int getResult_item_number() {
-			return result_item_number;
+			desc.result_item_name[0] = "supported_pids";
+			if (buf.length != 4) {
+				desc.result_item_value_type[0] = 2; // error
+				desc.result_item_value_string[0] = "invalid response";
+				return -1;
+			}
+
+			desc.result_item_value_type[0] = 1;
+			desc.supported_bits = ((buf[0] & 0xff) << 24) | ((buf[1] & 0xff) << 16)
+					| ((buf[2] & 0xff) << 8) | (buf[3] & 0xff);
+			return 0;
+		}
+	}
+
+	// @description immutable OBD2 PID info, one per mode&pid
+	// notes: table is built once when class is loaded, pidDesc only refer to it.
+	// Arrays returned by getter are shared, don't modify them.
+	public static final class pidDef {
+		// indexed by (mode << 8) | pid, mode 0-9
+		private static final pidDef[] table = new pidDef[10 << 8];
+
+		private static final pidDecoder bitmapDecoder = new bitmapDecoder();
+
+		// PID decoded by switch in pidDesc
+		private static final pidDecoder legacyDecoder = new pidDecoder() {
+
+			@Override
+			public int decode(pidDesc desc) {
+				return desc.convertLegacy();
+			}
+
+		};
+
+		static {
+			for (int pid = 0; pid < 0x100; pid++) {
+				put(new pidDef(0x01, pid));
+				put(new pidDef(0x02, pid));
+				put(new pidDef(0x09, pid));
+			}
+			// no PID for mode 3/4
+			put(new pidDef(0x03, 0x00));
+			put(new pidDef(0x04, 0x00));
+
+			// supported PIDs of mode 1/2/9, no PID info above [61 - 80] yet
+			for (int pid = 0x00; pid <= 0x60; pid += 0x20) {
+				bitmap(0x01, pid);
+				bitmap(0x02, pid);
+			}
+			bitmap(0x09, 0x00);
+
+			// linear PIDs of mode 1/2
+			linear(0x04, "calculated_engine_load", 1, 100.0f / 255, 0);
+			linear(0x05, "engine_coolant_temperature", 1, 1, -40);
+			linear(0x06, "short_term_fuel_trim_bank1", 1, 100.0f / 128, -100);
+			linear(0x07, "long_term_fuel_trim_bank1", 1, 100.0f / 128, -100);
+			linear(0x08, "short_term_fuel_trim_bank2", 1, 100.0f / 128, -100);
+			linear(0x09, "long_term_fuel_trim_bank2", 1, 100.0f / 128, -100);
+			linear(0x0a, "fuel_pressure", 1, 3, 0);
+			linear(0x0b, "intake_manifold_absolute_pressure", 1, 1, 0);
+			linear(0x0c, "engine_rpm", 2, 0.25f, 0);
+			linear(0x0d, "vehicle_speed", 1, 1, 0);
+			linear(0x0e, "timing_advance", 1, 0.5f, -64);
+			linear(0x0f, "intake_air_temperature", 1, 1, -40);
+			linear(0x10, "maf_air_flow_rate", 2, 0.01f, 0);
+			linear(0x11, "throttle_position", 1, 100.0f / 255, 0);
+			linear(0x1c, "standards", 1, 1, 0);
+			linear(0x1f, "run_time_since_engine_start", 2, 1, 0);
+			linear(0x21, "distance_traveled_with_mil_on", 2, 1, 0);
+			linear(0x22, "fuel_rail_pressure_vacuum", 2, 0.079f, 0);
+			linear(0x23, "fuel_rail_pressure_diesel", 2, 10, 0);
+			linear(0x2c, "commanded_egr", 1, 100.0f / 255, 0);
+			linear(0x2d, "egr_error", 1, 100.0f / 128, -100);
+			linear(0x2e, "commanded_evaporative_purge", 1, 100.0f / 255, 0);
+			linear(0x2f, "fuel_level_input", 1, 100.0f / 255, 0);
+			linear(0x30, "warmups_since_codes_cleared", 1, 1, 0);
+			linear(0x31, "distance_traveled_since_codes_cleared", 2, 1, 0);
+			linear(0x33, "barometric_pressure", 1, 1, 0);
+			linear(0x3c, "catalyst_temperature_bank1_sensor1", 2, 0.1f, -40);
+			linear(0x3d, "catalyst_temperature_bank2_sensor1", 2, 0.1f, -40);
+			linear(0x3e, "catalyst_temperature_bank1_sensor2", 2, 0.1f, -40);
+			linear(0x3f, "catalyst_temperature_bank2_sensor2", 2, 0.1f, -40);
+			linear(0x42, "control_module_voltage", 2, 0.001f, 0);
+			linear(0x43, "absolute_load_value", 2, 100.0f / 255, 0);
+			linear(0x44, "command_equivalence_ratio", 2, 1.0f / 32768, 0);
+			linear(0x45, "relative_throttle_position", 1, 100.0f / 255, 0);
+			linear(0x46, "ambient_air_temperature", 1, 1, -40);
+			linear(0x47, "absolute_throttle_position_b", 1, 100.0f / 255, 0);
+			linear(0x48, "absolute_throttle_position_c", 1, 100.0f / 255, 0);
+			linear(0x49, "accelerator_pedal_position_d", 1, 100.0f / 255, 0);
+			linear(0x4a, "accelerator_pedal_position_e", 1, 100.0f / 255, 0);
+			linear(0x4b, "accelerator_pedal_position_f", 1, 100.0f / 255, 0);
+			linear(0x4c, "commanded_throttle_actuator", 1, 100.0f / 255, 0);
+			linear(0x4d, "time_run_with_mil_on", 2, 1, 0);
+			linear(0x4e, "time_since_trouble_codes_cleared", 2, 1, 0);
+			linear(0x51, "fuel_type", 1, 1, 0);
+			linear(0x52, "ethanol_fuel_percent", 1, 100.0f / 255, 0);
+			linear(0x59, "fuel_rail_pressure_absolute", 2, 10, 0);
+			linear(0x5a, "relative_accelerator_pedal_position", 1, 100.0f / 255, 0);
+			linear(0x5b, "hybrid_battery_pack_remaining_life", 1, 100.0f / 255, 0);
+			linear(0x5c, "engine_oil_temperature", 1, 1, -40);
+			linear(0x5d, "fuel_injection_timing", 2, 1.0f / 128, -210);
+			linear(0x5e, "engine_fuel_rate", 2, 0.05f, 0);
+			linear(0x61, "driver_demand_engine_percent_torque", 1, 1, -125);
+			linear(0x62, "actual_engine_percent_torque", 1, 1, -125);
+			linear(0x63, "engine_reference_torque", 2, 1, 0);
+		}
+
+		private static void put(pidDef def) {
+			if (def.supported) {
+				table[(def.mode << 8) | def.pid] = def;
+			}
+		}
+
+		private static void bitmap(int mode, int pid) {
+			pidDef def = table[(mode << 8) | pid];
+
+			if ((def == null) || (def.bytes_number != 4)) {
+				Log.w(TAG, "Invalid bitmap PID " + pid + " of mode " + mode);
+				return;
+			}
+			def.decoder = bitmapDecoder;
+		}
+
+		// @description attach linear decoder to PID of mode 1 and mode 2
+		private static void linear(int pid, String name, int bytes, float scale, float offset) {
+			pidDecoder decoder = new linearDecoder(name, bytes, scale, offset);
+
+			for (int mode = 0x01; mode <= 0x02; mode++) {
+				pidDef def = table[(mode << 8) | pid];
+
+				if ((def == null) || (def.bytes_number != bytes) || (def.result_item_number != 1)) {
+					Log.w(TAG, "Invalid linear PID " + pid + " of mode " + mode);
+					continue;
+				}
+				def.decoder = decoder;
+			}
+		}
+
+		// @description look up PID info in O(1)
+		// @return null if mode&pid is not supported
+		public static pidDef get(int mode, int pid) {
+			// DTC request ignore PID
+			if ((mode == 0x03) || (mode == 0x04)) {
+				pid = 0x00;
+			}
+			if ((mode < 0) || (mode > 9) || (pid < 0) || (pid > 0xff)) {
+				return null;
+			}
+
+			return table[(mode << 8) | pid];
 		}
 
 		/**
@@ -82,10 +271,10 @@ public class OBDReader {
 		}
 
 		/**
-		 * @return the qts
+		 * @return the desc
 		 */
-		public final long getQts() {
-			return qts;
+		public final String getDesc() {
+			return desc;
 		}
 
 		/**
@@ -96,31 +285,28 @@ public class OBDReader {
 		}
 
 		/**
-		 * @return the bytes_return
+		 * @return the result_item_number
 		 */
-		public final byte[] getBytes_return() {
-			return bytes_return;
+		public final int getResult_item_number() {
+			return result_item_number;
 		}
 
 		/**
-		 * @return the rts
+		 * @return the decoder
 		 */
-		public final long getRts() {
-			return rts;
+		public final pidDecoder getDecoder() {
+			return decoder;
 		}
 
-		/**
-		 * @return the resCb
-		 */
-		public final responseCallback getResCb() {
-			return resCb;
+		// @description value per raw bit of linear PID, for quantized storage
+		// @return 0 if PID is not linear
+		public final float getResolution() {
+			return (decoder instanceof linearDecoder) ? ((linearDecoder) decoder).scale : 0;
 		}
 
-		/**
-		 * @return the desc
-		 */
-		public final String getDesc() {
-			return desc;
+		// @return offset of linear PID, 0 if PID is not linear
+		public final float getOffset() {
+			return (decoder instanceof linearDecoder) ? ((linearDecoder) decoder).offset : 0;
 		}
 
 		/**
@@ -145,39 +331,33 @@ public class OBDReader {
 		}
 
 		/**
-		 * @return the usrinfo
+		 * @return the formula
 		 */
-		public final String getUsrinfo() {
-			return usrinfo;
+		public final String[] getFormula() {
+			return formula;
 		}
 
-		/**
-		 * @return the secinfo
-		 */
-		public final String getSecinfo() {
-			return secinfo;
-		}
+		private int mode;
+		private int pid;
+		private boolean supported;
+		private pidDecoder decoder;
 
-		/**
-		 * @return the date
-		 */
-		public final Date getDate() {
-			return date;
-		}
+		private int bytes_number;
+		private int result_item_number;
 
-		/**
-		 * @return the geo
-		 */
-		public final String getGeo() {
-			return geo;
-		}
+		// description
+		// notes: some PID has alternate formal and multiple result items
+		private String desc;
+		private Float[] minVal;
+		private Float[] maxVal;
+		private String[] units;
+		private String[] formula;
 
-		// @description construct only with mode&pid&responseCallback
-		public pidDesc(final int mode, final int pid,
-				final responseCallback resCb) throws Exception {
+		private pidDef(final int mode, final int pid) {
 			this.mode = mode;
 			this.pid = pid;
-			this.resCb = resCb;
+			this.supported = true;
+			this.decoder = legacyDecoder;
 
 			this.bytes_number = -1;
 			this.result_item_number = -1;
@@ -1946,8 +2126,8 @@ public class OBDReader {
 
 				// unsupported PIDs 0x66 - 0x87
 				default:
-					Log.w("OBDReader", "Not supported PID " + this.pid);
-					throw new Exception("Not supported PID " + this.pid);
+					this.supported = false;
+					break;
 				}
 			} else if (mode == 3) { // retrieve DTC no PIDs
 				this.bytes_number = -1; // n*6 variable length
@@ -2070,21 +2250,151 @@ public class OBDReader {
 					break;
 
 				default:
-					Log.w(TAG, "Not supported PID " + this.pid);
-					throw new Exception("Not supported PID " + this.pid);
+					this.supported = false;
+					break;
 				}
 			} else {
-				Log.w(TAG, "Not supported mode " + this.mode);
-				throw new Exception("Not supported mode " + this.mode);
+				this.supported = false;
 			}
+		}
+	}
 
-			// allocate result storage
-			if (this.result_item_number > 0) {
-				this.result_item_name = new String[this.result_item_number];
-				this.result_item_value_type = new int[this.result_item_number];
-				this.result_item_value_number = new Float[this.result_item_number];
-				this.result_item_value_string = new String[this.result_item_number];
+	// @description OBD2 PID query/response description
+	// notes: some info are determined by mode and pid, so no setter method
+	public static class pidDesc {
+
+		/**
+		 * @return the result_item_number
+		 */
+		public final int getResult_item_number() {
+			return def.result_item_number;
+		}
+
+		/**
+		 * @return the def
+		 */
+		public final pidDef getDef() {
+			return def;
+		}
+
+		/**
+		 * @return the mode
+		 */
+		public final int getMode() {
+			return mode;
+		}
+
+		/**
+		 * @return the pid
+		 */
+		public final int getPid() {
+			return pid;
+		}
+
+		/**
+		 * @return the qts
+		 */
+		public final long getQts() {
+			return qts;
+		}
+
+		/**
+		 * @return the bytes_number
+		 */
+		public final int getBytes_number() {
+			return (bytes_number > 0) ? bytes_number : def.bytes_number;
+		}
+
+		/**
+		 * @return the bytes_return
+		 */
+		public final byte[] getBytes_return() {
+			return bytes_return;
+		}
+
+		/**
+		 * @return the rts
+		 */
+		public final long getRts() {
+			return rts;
+		}
+
+		/**
+		 * @return the resCb
+		 */
+		public final responseCallback getResCb() {
+			return resCb;
+		}
+
+		/**
+		 * @return the desc
+		 */
+		public final String getDesc() {
+			return def.desc;
+		}
+
+		/**
+		 * @return the minVal
+		 */
+		public final Float[] getMinVal() {
+			return def.minVal;
+		}
+
+		/**
+		 * @return the maxVal
+		 */
+		public final Float[] getMaxVal() {
+			return def.maxVal;
+		}
+
+		/**
+		 * @return the units
+		 */
+		public final String[] getUnits() {
+			return def.units;
+		}
+
+		/**
+		 * @return the usrinfo
+		 */
+		public final String getUsrinfo() {
+			return usrinfo;
+		}
+
+		/**
+		 * @return the secinfo
+		 */
+		public final String getSecinfo() {
+			return secinfo;
+		}
+
+		/**
+		 * @return the date
+		 */
+		public final Date getDate() {
+			return date;
+		}
+
+		/**
+		 * @return the geo
+		 */
+		public final String getGeo() {
+			return geo;
+		}
+
+		// @description construct only with mode&pid&responseCallback
+		// notes: PID info is referred from preloaded pidDef table
+		public pidDesc(final int mode, final int pid,
+				final responseCallback resCb) throws Exception {
+			this.def = pidDef.get(mode, pid);
+			if (this.def == null) {
+				Log.w(TAG, "Not supported PID " + pid + " of mode " + mode);
+				throw new Exception("Not supported PID " + pid);
 			}
+
+			this.mode = mode;
+			this.pid = pid;
+			this.resCb = resCb;
 		}
 
 		/**
@@ -2101,6 +2411,8 @@ public class OBDReader {
 		 */
 		public final void setBytes_return(byte[] bytes_return) {
 			this.bytes_return = bytes_return;
+			this.bytes_number = -1;
+			this.converted = false;
 		}
 
 		/**
@@ -2143,6 +2455,9 @@ public class OBDReader {
 			this.geo = geo;
 		}
 
+		// PID info shared by every query of mode&pid
+		private final pidDef def;
+
 		// query info with tags and responseCallback
 		private int mode;
 		private int pid;
@@ -2152,9 +2467,19 @@ public class OBDReader {
 		// query at time
 		private long qts;
 
-		// response info
-		private int bytes_number;
+		// query sequence id assigned by queryResponse
+		private int seq;
+
+		// priority class for QueryScheduler, PRIO_AUTO by mode&pid
+		private int prio = QueryScheduler.PRIO_AUTO;
+
+		// pending flag owned by PendingTable, 1 - waiting for response
+		volatile int pending;
+
+		// response info
 		private byte[] bytes_return;
+		// actual bytes of variable length response, like DTCs, -1 if unknown
+		private int bytes_number = -1;
 
 		// response at time
 		private long rts;
@@ -2165,20 +2490,19 @@ public class OBDReader {
 		// result details
 		// notes: some PID has alternate formal and multiple result items
 		// type: 0 - number(as float), 1 - string, 2 - error as string on the first item
-		private int result_item_number;
+		// storage is allocated when response arrives
 		private String[] result_item_name;
 		private int[] result_item_value_type;
 
-		private Float[] result_item_value_number;
+		private float[] result_item_value_number;
 		private String[] result_item_value_string;
 
-		// description
-		// notes: some PID has alternate formal and multiple result items
-		private String desc;
-		private Float[] minVal;
-		private Float[] maxVal;
-		private String[] units;
-		private String[] formula;
+		// supported PIDs bitmap, [A7..D0] = [PID pid+1..pid+0x20]
+		private int supported_bits;
+
+		// response is decoded once, cached response is shared by callers
+		private volatile boolean converted;
+		private int convert_ret;
 
 		// meta data
 		// user info
@@ -2193,200 +2517,65 @@ public class OBDReader {
 		// @description convert raw response data bytes to useful info
 		// @return 0 - convert success, -1 - convert fail
 		public int convertToUseful() {
-			int item_idx = 0;
-
-			if (this.mode == 1 || this.mode == 2) {
-				switch (this.pid) {
-				case 0x00:
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_name[0] = "supported_pids";
-						this.result_item_value_type[0] = 1;
-						this.result_item_value_string[0] = "";
-
-						// check byte A
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[0] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 1);
-
-						// check byte B
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[1] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 9);
-
-						// check byte C
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[2] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 17);
-
-						// check byte D
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[3] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 25);
-
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x20:
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_name[0] = "supported_pids";
-						this.result_item_value_type[0] = 1;
-						this.result_item_value_string[0] = "";
-
-						// check byte A
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[0] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x20 + 1);
-
-						// check byte B
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[1] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x20 + 9);
-
-						// check byte C
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[2] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x20 + 17);
-
-						// check byte D
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[3] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x20 + 25);
-
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x40:
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_name[0] = "supported_pids";
-						this.result_item_value_type[0] = 1;
-						this.result_item_value_string[0] = "";
+			if (this.converted) {
+				return this.convert_ret;
+			}
+			if ((this.bytes_return == null) || (def.result_item_number <= 0)) {
+				return -1;
+			}
 
-						// check byte A
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[0] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x40 + 1);
-
-						// check byte B
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[1] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x40 + 9);
-
-						// check byte C
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[2] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x40 + 17);
-
-						// check byte D
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[3] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x40 + 25);
+			// allocate result storage
+			if (this.result_item_name == null) {
+				this.result_item_name = new String[def.result_item_number];
+				this.result_item_value_type = new int[def.result_item_number];
+				this.result_item_value_number = new float[def.result_item_number];
+				this.result_item_value_string = new String[def.result_item_number];
+			}
 
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
+			this.convert_ret = def.decoder.decode(this);
+			this.converted = true;
 
-				case 0x60:
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_name[0] = "supported_pids";
-						this.result_item_value_type[0] = 1;
-						this.result_item_value_string[0] = "";
+			return this.convert_ret;
+		}
 
-						// check byte A
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[0] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x60 + 1);
-
-						// check byte B
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[1] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x60 + 9);
-
-						// check byte C
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[2] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x60 + 17);
-
-						// check byte D
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[3] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x60 + 25);
+		// @description decode response into compact sample for streaming
+		// notes: linear PID is decoded from raw bytes, others through result
+		// items, only number items are kept
+		// @return 0 - success, -1 - fail
+		public int toSample(SamplePool.sample_t s) {
+			s.set(mode, pid, qts, rts);
+			if (this.bytes_return == null) {
+				return -1;
+			}
 
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
+			if (def.decoder instanceof linearDecoder) {
+				return ((linearDecoder) def.decoder).decode(this.bytes_return, s);
+			}
 
-				case 0x80:
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_name[0] = "supported_pids";
-						this.result_item_value_type[0] = 1;
-						this.result_item_value_string[0] = "";
+			// item_value_type: 0 - number(float), 1 - string, 2 - error
+			if ((convertToUseful() != 0) || (result_item_value_type[0] == 2)) {
+				return -1;
+			}
+			for (int i = 0; i < def.result_item_number; i++) {
+				if (result_item_value_type[i] == 0) {
+					s.add(result_item_value_number[i]);
+				}
+			}
 
-						// check byte A
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[0] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x80 + 1);
-
-						// check byte B
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[1] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x80 + 9);
-
-						// check byte C
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[2] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x80 + 17);
-
-						// check byte D
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[3] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 0x80 + 25);
+			return 0;
+		}
 
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
+		// @description decode PID not covered by linear decoder
+		private int convertLegacy() {
+			int item_idx = 0;
 
+			if (this.mode == 1 || this.mode == 2) {
+				switch (this.pid) {
 				case 0x01:
 					// for details refer to
 					// http://en.wikipedia.org/wiki/OBD-II_PIDs#Mode_1_PID_01
 
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						item_idx = -1;
 
 						// check A7 for MIL
@@ -2642,26 +2831,11 @@ public class OBDReader {
 					}
 					break;
 
-				case 0x2f:
-					this.result_item_name[0] = "fuel_level_input";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						// A*100/255
-						this.result_item_value_number[0] = (float) (((char) this.bytes_return[0]) * 100.0 / 255.0);
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
 				case 0x41:
 					// for details refer to
 					// http://en.wikipedia.org/wiki/OBD-II_PIDs#Mode_1_PID_41
 
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						item_idx = -1;
 
 						// check b0
@@ -2791,145 +2965,11 @@ public class OBDReader {
 					}
 					break;
 
-				case 0x51:
-					this.result_item_name[0] = "fuel_type";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						this.result_item_value_number[0] = (float) (this.bytes_return[0]);
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x10:
-					this.result_item_name[0] = "maf_air_flow_rate";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						// ((A*256)+B) / 100
-						this.result_item_value_number[0] = (float) (((char) (this.bytes_return[0]) * 256 + (char) (this.bytes_return[1])) / 100.0);
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x11:
-					this.result_item_name[0] = "throttle_position";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						// A*100/255
-						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]) * 100.0 / 255.0);
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x0a:
-					this.result_item_name[0] = "fuel_pressure";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						// A*3
-						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]) * 3);
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x0b:
-					this.result_item_name[0] = "intake_manifold_absolute_pressure";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						// A
-						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]));
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x0c:
-					this.result_item_name[0] = "engine_rpm";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						// ((A*256)+B)/4
-						this.result_item_value_number[0] = (float) (((char) (this.bytes_return[0]) * 256 + (char) (this.bytes_return[1])) / 4.0);
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x0d:
-					this.result_item_name[0] = "vehicle_speed";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						// A
-						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]));
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x0e:
-					this.result_item_name[0] = "timing_advance";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						// (A-128)/2
-						this.result_item_value_number[0] = (float) (((char) (this.bytes_return[0]) - 128) / 2.0);
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
-				case 0x0f:
-					this.result_item_name[0] = "intake_air_temperature";
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_type[0] = 0;
-
-						// A-40
-						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]) - 40);
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
 				case 0x02:
 					this.result_item_name[0] = "freeze_dtc";
 					this.result_item_value_type[0] = 1;
 
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						this.result_item_value_string[0] = convertToDTC(this.bytes_return);
 					} else {
 						this.result_item_value_type[0] = 2; // error
@@ -2938,19 +2978,6 @@ public class OBDReader {
 					}
 					break;
 
-				case 0x1c:
-					this.result_item_name[0] = "standards";
-					this.result_item_value_type[0] = 0;
-
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_value_number[0] = (float) this.bytes_return[0];
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
 				default:
 					this.result_item_value_type[0] = 2; // error
 					this.result_item_value_string[0] = "invalid response";
@@ -2964,7 +2991,8 @@ public class OBDReader {
 				if ((this.bytes_return != null)
 						&& (this.bytes_return.length > 0)
 						&& ((this.bytes_return.length % 2) == 0)) {
-					// fill actual bytes number
+					// fill actual bytes number of this response, pidDef
+					// table is shared and keep variable length
 					this.bytes_number = this.bytes_return.length;
 
 					this.result_item_name[0] = "dtcs";
@@ -2997,45 +3025,8 @@ public class OBDReader {
 				// http://en.wikipedia.org/wiki/OBD-II_PIDs#Mode_09
 
 				switch (this.pid) {
-				case 0x00:
-					if (this.bytes_return.length == this.bytes_number) {
-						this.result_item_name[0] = "supported_pids";
-						this.result_item_value_type[0] = 1;
-						this.result_item_value_string[0] = "";
-
-						// check byte A
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[0] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 1);
-
-						// check byte B
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[1] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 9);
-
-						// check byte C
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[2] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 17);
-
-						// check byte D
-						for (int i = 0; i < 8; i++)
-							if ((this.bytes_return[3] & (0x1 << (7 - i))) != 0)
-								this.result_item_value_string[0] += String
-										.format("%02x ", i + 25);
-
-					} else {
-						this.result_item_value_type[0] = 2; // error
-						this.result_item_value_string[0] = "invalid response";
-						return -1;
-					}
-					break;
-
 				case 0x01:
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						this.result_item_name[0] = "vin_message_count";
 						this.result_item_value_type[0] = 0;
 						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]));
@@ -3047,7 +3038,7 @@ public class OBDReader {
 					break;
 
 				case 0x02:
-					if (this.bytes_return.length >= this.bytes_number) {
+					if (this.bytes_return.length >= def.bytes_number) {
 						this.result_item_name[0] = "vin";
 						this.result_item_value_type[0] = 1;
 						try {
@@ -3064,7 +3055,7 @@ public class OBDReader {
 					break;
 
 				case 0x03:
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						this.result_item_name[0] = "calibration_id_message_count";
 						this.result_item_value_type[0] = 0;
 						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]));
@@ -3076,7 +3067,7 @@ public class OBDReader {
 					break;
 
 				case 0x04:
-					if (this.bytes_return.length <= this.bytes_number) {
+					if (this.bytes_return.length <= def.bytes_number) {
 						this.result_item_name[0] = "calibration_id";
 						this.result_item_value_type[0] = 1;
 						try {
@@ -3093,7 +3084,7 @@ public class OBDReader {
 					break;
 
 				case 0x05:
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						this.result_item_name[0] = "cvn_message_count";
 						this.result_item_value_type[0] = 0;
 						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]));
@@ -3105,7 +3096,7 @@ public class OBDReader {
 					break;
 
 				case 0x06:
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						this.result_item_name[0] = "cvn";
 						this.result_item_value_type[0] = 1;
 
@@ -3121,7 +3112,7 @@ public class OBDReader {
 					break;
 
 				case 0x07:
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						this.result_item_name[0] = "in_use_performance_tracking_message_count";
 						this.result_item_value_type[0] = 0;
 						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]));
@@ -3133,7 +3124,7 @@ public class OBDReader {
 					break;
 
 				case 0x08:
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						this.result_item_name[0] = "in_use_performance_tracking";
 						this.result_item_value_type[0] = 1;
 
@@ -3152,7 +3143,7 @@ public class OBDReader {
 					break;
 
 				case 0x09:
-					if (this.bytes_return.length == this.bytes_number) {
+					if (this.bytes_return.length == def.bytes_number) {
 						this.result_item_name[0] = "ecu_name_message_count";
 						this.result_item_value_type[0] = 0;
 						this.result_item_value_number[0] = (float) ((char) (this.bytes_return[0]));
@@ -3164,7 +3155,7 @@ public class OBDReader {
 					break;
 
 				case 0x0a:
-					if (this.bytes_return.length <= this.bytes_number) {
+					if (this.bytes_return.length <= def.bytes_number) {
 						this.result_item_name[0] = "ecu_name";
 						this.result_item_value_type[0] = 1;
 						try {
@@ -3242,7 +3233,7 @@ public class OBDReader {
 		 * @return the formula
 		 */
 		public final String[] getFormula() {
-			return formula;
+			return def.formula;
 		}
 
 		/**
@@ -3262,7 +3253,7 @@ public class OBDReader {
 		/**
 		 * @return the result_item_value_number
 		 */
-		public final Float[] getResult_item_value_number() {
+		public final float[] getResult_item_value_number() {
 			return result_item_value_number;
 		}
 
@@ -3270,9 +3261,42 @@ public class OBDReader {
 		 * @return the result_item_value_string
 		 */
 		public final String[] getResult_item_value_string() {
+			// render supported PIDs as "01 03 0c " when asked
+			if ((def.decoder == pidDef.bitmapDecoder)
+					&& (result_item_value_type != null)
+					&& (result_item_value_type[0] == 1)
+					&& (result_item_value_string[0] == null)) {
+				StringBuilder sb = new StringBuilder(32 * 3);
+
+				for (int i = 0; i < 32; i++) {
+					if ((supported_bits & (0x80000000 >>> i)) != 0) {
+						int p = this.pid + i + 1;
+						sb.append(Character.forDigit((p >> 4) & 0xf, 16));
+						sb.append(Character.forDigit(p & 0xf, 16));
+						sb.append(' ');
+					}
+				}
+				result_item_value_string[0] = sb.toString();
+			}
+
 			return result_item_value_string;
 		}
 
+		/**
+		 * @return the supported PIDs bitmap
+		 */
+		public final int getSupported_bits() {
+			return supported_bits;
+		}
+
+		// @description check bitmap of supported PIDs response
+		public final boolean isPidSupported(int pid) {
+			int off = pid - this.pid - 1;
+
+			return (off >= 0) && (off < 32)
+					&& ((supported_bits & (0x80000000 >>> off)) != 0);
+		}
+
 		/**
 		 * @return the tags
 		 */
@@ -3302,6 +3326,41 @@ public class OBDReader {
 		public void setTimeout(long timeout) {
 			this.timeout = timeout;
 		}
+
+		/**
+		 * @return the seq
+		 */
+		public int getSeq() {
+			return seq;
+		}
+
+		/**
+		 * @param seq
+		 *            the seq to set
+		 */
+		public void setSeq(int seq) {
+			this.seq = seq;
+		}
+
+		/**
+		 * @return the prio
+		 */
+		public int getPrio() {
+			return prio;
+		}
+
+		/**
+		 * @param prio
+		 *            the prio to set
+		 */
+		public void setPrio(int prio) {
+			this.prio = prio;
+		}
+
+		// @description chain response callback, like scheduler or cache
+		void setResCb(responseCallback resCb) {
+			this.resCb = resCb;
+		}
 	}
 
 	// @description send OBD2 query with PID and get response
@@ -3309,6 +3368,10 @@ public class OBDReader {
 	// @return variable data bytes
 	public interface queryResponse {
 		public int send(final pidDesc desc);
+
+		// @description send same mode PIDs packed in batched query
+		// notes: each pidDesc get own response callback
+		public int sendBatch(final List<pidDesc> descs);
 	}
 
 	public interface responseCallback {
@@ -3318,8 +3381,15 @@ public class OBDReader {
 	// @description inject OBD2 query/response implementation
 	public OBDReader(queryResponse query) {
 		this.query = query;
-		this.cache_supported_pids = new Hashtable<String, ArrayList<Integer>>();
-		this.cache_params = new Hashtable<String, cache_param_t>();
+		this.supported_pids = new SupportedPids();
+		this.pid_cache = new PidCache();
+	}
+
+	// @description inject query implementation and polling planner loop
+	public OBDReader(queryResponse query, ELM327EventLoop loop) {
+		this(query);
+		this.planner = new PollingPlanner(query, loop, supported_pids);
+		this.sample_pool = new SamplePool();
 	}
 
 	// @description general OBD2 query/response 
@@ -3340,35 +3410,162 @@ public class OBDReader {
 		}
 	}
 
-	public int executeQuery(int mode, int pid, final executeQueryCallback cb) {
-		pidDesc desc;
-		try {
-			desc = new pidDesc(mode, pid, new responseCallback() {
+	// @description batched OBD2 query/response
+	// notes: supported PIDs of same mode are packed in batched query, others are
+	// sent one by one. cb is called once per query like executeQuery
+	public int executeQuery(List<String> qs, final executeQueryCallback cb) {
+		responseCallback[] cbs = new responseCallback[qs.size()];
+		responseCallback rc = executeQueryResponse(cb);
 
-				@Override
-				public void onResponse(int error, pidDesc desc) {
-					// convert response to useful information
-					if ((error != 0) || (desc.convertToUseful() != 0)) {
-						cb.cb(-1, null);
-						return;
+		for (int i = 0; i < cbs.length; i++)
+			cbs[i] = rc;
+
+		return batchQuery(qs, cbs);
+	}
+
+	// @description send queries packed by mode with own response callback
+	// notes: failed query got onResponse(-1, null)
+	private int batchQuery(List<String> qs, responseCallback[] cbs) {
+		// 1.
+		// group mode 01/02 supported PIDs by mode
+		List<pidDesc> batch01 = new ArrayList<pidDesc>();
+		List<pidDesc> batch02 = new ArrayList<pidDesc>();
+		int ret = 0;
+
+		for (int i = 0; i < qs.size(); i++) {
+			String qstr = qs.get(i);
+			responseCallback rc = cbs[i];
+
+			if ((qstr == null) || !qstr.matches("[0-9A-Fa-f]{4}")) {
+				Log.w(TAG, "invalid query mode:pid");
+				rc.onResponse(-1, null);
+				ret = -1;
+				continue;
+			}
+			int mode = Integer.parseInt(qstr.substring(0, 2), 16);
+			int pid  = Integer.parseInt(qstr.substring(2, 4), 16);
+
+			// unsupported PID fail fast
+			if (!supported_pids.admit(mode, pid)) {
+				rc.onResponse(-1, null);
+				ret = -1;
+				continue;
+			}
+
+			// fresh cached response
+			PidCache.entry_t entry = pid_cache.entry(mode, pid);
+			pidDesc cd = (entry != null) ? entry.getFresh() : null;
+			if (cd != null) {
+				rc.onResponse(0, cd);
+				continue;
+			}
+
+			pidDesc desc;
+			try {
+				desc = new pidDesc(mode, pid, rc);
+			} catch (Exception e) {
+				rc.onResponse(-1, null);
+				ret = -1;
+				continue;
+			}
+
+			if (((mode == 0x01) || (mode == 0x02)) && isBatchPid(mode, pid)
+					&& (desc.getBytes_number() > 0)) {
+				// single flight, same PID in flight got same response
+				if (entry.attach(desc.resCb)) {
+					desc.setResCb(entry);
+					((mode == 0x01) ? batch01 : batch02).add(desc);
+				}
+				continue;
+			}
+
+			if (cachedQuery(desc) != 0) {
+				rc.onResponse(-1, null);
+				ret = -1;
+			}
+		}
+
+		// 2.
+		// send batched query
+		if ((batch01.size() > 0) && (sendBatch(batch01) != 0)) {
+			ret = -1;
+		}
+		if ((batch02.size() > 0) && (sendBatch(batch02) != 0)) {
+			ret = -1;
+		}
+
+		return ret;
+	}
+
+	// @description send batched query of in-flight PIDs
+	// notes: on failure each pidDesc got error response, so waiters attached
+	// to it are released too
+	private int sendBatch(List<pidDesc> batch) {
+		int ret = (batch.size() == 1) ? query.send(batch.get(0)) : query.sendBatch(batch);
+
+		if (ret != 0) {
+			for (int i = 0; i < batch.size(); i++)
+				batch.get(i).resCb.onResponse(-1, batch.get(i));
+		}
+
+		return ret;
+	}
+
+	// @description check if PID can be packed in batched query
+	// notes: only PIDs known as supported by getSupportedPIDs are packed, and
+	// supported PIDs are retrieved in background at first time
+	private boolean isBatchPid(int mode, int pid) {
+		if (!supported_pids.isKnown(mode)) {
+			if (supported_pids.beginScan(mode)) {
+				getSupportedPids(mode, 0x00, new int[8], new getSupportedPIDsCallback() {
+
+					@Override
+					public void cb(int error, List<Integer> pids) {
+						Log.d(TAG, "batch query supported PIDs:" + pids);
 					}
 
-					// let upper application parse the result
-					// item_value_type: 0 - number(float), 1 - string, 2 - error
-					if (desc.result_item_value_type[0] != 2) {
-						cb.cb(0, desc);
-						
-						// cache real time desc
-						if (desc.getMode() == 0x01) {
-							cache_params.put("executeQuery@"+String.format("%02X%02X", desc.getMode(), desc.getPid()),
-									new cache_param_t(System.currentTimeMillis(), desc));
-						}
-					} else {
-						cb.cb(-1, null);
+				});
+			}
+			return false;
+		}
+
+		return supported_pids.isSupported(mode, pid);
+	}
+
+	// @description executeQuery response to callback
+	private responseCallback executeQueryResponse(final executeQueryCallback cb) {
+		return new responseCallback() {
+
+			@Override
+			public void onResponse(int error, pidDesc desc) {
+				// convert response to useful information
+				if ((error != 0) || (desc.convertToUseful() != 0)) {
+					cb.cb(-1, null);
+					return;
+				}
+
+				// let upper application parse the result
+				// item_value_type: 0 - number(float), 1 - string, 2 - error
+				if (desc.result_item_value_type[0] != 2) {
+					// record batched response too
+					PidCache.entry_t e = pid_cache.entry(desc.getMode(), desc.getPid());
+					if (e != null) {
+						e.put(desc);
 					}
+
+					cb.cb(0, desc);
+				} else {
+					cb.cb(-1, null);
 				}
+			}
 
-			});
+		};
+	}
+
+	public int executeQuery(int mode, int pid, final executeQueryCallback cb) {
+		pidDesc desc;
+		try {
+			desc = new pidDesc(mode, pid, executeQueryResponse(cb));
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			// /e.printStackTrace();
@@ -3376,28 +3573,196 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache real time desc
-		if ((mode == 0x01) && 
-			cache_params.containsKey("executeQuery@"+String.format("%02X%02X", mode, pid))) {
-			
-			long now = System.currentTimeMillis();
-			long last = cache_params.get("executeQuery@"+String.format("%02X%02X", mode, pid)).getTime();
-			pidDesc cd = (pidDesc) cache_params.get("executeQuery@"+String.format("%02X%02X", mode, pid)).getValue();
+		if (cachedQuery(desc) != 0) {
+			cb.cb(-1, null);
+			return -1;
+		}
+
+		return 0;
+	}
+
+	// @description send query through PID cache
+	// notes: fresh cached response is replied at once, concurrent query of
+	// same mode&pid wait on the in-flight one and got same response
+	// @return 0 - replied or sent, -1 - send fail and desc callback is not called
+	private int cachedQuery(final pidDesc desc) {
+		// unsupported PID fail fast
+		if (!supported_pids.admit(desc.getMode(), desc.getPid())) {
+			return -1;
+		}
+
+		PidCache.entry_t e = pid_cache.entry(desc.getMode(), desc.getPid());
+		if (e == null) {
+			return query.send(desc);
+		}
+
+		pidDesc cd = e.getFresh();
+		if (cd != null) {
+			desc.resCb.onResponse(0, cd);
+			return 0;
+		}
+
+		if (!e.attach(desc.resCb)) {
+			// coalesced into in-flight query
+			return 0;
+		}
+
+		// entry fan out response to all waiters
+		responseCallback cb = desc.resCb;
+		desc.setResCb(e);
+		if (query.send(desc) != 0) {
+			e.fail(cb);
+			return -1;
+		}
+
+		return 0;
+	}
+
+	// @description on-demand getter query, served before telemetry sampling
+	private int interactiveQuery(final pidDesc desc) {
+		if ((desc.getMode() == 0x01) && (desc.getPrio() == QueryScheduler.PRIO_AUTO)) {
+			desc.setPrio(QueryScheduler.PRIO_INTERACTIVE);
+		}
+
+		return cachedQuery(desc);
+	}
 
-			// check timeout / 3
-			if ((now < (last + cache_timeout / 3)) && (now > last)) {
-				Log.d(TAG, "use cached realtime pidDesc");
-				cb.cb(0, cd);
-				return 0;
+	// @description converted response as future, like executeQuery
+	// notes: future is the response callback, no per query listener class
+	private final class pidFuture extends QueryFuture<pidDesc> implements
+			responseCallback {
+
+		@Override
+		public void onResponse(int error, pidDesc desc) {
+			// item_value_type: 0 - number(float), 1 - string, 2 - error
+			if ((error != 0) || (desc.convertToUseful() != 0)
+					|| (desc.result_item_value_type[0] == 2)) {
+				complete(-1, null);
+				return;
 			}
-		} else {
-			if (query.send(desc) != 0) {
-				cb.cb(-1, null);
-				return -1;
+
+			// record batched response too
+			PidCache.entry_t e = pid_cache.entry(desc.getMode(), desc.getPid());
+			if (e != null) {
+				e.put(desc);
 			}
+
+			complete(0, desc);
 		}
 
-		return 0;
+	}
+
+	// @description query mode&pid as composable future
+	// @return future of converted pidDesc, failed at once on send fail
+	public QueryFuture<pidDesc> query(int mode, int pid) {
+		pidFuture f = new pidFuture();
+		pidDesc desc;
+
+		try {
+			desc = new pidDesc(mode, pid, f);
+		} catch (Exception e) {
+			f.complete(-1, null);
+			return f;
+		}
+
+		if (interactiveQuery(desc) != 0) {
+			f.complete(-1, null);
+		}
+
+		return f;
+	}
+
+	// @description query "mmpp" list in batched queries as one future
+	// @return future of pidDesc list in order of qs, failed one is null
+	public QueryFuture<List<pidDesc>> queryAll(List<String> qs) {
+		List<QueryFuture<pidDesc>> fs = new ArrayList<QueryFuture<pidDesc>>(qs.size());
+		responseCallback[] cbs = new responseCallback[qs.size()];
+
+		for (int i = 0; i < cbs.length; i++) {
+			pidFuture f = new pidFuture();
+			fs.add(f);
+			cbs[i] = f;
+		}
+		batchQuery(qs, cbs);
+
+		return QueryFuture.all(fs);
+	}
+
+	// @description poll mode&pid at rate, latest sample pushed on event loop
+	// notes: subscriber must be quick, slow one use executor overload
+	// @return null without polling planner or PID can't be polled
+	public PidStream subscribe(int mode, int pid, double hz,
+			PidStream.subscriber sub) {
+		List<String> qs = new ArrayList<String>(1);
+		qs.add(String.format("%02X%02X", mode, pid));
+
+		return subscribe(qs, hz, 1, PidStream.POLICY_LATEST, null, sub);
+	}
+
+	// @description long-lived subscription of "mmpp" list at rate
+	// notes: streams of same PID share one polling plan at the highest rate
+	// @param capacity - samples buffered for slow subscriber
+	// @param policy - PidStream.POLICY_xxx when buffer is full
+	// @param executor - push thread, null push on event loop thread
+	// @param sub - null to pull by PidStream.poll/take
+	// @return null without polling planner or any PID can't be polled
+	public PidStream subscribe(List<String> qs, double hz, int capacity,
+			int policy, Executor executor, PidStream.subscriber sub) {
+		if (planner == null) {
+			Log.w(TAG, "subscribe without event loop");
+			return null;
+		}
+
+		int[] modes = new int[qs.size()];
+		int[] pids = new int[qs.size()];
+		for (int i = 0; i < qs.size(); i++) {
+			String qstr = qs.get(i);
+
+			if ((qstr == null) || !qstr.matches("[0-9A-Fa-f]{4}")) {
+				Log.w(TAG, "invalid query mode:pid");
+				return null;
+			}
+			modes[i] = Integer.parseInt(qstr.substring(0, 2), 16);
+			pids[i]  = Integer.parseInt(qstr.substring(2, 4), 16);
+		}
+
+		PidStream stream = new PidStream(planner, sample_pool, modes, pids,
+				capacity, policy, executor, sub);
+		for (int i = 0; i < pids.length; i++) {
+			// streams share top priority, rate tells them apart
+			if (planner.request(modes[i], pids[i], hz, 0, stream) != 0) {
+				stream.cancel();
+				return null;
+			}
+		}
+
+		return stream;
+	}
+
+	// @description PID cache to tune TTL
+	public PidCache getPidCache() {
+		return pid_cache;
+	}
+
+	// @description supported PID bitmap to bind VIN and store
+	public SupportedPids getSupportedPidIndex() {
+		return supported_pids;
+	}
+
+	// @description check PID against supported PID bitmap
+	// @return false only if PID is known as unsupported
+	public boolean isPidSupported(int mode, int pid) {
+		return supported_pids.isSupported(mode, pid);
+	}
+
+	// @description pool of subscription samples, null without event loop
+	public SamplePool getSamplePool() {
+		return sample_pool;
+	}
+
+	// @description polling planner, null without event loop
+	public PollingPlanner getPlanner() {
+		return planner;
 	}
 
 	// @description get DTC
@@ -3469,6 +3834,8 @@ public class OBDReader {
 					// as string
 					if ((desc.result_item_value_type[0] == 0)
 							&& (desc.result_item_value_number[0] == 0)) {
+						// monitor status and distance are reset
+						pid_cache.invalidate();
 						cb.cb(0);
 					} else {
 						cb.cb(-1);
@@ -3516,15 +3883,13 @@ public class OBDReader {
 					// item_value_type: 0 - number(float), 1 - string, 2 - error
 					// as string
 					if (desc.result_item_value_type[0] == 1) {
+						// supported PIDs bitmap is kept per vehicle
+						supported_pids.setVin(desc.result_item_value_string[0]);
+
 						cb.cb(0, desc.result_item_value_string[0],
 								desc.result_item_value_string[0].substring(0, 3),
 								desc.result_item_value_string[0].substring(3, 9),
 								desc.result_item_value_string[0].substring(9, 17));
-
-						// cache it
-						cache_params.put("GetVIN", 
-								new cache_param_t(System.currentTimeMillis(),
-										desc.result_item_value_string[0]));
 					} else {
 						cb.cb(-1, null, null, null, null);
 					}
@@ -3538,18 +3903,9 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache !!!
-		if (cache_params.containsKey("GetVIN")) {
-			String cache_vin = (String) cache_params.get("GetVIN").getValue();
-			cb.cb(0, cache_vin, 
-					cache_vin.substring(0, 3), 
-					cache_vin.substring(3, 9), 
-					cache_vin.substring(9, 17));
-		} else {
-			if (query.send(desc) != 0) {
-				cb.cb(-1, null, null, null, null);
-				return -1;
-			}
+		if (interactiveQuery(desc) != 0) {
+			cb.cb(-1, null, null, null, null);
+			return -1;
 		}
 
 		return 0;
@@ -3565,7 +3921,7 @@ public class OBDReader {
 			final getFuelInputLevelCallback cb) {
 		pidDesc desc;
 		try {
-			desc = new pidDesc(realtime ? 0x01 : 0x2, 0x00,
+			desc = new pidDesc(realtime ? 0x01 : 0x2, 0x2f,
 					new responseCallback() {
 
 				@Override
@@ -3581,13 +3937,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
-
-						// cache real time
-						if (realtime) {
-							cache_params.put("getFuelInputLevel", 
-									new cache_param_t(System.currentTimeMillis(), desc.result_item_value_number[0].intValue()));
-						} 
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -3601,21 +3951,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache
-		if (realtime && cache_params.containsKey("getFuelInputLevel")) {
-			long now = System.currentTimeMillis();
-			long last = cache_params.get("getFuelInputLevel").getTime();
-			float level = (Float) cache_params.get("getFuelInputLevel").getValue();
-
-			// check timeout
-			if ((now < (last + cache_timeout)) && (now > last)) {
-				Log.d(TAG, "use cached getFuelInputLevel");
-				cb.cb(0, level, level+desc.units[0]);
-				return 0;
-			}
-		}
-
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -3648,10 +3984,8 @@ public class OBDReader {
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0,
-								desc.result_item_value_number[0]
-										.intValue(),
-										desc.result_item_value_number[0]
-												.intValue() + desc.units[0]);
+								(int) desc.result_item_value_number[0],
+										(int) desc.result_item_value_number[0] + desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -3665,7 +3999,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -3698,13 +4032,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
-
-						// cache real time 
-						if (realtime) {
-							cache_params.put("engine_rpm", 
-									new cache_param_t(System.currentTimeMillis(), desc.result_item_value_number[0]));
-						}
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -3718,21 +4046,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check real time cache
-		if (realtime && cache_params.containsKey("engine_rpm")) {
-			long now = System.currentTimeMillis();
-			long last = cache_params.get("engine_rpm").getTime();
-			float rpm = (Float) cache_params.get("engine_rpm").getValue();
-
-			// check timeout
-			if ((now < (last + cache_timeout)) && (now > last)) {
-				Log.d(TAG, "use cached engine rpm");
-				cb.cb(0, rpm, rpm+desc.units[0]);
-				return 0;
-			}
-		}
-
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -3765,17 +4079,8 @@ public class OBDReader {
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0,
-								desc.result_item_value_number[0]
-										.intValue(),
-										desc.result_item_value_number[0]
-												.intValue() + desc.units[0]);
-
-						// cache it
-						if (realtime) {
-							cache_params.put("getFuelPressure", 
-									new cache_param_t(System.currentTimeMillis(), 
-											desc.result_item_value_number[0].intValue()));
-						} 
+								(int) desc.result_item_value_number[0],
+										(int) desc.result_item_value_number[0] + desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -3789,21 +4094,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache
-		if (realtime && cache_params.containsKey("getFuelPressure")) {
-			long now = System.currentTimeMillis();
-			long last = cache_params.get("getFuelPressure").getTime();
-			int pressure = (Integer) cache_params.get("getFuelPressure").getValue();
-
-			// check timeout
-			if ((now < (last + cache_timeout)) && (now > last)) {
-				Log.d(TAG, "use cached getFuelPressure");
-				cb.cb(0, pressure, pressure+desc.units[0]);
-				return 0;
-			}
-		}
-
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -3836,10 +4127,8 @@ public class OBDReader {
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0,
-								desc.result_item_value_number[0]
-										.intValue(),
-										desc.result_item_value_number[0]
-												.intValue() + desc.units[0]);
+								(int) desc.result_item_value_number[0],
+										(int) desc.result_item_value_number[0] + desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -3853,7 +4142,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -3887,7 +4176,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -3901,7 +4190,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -3934,18 +4223,8 @@ public class OBDReader {
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0,
-								desc.result_item_value_number[0]
-										.intValue(),
-										desc.result_item_value_number[0]
-												.intValue() + desc.units[0]);
-
-						// cache it
-						if (realtime) {
-							cache_params.put("getEngineCoolantTemperature", 
-									new cache_param_t(System.currentTimeMillis(),
-											desc.result_item_value_number[0].intValue()));
-
-						}
+								(int) desc.result_item_value_number[0],
+										(int) desc.result_item_value_number[0] + desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -3960,21 +4239,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache
-		if (realtime && cache_params.containsKey("getEngineCoolantTemperature")) {
-			long now = System.currentTimeMillis();
-			long last = cache_params.get("getEngineCoolantTemperature").getTime();
-			int temp = (Integer) cache_params.get("getEngineCoolantTemperature").getValue();
-
-			// check timeout
-			if ((now < (last + cache_timeout)) && (now > last)) {
-				Log.d(TAG, "use cached getEngineCoolantTemperature");
-				cb.cb(0, temp, temp+desc.units[0]);
-				return 0;
-			}
-		}
-
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4007,18 +4272,8 @@ public class OBDReader {
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0,
-								desc.result_item_value_number[0]
-										.intValue(),
-										desc.result_item_value_number[0]
-												.intValue() + desc.units[0]);
-
-						// cache it
-						if (realtime) {
-							cache_params.put("getEngineOilTemperature", 
-									new cache_param_t(System.currentTimeMillis(),
-											desc.result_item_value_number[0].intValue()));
-
-						}
+								(int) desc.result_item_value_number[0],
+										(int) desc.result_item_value_number[0] + desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4033,21 +4288,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache
-		if (realtime && cache_params.containsKey("getEngineOilTemperature")) {
-			long now = System.currentTimeMillis();
-			long last = cache_params.get("getEngineOilTemperature").getTime();
-			int temp = (Integer) cache_params.get("getEngineOilTemperature").getValue();
-
-			// check timeout
-			if ((now < (last + cache_timeout)) && (now > last)) {
-				Log.d(TAG, "use cached getEngineOilTemperature");
-				cb.cb(0, temp, temp+desc.units[0]);
-				return 0;
-			}
-		}
-
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4081,14 +4322,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
-
-						// cache it
-						if (realtime) { 
-							cache_params.put("getEngineFuelRate", 
-									new cache_param_t(System.currentTimeMillis(),
-											desc.result_item_value_number[0]));
-						} 
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4103,21 +4337,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache
-		if (realtime && cache_params.containsKey("getEngineFuelRate")) {
-			long now = System.currentTimeMillis();
-			long last = cache_params.get("getEngineFuelRate").getTime();
-			float rate = (Float) cache_params.get("getEngineFuelRate").getValue();
-
-			// check timeout
-			if ((now < (last + cache_timeout)) && (now > last)) {
-				Log.d(TAG, "use cached getEngineFuelRate");
-				cb.cb(0, rate, rate+desc.units[0]);
-				return 0;
-			}
-		}
-
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4151,7 +4371,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4165,7 +4385,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4198,10 +4418,8 @@ public class OBDReader {
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0,
-								desc.result_item_value_number[0]
-										.intValue(),
-										desc.result_item_value_number[0]
-												.intValue() + desc.units[0]);
+								(int) desc.result_item_value_number[0],
+										(int) desc.result_item_value_number[0] + desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4215,7 +4433,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4258,7 +4476,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, null);
 			return -1;
 		}
@@ -4292,7 +4510,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4306,7 +4524,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4321,17 +4539,14 @@ public class OBDReader {
 		public void cb(int error, List<Integer> pids);
 	}
 
+	// @description scan supported PIDs bitmap group by group
+	// notes: caller own the scan by SupportedPids.beginScan, bitmap is
+	// published to supported PIDs index when the last group is answered
 	private void getSupportedPids(final int mode, final int pid,
-			final getSupportedPIDsCallback cb) {
+			final int[] words, final getSupportedPIDsCallback cb) {
 		final int xmode = (mode == 2) ? 1 : mode;
 		final int xpid = (pid / 0x20) * 0x20;
 
-		final String k = String.format("%02X", mode);
-
-		if (!this.cache_supported_pids.containsKey(k)) {
-			this.cache_supported_pids.put(k, new ArrayList<Integer>());
-		}
-
 		// recursive retrieve all supported PIDs
 		pidDesc desc;
 		try {
@@ -4341,6 +4556,7 @@ public class OBDReader {
 				public void onResponse(int error, pidDesc desc) {
 					// convert response to useful information
 					if ((error != 0) || (desc.convertToUseful() != 0)) {
+						supported_pids.endScan(xmode, null);
 						cb.cb(-1, null);
 						return;
 					}
@@ -4348,31 +4564,33 @@ public class OBDReader {
 					// item_value_type: 0 - number(float), 1 - string, 2 - error
 					// as string
 					if ((desc.result_item_value_type[0] == 1)) {
-						// record PID
-						String[] pidstr = desc.result_item_value_string[0]
-								.split(" ");
-						for (int i = 0; i < pidstr.length; i++)
-							cache_supported_pids.get(k).add(
-									Integer.parseInt(pidstr[i], 16));
+						// record PID group from bitmap
+						words[xpid >> 5] = desc.getSupported_bits();
 
 						// check for next group PID recursively
-						if (cache_supported_pids.get(k).contains(0x20 + xpid)) {
-							getSupportedPids(xmode, xpid + 0x20, cb);
+						pidDef next = pidDef.get(xmode, xpid + 0x20);
+						if (desc.isPidSupported(xpid + 0x20) && (next != null)
+								&& (next.decoder == pidDef.bitmapDecoder)) {
+							getSupportedPids(xmode, xpid + 0x20, words, cb);
 						} else {
-							cb.cb(0, cache_supported_pids.get(k));
+							supported_pids.endScan(xmode, words);
+							cb.cb(0, supported_pids.list(xmode));
 						}
 					} else {
+						supported_pids.endScan(xmode, null);
 						cb.cb(-1, null);
 					}
 				}
 
 			});
 		} catch (Exception e) {
+			supported_pids.endScan(xmode, null);
 			cb.cb(-1, null);
 			return;
 		}
 
 		if (query.send(desc) != 0) {
+			supported_pids.endScan(xmode, null);
 			cb.cb(-1, null);
 			return;
 		}
@@ -4380,14 +4598,18 @@ public class OBDReader {
 	}
 
 	public int getSupportedPIDs(int mode, final getSupportedPIDsCallback cb) {
-		mode = (mode == 2) ? 1 : mode;
-
-		String k = String.format("%02X", mode);
+		if ((mode != 0x01) && (mode != 0x02) && (mode != 0x09)) {
+			cb.cb(-1, null);
+			return -1;
+		}
 
-		if (this.cache_supported_pids.containsKey(k)) {
-			cb.cb(0, this.cache_supported_pids.get(k));
+		List<Integer> pids = supported_pids.list(mode);
+		if (pids != null) {
+			cb.cb(0, pids);
 		} else {
-			getSupportedPids(mode, 0x00, cb);
+			// concurrent scan is harmless, last one publish bitmap
+			supported_pids.beginScan(mode);
+			getSupportedPids(mode, 0x00, new int[8], cb);
 		}
 
 		return 0;
@@ -4419,10 +4641,8 @@ public class OBDReader {
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0,
-								desc.result_item_value_number[0]
-										.intValue(),
-										desc.result_item_value_number[0]
-												.intValue() + desc.units[0]);
+								(int) desc.result_item_value_number[0],
+										(int) desc.result_item_value_number[0] + desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4436,7 +4656,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4465,14 +4685,9 @@ public class OBDReader {
 					// item_value_type: 0 - number(float), 1 - string, 2
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
-						int type = desc.result_item_value_number[0]
-								.intValue();
+						int type = (int) desc.result_item_value_number[0];
 
 						cb.cb(0, type, VehicleInfo.parseFueltype(type));
-
-						// cache it !!!
-						cache_params.put("getFuelType", 
-								new cache_param_t(System.currentTimeMillis(), type));
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4486,15 +4701,9 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache !!!
-		if (cache_params.containsKey("getFuelType")) {
-			int cache_fuel_type = (Integer) cache_params.get("getFuelType").getValue();
-			cb.cb(0, cache_fuel_type, VehicleInfo.parseFueltype(cache_fuel_type));
-		} else {
-			if (query.send(desc) != 0) {
-				cb.cb(-1, -1, null);
-				return -1;
-			}
+		if (interactiveQuery(desc) != 0) {
+			cb.cb(-1, -1, null);
+			return -1;
 		}
 
 		return 0;
@@ -4526,7 +4735,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4540,7 +4749,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4573,10 +4782,8 @@ public class OBDReader {
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0,
-								desc.result_item_value_number[0]
-										.intValue(),
-										desc.result_item_value_number[0]
-												.intValue() + desc.units[0]);
+								(int) desc.result_item_value_number[0],
+										(int) desc.result_item_value_number[0] + desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4590,7 +4797,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4625,8 +4832,8 @@ public class OBDReader {
 							&& (desc.result_item_name[1] == "dtc_cnt")
 							&& (desc.result_item_value_type[1] == 0)) {
 						cb.cb(0,
-								desc.result_item_value_number[1].intValue(),
-								desc.result_item_value_number[0].intValue() == 1);
+								(int) desc.result_item_value_number[1],
+								(int) desc.result_item_value_number[0] == 1);
 					} else {
 						cb.cb(-1, -1, false);
 					}
@@ -4640,7 +4847,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, false);
 			return -1;
 		}
@@ -4674,14 +4881,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
-
-						// cache it
-						if (realtime) {
-							cache_params.put("getMAFAirFlowRate", 
-									new cache_param_t(System.currentTimeMillis(),
-											desc.result_item_value_number[0]));
-						}
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4695,21 +4895,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache
-		if (realtime && cache_params.containsKey("getMAFAirFlowRate")) {
-			long now = System.currentTimeMillis();
-			long last = cache_params.get("getMAFAirFlowRate").getTime();
-			float maf = (Float) cache_params.get("getMAFAirFlowRate").getValue();
-
-			// check timeout
-			if ((now < (last + cache_timeout)) && (now > last)) {
-				Log.d(TAG, "use cached getMAFAirFlowRate");
-				cb.cb(0, maf, maf+desc.units[0]);
-				return 0;
-			}
-		}
-
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4743,7 +4929,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4757,7 +4943,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4791,7 +4977,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4805,7 +4991,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4839,7 +5025,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4853,7 +5039,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4887,7 +5073,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4901,7 +5087,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4935,7 +5121,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4949,7 +5135,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -4983,7 +5169,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -4997,7 +5183,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -5031,7 +5217,7 @@ public class OBDReader {
 					if (desc.result_item_value_type[0] == 0) {
 						cb.cb(0, desc.result_item_value_number[0],
 								desc.result_item_value_number[0]
-										+ desc.units[0]);
+										+ desc.def.units[0]);
 					} else {
 						cb.cb(-1, -1, null);
 					}
@@ -5045,7 +5231,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, -1, null);
 			return -1;
 		}
@@ -5081,12 +5267,12 @@ public class OBDReader {
 					// item_value_type: 0 - number(float), 1 - string, 2
 					// - error as string
 					if (desc.result_item_value_type[0] == 0) {
-						float[] torques = new float[desc.result_item_number];
-						String[] descs = new String[desc.result_item_number];
+						float[] torques = new float[desc.def.result_item_number];
+						String[] descs = new String[desc.def.result_item_number];
 
-						for (int i = 0; i < desc.result_item_number; i++) {
+						for (int i = 0; i < desc.def.result_item_number; i++) {
 							torques[i] = desc.result_item_value_number[i];
-							descs[i] = torques[i] + desc.units[i];
+							descs[i] = torques[i] + desc.def.units[i];
 						}
 
 						cb.cb(0, torques, descs);
@@ -5103,7 +5289,7 @@ public class OBDReader {
 			return -1;
 		}
 
-		if (query.send(desc) != 0) {
+		if (interactiveQuery(desc) != 0) {
 			cb.cb(-1, null, null);
 			return -1;
 		}
@@ -5134,13 +5320,8 @@ public class OBDReader {
 					// item_value_type: 0 - number(float), 1 - string, 2 - error
 					// as string
 					if (desc.result_item_value_type[0] == 0) {
-						int standard = desc.result_item_value_number[0].intValue();
+						int standard = (int) desc.result_item_value_number[0];
 						cb.cb(0, standard, VehicleInfo.parseStandard(standard));
-
-						// cache it
-						cache_params.put("getStandard", 
-								new cache_param_t(System.currentTimeMillis(),
-										standard));
 					} else {
 						cb.cb(-1, 0, null);
 					}
@@ -5154,15 +5335,9 @@ public class OBDReader {
 			return -1;
 		}
 
-		// check cache !!!
-		if (cache_params.containsKey("getStandard")) {
-			int cache_standard = (Integer) cache_params.get("getStandard").getValue();
-			cb.cb(0, cache_standard, VehicleInfo.parseStandard(cache_standard));
-		} else {
-			if (query.send(desc) != 0) {
-				cb.cb(-1, 0, null);
-				return -1;
-			}
+		if (interactiveQuery(desc) != 0) {
+			cb.cb(-1, 0, null);
+			return -1;
 		}
 
 		return 0;
@@ -0,0 +1,63 @@
+/**
+ * @description pending OBD2 query table
+ */
+package com.example.icar;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: each pidDesc carry its own pending flag, exactly one of response,
+ * timeout and failure path win the flag by CAS. Response is correlated by
+ * the in-flight command, so table only keep pending pidDesc for claimAll;
+ * winner of the flag remove it, insert and completion are both O(1)
+ * without global locking.
+ */
+public class PendingTable {
+	private static final String TAG = "PendingTable";
+
+	private static final AtomicIntegerFieldUpdater<OBDReader.pidDesc> PENDING =
+			AtomicIntegerFieldUpdater.newUpdater(OBDReader.pidDesc.class, "pending");
+
+	// pending pidDesc, pidDesc compare by identity
+	private final Set<OBDReader.pidDesc> pending;
+
+	public PendingTable() {
+		this.pending = Collections.newSetFromMap(
+				new ConcurrentHashMap<OBDReader.pidDesc, Boolean>());
+	}
+
+	// @description mark pidDesc pending and keep it
+	public void put(OBDReader.pidDesc desc) {
+		// kept before flag set, a claimable pidDesc is always in table
+		pending.add(desc);
+		PENDING.set(desc, 1);
+	}
+
+	// @description take pidDesc out of table if it's still pending
+	// @return true if caller own the completion of pidDesc
+	public boolean claim(OBDReader.pidDesc desc) {
+		if (PENDING.compareAndSet(desc, 1, 0)) {
+			pending.remove(desc);
+			return true;
+		}
+
+		return false;
+	}
+
+	// @description claim and remove all pending pidDesc, like on link down
+	// @param cb called with each claimed pidDesc
+	public void claimAll(OBDReader.responseCallback cb) {
+		for (OBDReader.pidDesc desc : pending) {
+			if (claim(desc)) {
+				cb.onResponse(-1, desc);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,289 @@
+/**
+ * @description per PID response cache with TTL and request coalescing
+ */
+package com.example.icar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: entry is keyed by (mode << 8) | pid like pidDef table. Fresh
+ * response is replied from cache, stale or missing one is queried once and
+ * concurrent requests of same mode&pid wait on the in-flight query.
+ * Only mode 1/2/9 are cached, DTC read/clear always go to adapter.
+ * Hit, coalesced and sent counters tell how much bus traffic is saved.
+ */
+public class PidCache {
+	private static final String TAG = "PidCache";
+
+	// TTL in ms, 0 - never cache, TTL_FOREVER - constant during session
+	public static final long TTL_DEFAULT = 1000;
+	public static final long TTL_FOREVER = Long.MAX_VALUE;
+
+	// @description cached response and waiters of one mode&pid
+	// notes: entry is the response callback of in-flight query
+	public static final class entry_t implements OBDReader.responseCallback {
+		private final PidCache cache;
+		private final int mode;
+		private final int pid;
+
+		// TTL in ms
+		private volatile long ttl;
+
+		// last good response, converted already
+		private volatile OBDReader.pidDesc desc;
+		private volatile long time;
+
+		// waiters of in-flight query, guarded by entry
+		private List<OBDReader.responseCallback> waiters;
+
+		private entry_t(PidCache cache, int mode, int pid, long ttl) {
+			this.cache = cache;
+			this.mode = mode;
+			this.pid = pid;
+			this.ttl = ttl;
+		}
+
+		// @description get response not elder than TTL
+		// @return null if nothing fresh
+		public OBDReader.pidDesc getFresh() {
+			OBDReader.pidDesc d = this.desc;
+
+			if ((d == null) || (ttl <= 0)) {
+				return null;
+			}
+			if ((ttl != TTL_FOREVER) && ((System.nanoTime() - time) / 1000000 >= ttl)) {
+				return null;
+			}
+
+			cache.hits.incrementAndGet();
+			return d;
+		}
+
+		// @description record response got out of cache path, like batched query
+		public void put(OBDReader.pidDesc d) {
+			if ((ttl > 0) && (d.convertToUseful() == 0)) {
+				this.time = System.nanoTime();
+				this.desc = d;
+			}
+		}
+
+		// @description wait on in-flight query
+		// @return true if caller has to send the query, false if coalesced
+		public synchronized boolean attach(OBDReader.responseCallback cb) {
+			if (waiters != null) {
+				waiters.add(cb);
+				cache.coalesced.incrementAndGet();
+				return false;
+			}
+
+			waiters = new ArrayList<OBDReader.responseCallback>(2);
+			waiters.add(cb);
+			cache.sent.incrementAndGet();
+			return true;
+		}
+
+		// @description give up in-flight query that can't be sent
+		// notes: cb is detached, other waiters got error
+		public void fail(OBDReader.responseCallback cb) {
+			List<OBDReader.responseCallback> ws;
+
+			synchronized (this) {
+				ws = waiters;
+				waiters = null;
+			}
+			if (ws == null) {
+				return;
+			}
+
+			for (int i = 0; i < ws.size(); i++) {
+				if (ws.get(i) != cb) {
+					ws.get(i).onResponse(-1, null);
+				}
+			}
+		}
+
+		// @description response of in-flight query, fan out to all waiters
+		@Override
+		public void onResponse(int error, OBDReader.pidDesc d) {
+			List<OBDReader.responseCallback> ws;
+
+			if (error == 0) {
+				put(d);
+			}
+
+			synchronized (this) {
+				ws = waiters;
+				waiters = null;
+			}
+			if (ws == null) {
+				return;
+			}
+
+			for (int i = 0; i < ws.size(); i++) {
+				try {
+					ws.get(i).onResponse(error, d);
+				} catch (Exception e) {
+					Log.e(TAG, "response callback exception:" + e);
+				}
+			}
+		}
+
+		/**
+		 * @return the mode
+		 */
+		public int getMode() {
+			return mode;
+		}
+
+		/**
+		 * @return the pid
+		 */
+		public int getPid() {
+			return pid;
+		}
+
+		/**
+		 * @return the ttl
+		 */
+		public long getTtl() {
+			return ttl;
+		}
+	}
+
+	// mode 0-9, pid 0-255, allocated once for cached modes
+	private final entry_t[] entries;
+
+	// replied from cache
+	private final AtomicLong hits;
+	// attached to in-flight query
+	private final AtomicLong coalesced;
+	// sent to adapter
+	private final AtomicLong sent;
+
+	public PidCache() {
+		this.entries = new entry_t[10 << 8];
+		this.hits = new AtomicLong();
+		this.coalesced = new AtomicLong();
+		this.sent = new AtomicLong();
+
+		for (int pid = 0; pid < 0x100; pid++) {
+			entries[(0x01 << 8) | pid] = new entry_t(this, 0x01, pid, TTL_DEFAULT);
+			entries[(0x02 << 8) | pid] = new entry_t(this, 0x02, pid, TTL_DEFAULT);
+			entries[(0x09 << 8) | pid] = new entry_t(this, 0x09, pid, TTL_FOREVER);
+		}
+
+		// fast changing
+		setRealtimeTtl(0x04, 200); // engine load
+		setRealtimeTtl(0x0b, 200); // intake manifold pressure
+		setRealtimeTtl(0x0c, 100); // engine rpm
+		setRealtimeTtl(0x0d, 200); // vehicle speed
+		setRealtimeTtl(0x0e, 200); // timing advance
+		setRealtimeTtl(0x10, 200); // MAF
+		setRealtimeTtl(0x11, 100); // throttle position
+		setRealtimeTtl(0x5e, 200); // engine fuel rate
+
+		// slow changing
+		setRealtimeTtl(0x05, 2000); // engine coolant temperature
+		setRealtimeTtl(0x0f, 2000); // intake air temperature
+		setRealtimeTtl(0x5c, 2000); // engine oil temperature
+		setRealtimeTtl(0x21, 10000); // distance with MIL on
+		setRealtimeTtl(0x2f, 30000); // fuel level
+		setRealtimeTtl(0x31, 10000); // distance since DTC cleared
+		setRealtimeTtl(0x33, 10000); // barometric pressure
+		setRealtimeTtl(0x46, 10000); // ambient air temperature
+		setRealtimeTtl(0x52, 30000); // ethanol fuel
+
+		// constant
+		setRealtimeTtl(0x1c, TTL_FOREVER); // OBD standard
+		setRealtimeTtl(0x51, TTL_FOREVER); // fuel type
+		setRealtimeTtl(0x63, TTL_FOREVER); // engine reference torque
+	}
+
+	private void setRealtimeTtl(int pid, long ttl) {
+		entries[(0x01 << 8) | pid].ttl = ttl;
+	}
+
+	// @description configure TTL of mode&pid
+	// @param ttl - ms, 0 disable cache, TTL_FOREVER for constant
+	// @return 0 on success, -1 if mode&pid is not cached
+	public int setTtl(int mode, int pid, long ttl) {
+		entry_t e = entry(mode, pid);
+
+		if (e == null) {
+			return -1;
+		}
+		e.ttl = ttl;
+
+		return 0;
+	}
+
+	// @description get entry of mode&pid in O(1)
+	// @return null if mode&pid is not cached
+	public entry_t entry(int mode, int pid) {
+		if ((mode < 0) || (mode > 9) || (pid < 0) || (pid > 0xff)) {
+			return null;
+		}
+
+		return entries[(mode << 8) | pid];
+	}
+
+	/**
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the coalesced
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return the sent
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	// @description ratio of queries coalesced into in-flight one
+	// @return coalesced / (coalesced + sent), 0 if nothing queried
+	public float getCoalescingRatio() {
+		long c = coalesced.get();
+		long n = c + sent.get();
+
+		return (n > 0) ? (float) c / n : 0;
+	}
+
+	// @description reset counters
+	public void resetStats() {
+		hits.set(0);
+		coalesced.set(0);
+		sent.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + hits.get() + " coalesced=" + coalesced.get()
+				+ " sent=" + sent.get() + " coalescing=" + getCoalescingRatio();
+	}
+
+	// @description drop cached responses, like after DTC cleared
+	public void invalidate() {
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] != null) {
+				entries[i].desc = null;
+			}
+		}
+	}
+
+}
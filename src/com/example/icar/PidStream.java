@@ -0,0 +1,252 @@
+/**
+ * @description PID subscription with bounded sample buffer
+ */
+package com.example.icar;
+
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: samples of subscribed PIDs come from PollingPlanner on event loop
+ * thread and are put in the stream own ring buffer, so the slowest
+ * subscriber never stall the bus or other streams. When buffer is full:
+ * - POLICY_LATEST: only latest sample of each PID is kept
+ * - POLICY_DROP_OLDEST: oldest sample is dropped
+ * - POLICY_BLOCK: stream is paused, planner skip its PIDs until consumer
+ *   take a sample; samples already on bus are still kept
+ * Samples are pushed to subscriber on executor one at a time in order,
+ * or pulled by poll/take without subscriber. Samples are pooled
+ * SamplePool.sample_t decoded straight from response bytes; consumer recycle
+ * each sample when done, dropped ones are recycled by stream.
+ */
+public class PidStream implements OBDReader.responseCallback,
+		PollingPlanner.pausable {
+	private static final String TAG = "PidStream";
+
+	public static final int POLICY_LATEST = 0;
+	public static final int POLICY_DROP_OLDEST = 1;
+	public static final int POLICY_BLOCK = 2;
+
+	// @description sample consumer
+	public interface subscriber {
+		// @param sample - owned by subscriber, recycle it when done
+		public void onSample(SamplePool.sample_t sample);
+	}
+
+	private final PollingPlanner planner;
+	private final SamplePool pool;
+	private final int[] modes;
+	private final int[] pids;
+	private final int capacity;
+	private final int policy;
+	private final Executor executor;
+	private final subscriber sub;
+
+	// ring buffer, room for samples on bus when paused, guarded by stream
+	private final SamplePool.sample_t[] ring;
+	private int head;
+	private int size;
+	private boolean draining;
+	private boolean cancelled;
+	private volatile boolean paused;
+
+	// samples dropped by policy, failed samples
+	private long dropped;
+	private long failed;
+
+	private final Runnable drainTask = new Runnable() {
+
+		@Override
+		public void run() {
+			drain();
+		}
+
+	};
+
+	// @param capacity - buffered samples, at least 1
+	// @param executor - push thread, null push on event loop thread
+	// @param sub - null to pull by poll/take
+	PidStream(PollingPlanner planner, SamplePool pool, int[] modes, int[] pids,
+			int capacity, int policy, Executor executor, subscriber sub) {
+		this.planner = planner;
+		this.pool = pool;
+		this.modes = modes;
+		this.pids = pids;
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		this.executor = executor;
+		this.sub = sub;
+		this.ring = new SamplePool.sample_t[this.capacity + pids.length];
+	}
+
+	@Override
+	public void onResponse(int error, OBDReader.pidDesc desc) {
+		SamplePool.sample_t sample = pool.acquire();
+
+		if ((error != 0) || (desc.toSample(sample) != 0)) {
+			sample.recycle();
+			synchronized (this) {
+				failed++;
+			}
+			return;
+		}
+
+		synchronized (this) {
+			if (cancelled) {
+				sample.recycle();
+				return;
+			}
+			offer(sample);
+			notifyAll();
+
+			if ((sub == null) || draining) {
+				return;
+			}
+			draining = true;
+		}
+
+		if (executor != null) {
+			executor.execute(drainTask);
+		} else {
+			drain();
+		}
+	}
+
+	// notes: call with lock held
+	private void offer(SamplePool.sample_t sample) {
+		if (policy == POLICY_LATEST) {
+			// replace pending sample of same PID
+			for (int i = 0; i < size; i++) {
+				int at = (head + i) % ring.length;
+				if ((ring[at].getMode() == sample.getMode())
+						&& (ring[at].getPid() == sample.getPid())) {
+					ring[at].recycle();
+					ring[at] = sample;
+					dropped++;
+					return;
+				}
+			}
+		}
+
+		if (size >= ((policy == POLICY_BLOCK) ? ring.length : capacity)) {
+			// drop oldest, paused stream overflow only by a bus race
+			ring[head].recycle();
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+			size--;
+			dropped++;
+		}
+		ring[(head + size) % ring.length] = sample;
+		size++;
+
+		if ((policy == POLICY_BLOCK) && (size >= capacity)) {
+			paused = true;
+		}
+	}
+
+	// @description take oldest sample, recycle it when done
+	// @return null if nothing buffered
+	public synchronized SamplePool.sample_t poll() {
+		if (size == 0) {
+			return null;
+		}
+
+		SamplePool.sample_t sample = ring[head];
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		size--;
+		if (size < capacity) {
+			paused = false;
+		}
+
+		return sample;
+	}
+
+	// @description wait for oldest sample, recycle it when done
+	// @return null if cancelled
+	public synchronized SamplePool.sample_t take() throws InterruptedException {
+		while ((size == 0) && !cancelled) {
+			wait();
+		}
+
+		return poll();
+	}
+
+	// notes: one drain at a time keep samples in order
+	private void drain() {
+		while (true) {
+			SamplePool.sample_t sample;
+
+			synchronized (this) {
+				sample = cancelled ? null : poll();
+				if (sample == null) {
+					draining = false;
+					return;
+				}
+			}
+
+			try {
+				sub.onSample(sample);
+			} catch (Exception e) {
+				Log.e(TAG, "subscriber exception:" + e);
+			}
+		}
+	}
+
+	// @description stop polling for this stream
+	public void cancel() {
+		synchronized (this) {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			paused = false;
+			while (size > 0) {
+				poll().recycle();
+			}
+			notifyAll();
+		}
+
+		for (int i = 0; i < pids.length; i++) {
+			planner.cancel(modes[i], pids[i], this);
+		}
+	}
+
+	@Override
+	public boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * @return the policy
+	 */
+	public int getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the buffered samples
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the dropped
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the failed
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+}
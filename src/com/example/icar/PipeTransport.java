@@ -0,0 +1,54 @@
+/**
+ * @description ELM327 transport over in-process pipes, like simulated adapter
+ */
+package com.example.icar;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: adapter side reads commands from getAdapterSource() and writes
+ * responses to getAdapterSink().
+ */
+public class PipeTransport extends NioTransport {
+	private static final String TAG = "PipeTransport";
+
+	private final Pipe toAdapter;
+	private final Pipe fromAdapter;
+
+	public PipeTransport() throws IOException {
+		this.toAdapter = Pipe.open();
+		this.fromAdapter = Pipe.open();
+	}
+
+	/**
+	 * @return the channel adapter side reads commands from
+	 */
+	public Pipe.SourceChannel getAdapterSource() {
+		return toAdapter.source();
+	}
+
+	/**
+	 * @return the channel adapter side writes responses to
+	 */
+	public Pipe.SinkChannel getAdapterSink() {
+		return fromAdapter.sink();
+	}
+
+	@Override
+	protected boolean openChannels() throws IOException {
+		rxChannel = fromAdapter.source();
+		txChannel = toAdapter.sink();
+
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "pipe";
+	}
+
+}
@@ -0,0 +1,497 @@
+/**
+ * @description rate monotonic PID polling planner
+ */
+package com.example.icar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: caller declare rate per PID, planner compile them into a repeating
+ * bus schedule of 100ms frames. Period of each PID is rounded to power of 2
+ * frames, harmonic periods can be packed up to full capacity. PIDs due in
+ * same frame are sent as one batched query. Capacity is measured as PIDs
+ * answered per second of busy bus; when demand exceed it, period of lower
+ * priority PID is doubled until schedule fits, and restored when capacity
+ * come back. Frame task and responses run on event loop thread. Each PID
+ * reuse one pidDesc for every poll instead of a new one per sample.
+ */
+public class PollingPlanner {
+	private static final String TAG = "PollingPlanner";
+
+	// frame period ms
+	private static final long FRAME = 100;
+	// longest period 2^LEVEL_MAX frames, about 100s
+	private static final int LEVEL_MAX = 10;
+	private static final int FRAMES = 1 << LEVEL_MAX;
+	// part of measured capacity to plan
+	private static final double UTILIZATION = 0.8;
+	// PIDs per second before measured
+	private static final double CAPACITY_INIT = 20;
+	// frames per capacity measure and rate report
+	private static final int MEASURE_FRAMES = 20;
+
+	// @description requested vs planned vs achieved rate of one PID
+	public static final class rate_t {
+		private final int mode;
+		private final int pid;
+		private final double requested;
+		private final double planned;
+		private final double achieved;
+
+		private rate_t(int mode, int pid, double requested, double planned, double achieved) {
+			this.mode = mode;
+			this.pid = pid;
+			this.requested = requested;
+			this.planned = planned;
+			this.achieved = achieved;
+		}
+
+		public int getMode() {
+			return mode;
+		}
+
+		public int getPid() {
+			return pid;
+		}
+
+		// @return Hz declared by caller
+		public double getRequested() {
+			return requested;
+		}
+
+		// @return Hz in compiled schedule
+		public double getPlanned() {
+			return planned;
+		}
+
+		// @return Hz answered in last measure window
+		public double getAchieved() {
+			return achieved;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%02X%02X %.2f/%.2f/%.2fHz", mode, pid,
+					achieved, planned, requested);
+		}
+	}
+
+	// @description sample callback able to stop polling while it is full
+	public interface pausable {
+		public boolean isPaused();
+	}
+
+	// @description polling plan of one PID, also response callback of its
+	// queries
+	private static final class plan_t implements OBDReader.responseCallback {
+		private final PollingPlanner planner;
+		private final int mode;
+		private final int pid;
+		private final List<OBDReader.responseCallback> cbs;
+
+		// 0 highest
+		private int prio;
+		private double requested;
+
+		// period 2^level frames at frame phase
+		private int want;
+		private int level;
+		private int phase;
+
+		// query reused by every poll, one in flight at most
+		private OBDReader.pidDesc desc;
+		private boolean inflight;
+		private int samples;
+		private int missed;
+		private double achieved;
+
+		private plan_t(PollingPlanner planner, int mode, int pid) {
+			this.planner = planner;
+			this.mode = mode;
+			this.pid = pid;
+			// samples are fanned out without planner lock, subscriptions
+			// come and go on other threads
+			this.cbs = new CopyOnWriteArrayList<OBDReader.responseCallback>();
+		}
+
+		@Override
+		public void onResponse(int error, OBDReader.pidDesc desc) {
+			planner.onSample(this, error, desc);
+		}
+
+		// @description all callbacks paused, PID is skipped
+		private boolean isPaused() {
+			for (int i = 0; i < cbs.size(); i++) {
+				OBDReader.responseCallback cb = cbs.get(i);
+				if (!(cb instanceof pausable) || !((pausable) cb).isPaused()) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	private final OBDReader.queryResponse query;
+	private final ELM327EventLoop loop;
+	private final SupportedPids supported;
+	private final List<plan_t> plans;
+
+	// PIDs per second
+	private double capacity;
+
+	// batches of frame, reused since scheduler copy them
+	private final List<OBDReader.pidDesc> batch01;
+	private final List<OBDReader.pidDesc> batch02;
+
+	// frame clock
+	private boolean running;
+	private long frame;
+	private long startNs;
+	private HashedWheelTimer.timeout_t timer;
+
+	// busy bus measure
+	private int outstanding;
+	private long busySince;
+	private long busyNs;
+	private int answered;
+	private long windowNs;
+
+	private final Runnable frameTask = new Runnable() {
+
+		@Override
+		public void run() {
+			onFrame();
+		}
+
+	};
+
+	// @param query - query path, like QueryScheduler
+	// @param loop - frame timer
+	// @param supported - PIDs known as unsupported are never planned
+	public PollingPlanner(OBDReader.queryResponse query, ELM327EventLoop loop,
+			SupportedPids supported) {
+		this.query = query;
+		this.loop = loop;
+		this.supported = supported;
+		this.plans = new ArrayList<plan_t>();
+		this.capacity = CAPACITY_INIT;
+		this.batch01 = new ArrayList<OBDReader.pidDesc>(8);
+		this.batch02 = new ArrayList<OBDReader.pidDesc>(8);
+	}
+
+	// @description declare polling rate of PID
+	// notes: same PID requested again take the higher rate and priority
+	// @param hz - desired rate
+	// @param prio - 0 highest, lower priority is degraded first
+	// @param cb - called with each sample, pidDesc is reused by next poll
+	// @return 0 on success, -1 if PID can't be polled
+	public synchronized int request(int mode, int pid, double hz, int prio,
+			OBDReader.responseCallback cb) {
+		OBDReader.pidDef def = OBDReader.pidDef.get(mode, pid);
+		if ((def == null) || (def.getBytes_number() <= 0)
+				|| ((mode != 0x01) && (mode != 0x02)) || (hz <= 0) || (cb == null)
+				|| !supported.admit(mode, pid)) {
+			Log.w(TAG, "can't poll PID " + pid + " of mode " + mode);
+			return -1;
+		}
+
+		plan_t plan = find(mode, pid);
+		if (plan == null) {
+			plan = new plan_t(this, mode, pid);
+			plan.prio = prio;
+			plans.add(plan);
+		}
+		plan.cbs.add(cb);
+		plan.requested = Math.max(plan.requested, hz);
+		plan.prio = Math.min(plan.prio, prio);
+
+		// round period to nearest power of 2 frames
+		double frames = 1000.0 / (plan.requested * FRAME);
+		plan.want = (int) Math.max(0,
+				Math.min(LEVEL_MAX, Math.round(Math.log(frames) / Math.log(2))));
+
+		compile();
+		start();
+		return 0;
+	}
+
+	// @description cancel PID polling of callback
+	public synchronized void cancel(int mode, int pid, OBDReader.responseCallback cb) {
+		plan_t plan = find(mode, pid);
+
+		if ((plan != null) && plan.cbs.remove(cb) && plan.cbs.isEmpty()) {
+			plans.remove(plan);
+			compile();
+
+			if (plans.isEmpty()) {
+				stop();
+			}
+		}
+	}
+
+	private plan_t find(int mode, int pid) {
+		for (int i = 0; i < plans.size(); i++) {
+			plan_t plan = plans.get(i);
+			if ((plan.mode == mode) && (plan.pid == pid)) {
+				return plan;
+			}
+		}
+
+		return null;
+	}
+
+	// @description compile plans into frame schedule
+	// notes: rate monotonic, higher priority and faster PID are placed first
+	// at the least loaded phase. Period is doubled while any frame would
+	// exceed capacity.
+	private void compile() {
+		int budget = (int) Math.max(1, Math.round(capacity * FRAME / 1000 * UTILIZATION));
+		int[] load = new int[FRAMES];
+
+		List<plan_t> order = new ArrayList<plan_t>(plans);
+		Collections.sort(order, new Comparator<plan_t>() {
+
+			@Override
+			public int compare(plan_t a, plan_t b) {
+				if (a.prio != b.prio) {
+					return a.prio - b.prio;
+				}
+				return a.want - b.want;
+			}
+
+		});
+
+		for (int i = 0; i < order.size(); i++) {
+			plan_t plan = order.get(i);
+			int best = -1;
+			int bestLoad = Integer.MAX_VALUE;
+
+			for (int level = plan.want; level <= LEVEL_MAX; level++) {
+				int period = 1 << level;
+
+				// phase with the lowest peak load
+				best = -1;
+				bestLoad = Integer.MAX_VALUE;
+				for (int phase = 0; phase < period; phase++) {
+					int peak = 0;
+					for (int f = phase; f < FRAMES; f += period) {
+						peak = Math.max(peak, load[f]);
+					}
+					if (peak < bestLoad) {
+						bestLoad = peak;
+						best = phase;
+					}
+				}
+
+				plan.level = level;
+				plan.phase = best;
+				if (bestLoad < budget) {
+					break;
+				}
+			}
+
+			if (bestLoad >= budget) {
+				Log.w(TAG, "bus overloaded, " + plan.pid + " at slowest rate");
+			}
+			for (int f = plan.phase; f < FRAMES; f += 1 << plan.level) {
+				load[f]++;
+			}
+		}
+
+		Log.d(TAG, "compiled " + plans.size() + " PIDs, capacity "
+				+ String.format("%.1f", capacity) + "/s");
+	}
+
+	// @description start frame clock
+	// notes: started by first request and stopped when last one cancelled
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		frame = 0;
+		startNs = System.nanoTime();
+		windowNs = startNs;
+		timer = loop.schedule(frameTask, FRAME);
+	}
+
+	// @description stop frame clock, in-flight queries still complete
+	public synchronized void stop() {
+		running = false;
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	// @description frame task, send PIDs due in this frame
+	private void onFrame() {
+		batch01.clear();
+		batch02.clear();
+
+		synchronized (this) {
+			if (!running) {
+				return;
+			}
+
+			int f = (int) (frame & (FRAMES - 1));
+			for (int i = 0; i < plans.size(); i++) {
+				plan_t plan = plans.get(i);
+
+				if ((f & ((1 << plan.level) - 1)) != plan.phase) {
+					continue;
+				}
+				// known as unsupported after planned, or consumers full
+				if (!supported.isSupported(plan.mode, plan.pid) || plan.isPaused()) {
+					continue;
+				}
+				// last sample still on bus
+				if (plan.inflight) {
+					plan.missed++;
+					continue;
+				}
+
+				// reuse query of last poll, scheduler chain its callback
+				if (plan.desc == null) {
+					try {
+						plan.desc = new OBDReader.pidDesc(plan.mode, plan.pid, plan);
+					} catch (Exception e) {
+						continue;
+					}
+					plan.desc.setPrio(QueryScheduler.PRIO_REALTIME);
+				}
+				plan.desc.setResCb(plan);
+				plan.desc.setBytes_return(null);
+				plan.inflight = true;
+
+				((plan.mode == 0x01) ? batch01 : batch02).add(plan.desc);
+			}
+
+			frame++;
+			if ((frame % MEASURE_FRAMES) == 0) {
+				measure();
+			}
+
+			// next frame on absolute clock, no drift
+			long next = startNs / 1000000 + frame * FRAME;
+			timer = loop.schedule(frameTask, Math.max(0, next - System.nanoTime() / 1000000));
+		}
+
+		send(batch01);
+		send(batch02);
+	}
+
+	private void send(List<OBDReader.pidDesc> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		synchronized (this) {
+			if (outstanding == 0) {
+				busySince = System.nanoTime();
+			}
+			outstanding += batch.size();
+		}
+
+		int ret = (batch.size() == 1) ? query.send(batch.get(0)) : query.sendBatch(batch);
+		if (ret != 0) {
+			for (int i = 0; i < batch.size(); i++) {
+				onSample((plan_t) batch.get(i).getResCb(), -1, batch.get(i));
+			}
+		}
+	}
+
+	private void onSample(plan_t plan, int error, OBDReader.pidDesc desc) {
+		synchronized (this) {
+			plan.inflight = false;
+			if (error == 0) {
+				plan.samples++;
+				answered++;
+			}
+
+			if (--outstanding == 0) {
+				busyNs += System.nanoTime() - busySince;
+			}
+		}
+
+		for (int i = 0; i < plan.cbs.size(); i++) {
+			try {
+				plan.cbs.get(i).onResponse(error, desc);
+			} catch (Exception e) {
+				Log.e(TAG, "sample callback exception:" + e);
+			}
+		}
+	}
+
+	// @description update capacity and achieved rates, recompile on change
+	// notes: call with lock held
+	private void measure() {
+		long now = System.nanoTime();
+		double window = (now - windowNs) / 1e9;
+		long busy = busyNs + ((outstanding > 0) ? now - busySince : 0);
+
+		for (int i = 0; i < plans.size(); i++) {
+			plan_t plan = plans.get(i);
+			plan.achieved = plan.samples / window;
+			plan.samples = 0;
+		}
+
+		// saturated or starved both tell what bus can carry
+		if ((busy > 0) && (answered > 0)) {
+			double measured = answered / (busy / 1e9);
+			double old = capacity;
+
+			capacity = 0.5 * capacity + 0.5 * measured;
+			if (Math.abs(capacity - old) > 0.15 * old) {
+				compile();
+			}
+		}
+
+		windowNs = now;
+		busyNs = 0;
+		if (outstanding > 0) {
+			busySince = now;
+		}
+		answered = 0;
+	}
+
+	// @description report requested vs planned vs achieved rate of each PID
+	public synchronized List<rate_t> getRates() {
+		List<rate_t> rates = new ArrayList<rate_t>(plans.size());
+
+		for (int i = 0; i < plans.size(); i++) {
+			plan_t plan = plans.get(i);
+			rates.add(new rate_t(plan.mode, plan.pid, plan.requested,
+					1000.0 / (FRAME << plan.level), plan.achieved));
+		}
+
+		return rates;
+	}
+
+	// @return measured PIDs per second
+	public synchronized double getCapacity() {
+		return capacity;
+	}
+
+	// @return samples skipped since last sample was still on bus
+	public synchronized int getMissed() {
+		int missed = 0;
+
+		for (int i = 0; i < plans.size(); i++) {
+			missed += plans.get(i).missed;
+		}
+
+		return missed;
+	}
+
+}
@@ -0,0 +1,265 @@
+/**
+ * @description composable result of asynchronous OBD2 query
+ */
+package com.example.icar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: completed once with error code and value, like responseCallback.
+ * Listeners run on completing thread, mostly ELM327 rx or event loop, or at
+ * once on caller thread if already done. get() block for the result, don't
+ * call it on event loop thread.
+ */
+public class QueryFuture<V> implements Future<V> {
+	private static final String TAG = "QueryFuture";
+
+	// @description completion listener
+	// @param error - 0 on success, -1 on fail
+	public interface listener<V> {
+		public void cb(int error, V value);
+	}
+
+	// @description value transform of map
+	public interface function<V, R> {
+		public R apply(V value);
+	}
+
+	// guarded by future
+	private boolean done;
+	private boolean cancelled;
+	private int error;
+	private V value;
+	private Object listeners;
+
+	public QueryFuture() {
+	}
+
+	// @description complete future, later completion is ignored
+	// @param value - result, or partial result on fail
+	// @return true if completed by this call
+	public boolean complete(int error, V value) {
+		Object ls;
+
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.done = true;
+			this.error = error;
+			this.value = value;
+			ls = listeners;
+			listeners = null;
+			notifyAll();
+		}
+
+		// single listener is kept without list
+		if (ls instanceof List) {
+			@SuppressWarnings("unchecked")
+			List<listener<V>> l = (List<listener<V>>) ls;
+			for (int i = 0; i < l.size(); i++) {
+				fire(l.get(i));
+			}
+		} else if (ls != null) {
+			@SuppressWarnings("unchecked")
+			listener<V> l = (listener<V>) ls;
+			fire(l);
+		}
+
+		return true;
+	}
+
+	// @description call listener on completion
+	// @return this future to chain
+	@SuppressWarnings("unchecked")
+	public QueryFuture<V> then(listener<V> cb) {
+		synchronized (this) {
+			if (!done) {
+				if (listeners == null) {
+					listeners = cb;
+				} else if (listeners instanceof List) {
+					((List<listener<V>>) listeners).add(cb);
+				} else {
+					List<listener<V>> l = new ArrayList<listener<V>>(2);
+					l.add((listener<V>) listeners);
+					l.add(cb);
+					listeners = l;
+				}
+				return this;
+			}
+		}
+
+		fire(cb);
+		return this;
+	}
+
+	// @description transform value on success, error is passed through
+	public <R> QueryFuture<R> map(final function<V, R> fn) {
+		final QueryFuture<R> f = new QueryFuture<R>();
+
+		then(new listener<V>() {
+
+			@Override
+			public void cb(int error, V value) {
+				if (error != 0) {
+					f.complete(error, null);
+					return;
+				}
+
+				R r;
+				try {
+					r = fn.apply(value);
+				} catch (Exception e) {
+					Log.e(TAG, "map exception:" + e);
+					f.complete(-1, null);
+					return;
+				}
+				f.complete(0, r);
+			}
+
+		});
+
+		return f;
+	}
+
+	// @description combine futures, value list keep order of futures
+	// notes: done when all are done, error is -1 if any fail and value of
+	// failed one is null
+	public static <V> QueryFuture<List<V>> all(final List<QueryFuture<V>> fs) {
+		final QueryFuture<List<V>> f = new QueryFuture<List<V>>();
+		final List<V> values = new ArrayList<V>(fs.size());
+		final int[] pending = { fs.size() };
+		final int[] failed = { 0 };
+
+		if (fs.isEmpty()) {
+			f.complete(0, values);
+			return f;
+		}
+		for (int i = 0; i < fs.size(); i++) {
+			values.add(null);
+		}
+
+		for (int i = 0; i < fs.size(); i++) {
+			final int index = i;
+
+			fs.get(i).then(new listener<V>() {
+
+				@Override
+				public void cb(int error, V value) {
+					boolean last;
+
+					synchronized (values) {
+						if (error == 0) {
+							values.set(index, value);
+						} else {
+							failed[0]++;
+						}
+						last = (--pending[0] == 0);
+					}
+
+					if (last) {
+						f.complete((failed[0] == 0) ? 0 : -1, values);
+					}
+				}
+
+			});
+		}
+
+		return f;
+	}
+
+	/**
+	 * @return the error, 0 on success
+	 */
+	public synchronized int getError() {
+		return error;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			cancelled = true;
+		}
+
+		// query on bus is still answered, result is dropped
+		return complete(-1, null);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+
+		return result();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long end = System.nanoTime() + unit.toNanos(timeout);
+
+		while (!done) {
+			long left = end - System.nanoTime();
+			if (left <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+
+		return result();
+	}
+
+	// notes: call with lock held
+	private V result() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (error != 0) {
+			throw new ExecutionException(new Exception("query fail " + error));
+		}
+
+		return value;
+	}
+
+	private void fire(listener<V> cb) {
+		V v;
+		int e;
+
+		synchronized (this) {
+			v = value;
+			e = error;
+		}
+
+		try {
+			cb.cb(e, v);
+		} catch (Exception ex) {
+			Log.e(TAG, "listener exception:" + ex);
+		}
+	}
+
+}
@@ -0,0 +1,367 @@
+/**
+ * @description priority query scheduler in front of ELM327 driver
+ */
+package com.example.icar;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: queries are queued by priority class, interactive > realtime
+ * telemetry > background diagnostics. Each class has own token bucket as
+ * rate budget, and queries of one class are served earliest deadline first.
+ * A query whose deadline passed is served before higher class, so slow
+ * diagnostics still run in the gaps of realtime sampling. Only `window`
+ * queries are handed to adapter at a time, the rest wait here instead of
+ * adapter's FIFO queue.
+ */
+public class QueryScheduler implements OBDReader.queryResponse {
+	private static final String TAG = "QueryScheduler";
+
+	// priority class, PRIO_AUTO classify by mode&pid
+	public static final int PRIO_AUTO = -1;
+	public static final int PRIO_INTERACTIVE = 0;
+	public static final int PRIO_REALTIME = 1;
+	public static final int PRIO_BACKGROUND = 2;
+	private static final int PRIO_NUMBER = 3;
+
+	// default latency target ms per class
+	private static final long[] DEADLINES = {200, 500, 5000};
+
+	// default budget per class, queries per second and burst
+	private static final double[] RATES = {20, 50, 2};
+	private static final double[] BURSTS = {5, 10, 1};
+
+	// @description token bucket rate budget
+	private static final class bucket_t {
+		private double rate;
+		private double burst;
+		private double tokens;
+		private long last;
+
+		private bucket_t(double rate, double burst) {
+			this.rate = rate;
+			this.burst = burst;
+			this.tokens = burst;
+			this.last = System.nanoTime();
+		}
+
+		private void refill(long now) {
+			tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+			last = now;
+		}
+
+		// @description ns to wait for one token
+		private long waitNs() {
+			return (tokens >= 1) ? 0 : (long) ((1 - tokens) * 1e9 / rate);
+		}
+	}
+
+	// @description queued query or batched query, complete when every
+	// pidDesc got response
+	private static final class job_t implements OBDReader.responseCallback {
+		private final QueryScheduler sched;
+		private final int prio;
+		private final long deadline;
+		private final long seq;
+
+		private final List<OBDReader.pidDesc> descs;
+		private final OBDReader.responseCallback[] cbs;
+		private final boolean[] done;
+		private int remaining;
+
+		private job_t(QueryScheduler sched, int prio, long deadline, long seq,
+				List<OBDReader.pidDesc> descs) {
+			this.sched = sched;
+			this.prio = prio;
+			this.deadline = deadline;
+			this.seq = seq;
+			this.descs = descs;
+			this.cbs = new OBDReader.responseCallback[descs.size()];
+			this.done = new boolean[descs.size()];
+			this.remaining = descs.size();
+
+			// response pass through job
+			for (int i = 0; i < cbs.length; i++) {
+				OBDReader.pidDesc desc = descs.get(i);
+				cbs[i] = desc.getResCb();
+				desc.setResCb(this);
+			}
+		}
+
+		@Override
+		public void onResponse(int error, OBDReader.pidDesc desc) {
+			int i = descs.indexOf(desc);
+			if (i < 0) {
+				Log.w(TAG, "unknown response:" + desc);
+				return;
+			}
+
+			// one response per pidDesc
+			boolean last;
+			synchronized (sched) {
+				if (done[i]) {
+					return;
+				}
+				done[i] = true;
+				last = (--remaining == 0);
+			}
+
+			try {
+				cbs[i].onResponse(error, desc);
+			} catch (Exception e) {
+				Log.e(TAG, "response callback exception:" + e);
+			}
+
+			if (last) {
+				sched.onDone(this);
+			}
+		}
+	}
+
+	private final OBDReader.queryResponse query;
+	private final ELM327EventLoop loop;
+
+	private final List<PriorityQueue<job_t>> queues;
+	private final bucket_t[] buckets;
+	private final long[] deadlines;
+
+	// queries handed to adapter at most
+	private int window;
+	private int inflight;
+	private long seq;
+
+	// pending wakeup when budget run out
+	private HashedWheelTimer.timeout_t wakeup;
+
+	// @param query - adapter driver, like ELM327
+	// @param loop - timer for budget refill
+	public QueryScheduler(OBDReader.queryResponse query, ELM327EventLoop loop) {
+		this.query = query;
+		this.loop = loop;
+		this.window = 1;
+
+		Comparator<job_t> edf = new Comparator<job_t>() {
+
+			@Override
+			public int compare(job_t a, job_t b) {
+				if (a.deadline != b.deadline) {
+					return (a.deadline - b.deadline < 0) ? -1 : 1;
+				}
+				return (a.seq < b.seq) ? -1 : ((a.seq == b.seq) ? 0 : 1);
+			}
+
+		};
+
+		this.queues = new ArrayList<PriorityQueue<job_t>>(PRIO_NUMBER);
+		this.buckets = new bucket_t[PRIO_NUMBER];
+		this.deadlines = new long[PRIO_NUMBER];
+		for (int i = 0; i < PRIO_NUMBER; i++) {
+			this.queues.add(new PriorityQueue<job_t>(16, edf));
+			this.buckets[i] = new bucket_t(RATES[i], BURSTS[i]);
+			this.deadlines[i] = DEADLINES[i];
+		}
+	}
+
+	// @description set rate budget of class
+	// @param rate - queries per second
+	// @param burst - queries sent back to back at most
+	// @return 0 on success, -1 on invalid class
+	public synchronized int setBudget(int prio, double rate, double burst) {
+		if ((prio < 0) || (prio >= PRIO_NUMBER) || (rate <= 0) || (burst < 1)) {
+			return -1;
+		}
+		buckets[prio].rate = rate;
+		buckets[prio].burst = burst;
+
+		return 0;
+	}
+
+	// @description set latency target ms of class
+	// @return 0 on success, -1 on invalid class
+	public synchronized int setDeadline(int prio, long ms) {
+		if ((prio < 0) || (prio >= PRIO_NUMBER) || (ms < 0)) {
+			return -1;
+		}
+		deadlines[prio] = ms;
+
+		return 0;
+	}
+
+	// @description set queries handed to adapter at a time
+	public synchronized void setWindow(int window) {
+		this.window = Math.max(1, window);
+	}
+
+	// @description classify query, diagnostics like DTC, VIN, freeze frame
+	// and supported PIDs scan are background
+	private static int classify(OBDReader.pidDesc desc) {
+		if ((desc.getPrio() >= 0) && (desc.getPrio() < PRIO_NUMBER)) {
+			return desc.getPrio();
+		}
+
+		if ((desc.getMode() == 0x01) && ((desc.getPid() % 0x20) != 0)) {
+			return PRIO_REALTIME;
+		}
+
+		return PRIO_BACKGROUND;
+	}
+
+	@Override
+	public int send(OBDReader.pidDesc desc) {
+		if (desc == null) {
+			return -1;
+		}
+
+		List<OBDReader.pidDesc> descs = new ArrayList<OBDReader.pidDesc>(1);
+		descs.add(desc);
+
+		return queue(classify(desc), descs);
+	}
+
+	@Override
+	public int sendBatch(List<OBDReader.pidDesc> descs) {
+		if ((descs == null) || (descs.size() == 0)) {
+			return -1;
+		}
+
+		// batch take the most urgent class
+		int prio = PRIO_BACKGROUND;
+		for (int i = 0; i < descs.size(); i++) {
+			prio = Math.min(prio, classify(descs.get(i)));
+		}
+
+		return queue(prio, new ArrayList<OBDReader.pidDesc>(descs));
+	}
+
+	private int queue(int prio, List<OBDReader.pidDesc> descs) {
+		synchronized (this) {
+			long deadline = System.nanoTime() + deadlines[prio] * 1000000;
+			queues.get(prio).add(new job_t(this, prio, deadline, seq++, descs));
+		}
+
+		dispatch();
+		return 0;
+	}
+
+	private void onDone(job_t job) {
+		synchronized (this) {
+			inflight--;
+		}
+
+		dispatch();
+	}
+
+	// @description pick next job in budget, overdue job first, then by class
+	// notes: call with lock held
+	private job_t pick(long now) {
+		job_t best = null;
+		job_t overdue = null;
+
+		for (int i = 0; i < PRIO_NUMBER; i++) {
+			job_t head = queues.get(i).peek();
+			if (head == null) {
+				continue;
+			}
+
+			buckets[i].refill(now);
+			if (buckets[i].tokens < 1) {
+				continue;
+			}
+
+			if ((head.deadline - now <= 0)
+					&& ((overdue == null) || (head.deadline - overdue.deadline < 0))) {
+				overdue = head;
+			}
+			if (best == null) {
+				best = head;
+			}
+		}
+
+		if (overdue != null) {
+			best = overdue;
+		}
+		if (best != null) {
+			queues.get(best.prio).poll();
+			buckets[best.prio].tokens -= 1;
+		}
+
+		return best;
+	}
+
+	// @description hand jobs to adapter while window and budget allow
+	private void dispatch() {
+		List<job_t> ready = null;
+
+		synchronized (this) {
+			long now = System.nanoTime();
+
+			while (inflight < window) {
+				job_t job = pick(now);
+				if (job == null) {
+					break;
+				}
+
+				inflight++;
+				if (ready == null) {
+					ready = new ArrayList<job_t>(2);
+				}
+				ready.add(job);
+			}
+
+			// wait budget refill
+			if ((inflight < window) && ((wakeup == null) || wakeup.isExpired())) {
+				long wait = -1;
+
+				for (int i = 0; i < PRIO_NUMBER; i++) {
+					if (!queues.get(i).isEmpty()) {
+						long ns = buckets[i].waitNs();
+						wait = (wait < 0) ? ns : Math.min(wait, ns);
+					}
+				}
+
+				if (wait >= 0) {
+					wakeup = loop.newTimeout(new Runnable() {
+
+						@Override
+						public void run() {
+							dispatch();
+						}
+
+					}, Math.max(1, wait / 1000000));
+				}
+			}
+		}
+
+		if (ready == null) {
+			return;
+		}
+
+		// send out of lock, response may come on another thread at once
+		for (int i = 0; i < ready.size(); i++) {
+			job_t job = ready.get(i);
+			int ret = (job.descs.size() == 1) ?
+					query.send(job.descs.get(0)) : query.sendBatch(job.descs);
+
+			if (ret != 0) {
+				Log.w(TAG, "send query fail, class " + job.prio);
+				for (int j = 0; j < job.descs.size(); j++) {
+					job.onResponse(-1, job.descs.get(j));
+				}
+			}
+		}
+	}
+
+	// @description queued queries of class
+	public synchronized int getQueued(int prio) {
+		return ((prio >= 0) && (prio < PRIO_NUMBER)) ? queues.get(prio).size() : 0;
+	}
+
+}
@@ -0,0 +1,540 @@
+/**
+ * @description views and queries over recorded documents
+ */
+package com.example.icar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.couchbase.lite.Attachment;
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Document;
+import com.couchbase.lite.Emitter;
+import com.couchbase.lite.Mapper;
+import com.couchbase.lite.Query;
+import com.couchbase.lite.QueryEnumerator;
+import com.couchbase.lite.Reducer;
+import com.couchbase.lite.View;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: every stored shape of recorded data is indexed the same way:
+ * - record document, one sample: key cts, value 1
+ * - trip bucket: key first sample cts, value sample count
+ * - log summary: one row per record type, key first cts, value count
+ * View VIEW_VIN is keyed by [vin, type, cts], VIEW_TRIP by [trip, type, cts];
+ * vin is "" when unknown. Both locate documents and reduce to sample count.
+ * Recorded values are in VIEW_VIN_PID [vin, type, pid, cts] and
+ * VIEW_TRIP_PID [trip, type, pid, cts], one row per PID of document with
+ * {count, min, max, sum} of its first number item: 1 sample of record
+ * document, stats of bucket and log summary; they reduce to merged stats.
+ * Range queries match rows by first sample time, so a bucket or segment
+ * starting before range is not returned; widen from by its span if needed.
+ * samples() iterate any of them as sample maps keyed by PID, like
+ * TripBucket.reader.
+ */
+public class RecordIndex {
+	private static final String TAG = "RecordIndex";
+
+	public static final String VIEW_VIN = "records_by_vin_type_cts";
+	public static final String VIEW_TRIP = "records_by_trip_type_cts";
+	public static final String VIEW_VIN_PID = "values_by_vin_type_pid_cts";
+	public static final String VIEW_TRIP_PID = "values_by_trip_type_pid_cts";
+
+	// bump when map or reduce change, index is rebuilt
+	private static final String VERSION = "2";
+
+	// key sorted after any number or string
+	private static final Map<String, Object> KEY_END = new HashMap<String, Object>();
+
+	private final Database database;
+	private final View vin;
+	private final View trip;
+	private final View vinPid;
+	private final View tripPid;
+
+	// @description register views on database
+	public RecordIndex(Database database) {
+		this.database = database;
+
+		this.vin = database.getView(VIEW_VIN);
+		this.vin.setMapReduce(new Mapper() {
+
+			@Override
+			public void map(Map<String, Object> doc, Emitter emitter) {
+				Object v = doc.get("vin");
+				emit(doc, (v instanceof String) ? v : "", emitter);
+			}
+
+		}, COUNT, VERSION);
+
+		this.trip = database.getView(VIEW_TRIP);
+		this.trip.setMapReduce(new Mapper() {
+
+			@Override
+			public void map(Map<String, Object> doc, Emitter emitter) {
+				Object t = doc.get("trip");
+				if (t instanceof String) {
+					emit(doc, t, emitter);
+				}
+			}
+
+		}, COUNT, VERSION);
+
+		this.vinPid = database.getView(VIEW_VIN_PID);
+		this.vinPid.setMapReduce(new Mapper() {
+
+			@Override
+			public void map(Map<String, Object> doc, Emitter emitter) {
+				Object v = doc.get("vin");
+				emitStats(doc, (v instanceof String) ? v : "", emitter);
+			}
+
+		}, STATS, VERSION);
+
+		this.tripPid = database.getView(VIEW_TRIP_PID);
+		this.tripPid.setMapReduce(new Mapper() {
+
+			@Override
+			public void map(Map<String, Object> doc, Emitter emitter) {
+				Object t = doc.get("trip");
+				if (t instanceof String) {
+					emitStats(doc, t, emitter);
+				}
+			}
+
+		}, STATS, VERSION);
+	}
+
+	// @description emit [prefix, type, cts] of recorded document
+	private static void emit(Map<String, Object> doc, Object prefix, Emitter emitter) {
+		Object type = doc.get("type");
+
+		// log summary, one row per record type
+		if ("log".equals(doc.get("category")) && (doc.get("types") instanceof Map)) {
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) doc.get("types")).entrySet()) {
+				if (e.getValue() instanceof Map) {
+					Map<?, ?> t = (Map<?, ?>) e.getValue();
+					emitter.emit(Arrays.asList(prefix, e.getKey(), t.get("from")),
+							t.get("count"));
+				}
+			}
+			return;
+		}
+
+		if (!(type instanceof String)) {
+			return;
+		}
+		if (doc.containsKey("bucket")) {
+			// trip bucket
+			if (doc.get("from") instanceof Number) {
+				emitter.emit(Arrays.asList(prefix, type, doc.get("from")), doc.get("count"));
+			}
+		} else if (doc.get("cts") instanceof Number) {
+			// record document
+			emitter.emit(Arrays.asList(prefix, type, doc.get("cts")), 1);
+		}
+	}
+
+	// @description emit [prefix, type, pid, cts] with PID stats of document
+	private static void emitStats(Map<String, Object> doc, Object prefix, Emitter emitter) {
+		Object type = doc.get("type");
+
+		// log summary, stats per record type
+		if ("log".equals(doc.get("category")) && (doc.get("types") instanceof Map)) {
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) doc.get("types")).entrySet()) {
+				if (e.getValue() instanceof Map) {
+					Map<?, ?> t = (Map<?, ?>) e.getValue();
+					emitStats(prefix, e.getKey(), t.get("from"), t.get("stats"), emitter);
+				}
+			}
+			return;
+		}
+
+		if (!(type instanceof String)) {
+			return;
+		}
+		if (doc.containsKey("bucket")) {
+			// trip bucket
+			emitStats(prefix, type, doc.get("from"), doc.get("stats"), emitter);
+		} else if (doc.get("cts") instanceof Number) {
+			// record document, value of <field> named by <field>_pid
+			for (Map.Entry<String, Object> e : doc.entrySet()) {
+				String k = e.getKey();
+				if (!k.endsWith("_pid") || !(e.getValue() instanceof String)) {
+					continue;
+				}
+				Object v = doc.get(k.substring(0, k.length() - 4));
+				if (v instanceof Number) {
+					Map<String, Object> s = new HashMap<String, Object>();
+					s.put("count", 1);
+					s.put("min", v);
+					s.put("max", v);
+					s.put("sum", v);
+					emitter.emit(Arrays.asList(prefix, type, e.getValue(), doc.get("cts")), s);
+				}
+			}
+		}
+	}
+
+	private static void emitStats(Object prefix, Object type, Object cts, Object stats,
+			Emitter emitter) {
+		if (!(cts instanceof Number) || !(stats instanceof Map)) {
+			return;
+		}
+
+		for (Map.Entry<?, ?> e : ((Map<?, ?>) stats).entrySet()) {
+			if (e.getValue() instanceof Map) {
+				emitter.emit(Arrays.asList(prefix, type, e.getKey(), cts), e.getValue());
+			}
+		}
+	}
+
+	// @description total samples of rows
+	private static final Reducer COUNT = new Reducer() {
+
+		@Override
+		public Object reduce(List<Object> keys, List<Object> values, boolean rereduce) {
+			long count = 0;
+
+			for (int i = 0; i < values.size(); i++) {
+				if (values.get(i) instanceof Number) {
+					count += ((Number) values.get(i)).longValue();
+				}
+			}
+
+			return count;
+		}
+
+	};
+
+	// @description merge {count, min, max, sum} of rows
+	private static final Reducer STATS = new Reducer() {
+
+		@Override
+		public Object reduce(List<Object> keys, List<Object> values, boolean rereduce) {
+			long count = 0;
+			double sum = 0;
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+
+			for (int i = 0; i < values.size(); i++) {
+				if (!(values.get(i) instanceof Map)) {
+					continue;
+				}
+				Map<?, ?> s = (Map<?, ?>) values.get(i);
+				if (!(s.get("count") instanceof Number)
+						|| (((Number) s.get("count")).longValue() <= 0)) {
+					continue;
+				}
+				count += ((Number) s.get("count")).longValue();
+				sum += ((Number) s.get("sum")).doubleValue();
+				min = Math.min(min, ((Number) s.get("min")).doubleValue());
+				max = Math.max(max, ((Number) s.get("max")).doubleValue());
+			}
+
+			Map<String, Object> s = new HashMap<String, Object>();
+			s.put("count", count);
+			s.put("sum", sum);
+			if (count > 0) {
+				s.put("min", min);
+				s.put("max", max);
+			}
+
+			return s;
+		}
+
+	};
+
+	// @description recorded documents of vehicle and record type in time range
+	// @param from, to - ms, first sample time of document, inclusive
+	// @return documents in time order, null on failure
+	public List<Document> range(String vin, String type, long from, long to) {
+		Query q = this.vin.createQuery();
+
+		q.setMapOnly(true);
+		q.setStartKey(Arrays.asList(key(vin), type, from));
+		q.setEndKey(Arrays.asList(key(vin), type, to));
+
+		return documents(q);
+	}
+
+	// @description samples of vehicle and record type in time range
+	// @return sample count, -1 on failure
+	public long count(String vin, String type, long from, long to) {
+		Query q = this.vin.createQuery();
+
+		q.setStartKey(Arrays.asList(key(vin), type, from));
+		q.setEndKey(Arrays.asList(key(vin), type, to));
+
+		return count(q);
+	}
+
+	// @description value stats of PID of vehicle and record type in time range
+	// @param pid - like "010D"
+	// @return {count, min, max, sum}, null on failure
+	public Map<String, Object> stats(String vin, String type, String pid,
+			long from, long to) {
+		Query q = this.vinPid.createQuery();
+
+		q.setStartKey(Arrays.asList(key(vin), type, pid, from));
+		q.setEndKey(Arrays.asList(key(vin), type, pid, to));
+
+		return reduce(q);
+	}
+
+	// @description recorded documents of trip and record type
+	// @return documents in time order, null on failure
+	public List<Document> trip(String trip, String type) {
+		Query q = this.trip.createQuery();
+
+		q.setMapOnly(true);
+		q.setStartKey(Arrays.asList(trip, type));
+		q.setEndKey(Arrays.asList(trip, type, KEY_END));
+
+		return documents(q);
+	}
+
+	// @description samples of trip and record type
+	// @return sample count, -1 on failure
+	public long count(String trip, String type) {
+		Query q = this.trip.createQuery();
+
+		q.setStartKey(Arrays.asList(trip, type));
+		q.setEndKey(Arrays.asList(trip, type, KEY_END));
+
+		return count(q);
+	}
+
+	// @description value stats of PID of trip and record type
+	// @param pid - like "010D"
+	// @return {count, min, max, sum}, null on failure
+	public Map<String, Object> stats(String trip, String type, String pid) {
+		Query q = this.tripPid.createQuery();
+
+		q.setStartKey(Arrays.asList(trip, type, pid));
+		q.setEndKey(Arrays.asList(trip, type, pid, KEY_END));
+
+		return reduce(q);
+	}
+
+	// @description first recorded document of trip and record type
+	// @return null if none
+	public Document first(String trip, String type) {
+		return edge(trip, type, false);
+	}
+
+	// @description last recorded document of trip and record type
+	// @return null if none
+	public Document last(String trip, String type) {
+		return edge(trip, type, true);
+	}
+
+	// @description first sample of trip and record type
+	// @return sample map, null if none
+	public Map<String, Object> firstSample(String trip, String type) {
+		Document doc = first(trip, type);
+		Iterator<Map<String, Object>> it = (doc != null) ? samples(doc, type) : null;
+
+		return ((it != null) && it.hasNext()) ? it.next() : null;
+	}
+
+	// @description last sample of trip and record type
+	// @return sample map, null if none
+	public Map<String, Object> lastSample(String trip, String type) {
+		Document doc = last(trip, type);
+		Iterator<Map<String, Object>> it = (doc != null) ? samples(doc, type) : null;
+		Map<String, Object> sample = null;
+
+		while ((it != null) && it.hasNext()) {
+			sample = it.next();
+		}
+
+		return sample;
+	}
+
+	private Document edge(String trip, String type, boolean last) {
+		Query q = this.trip.createQuery();
+
+		q.setMapOnly(true);
+		q.setLimit(1);
+		q.setDescending(last);
+		q.setStartKey(last ? Arrays.asList(trip, type, KEY_END) : Arrays.asList(trip, type));
+		q.setEndKey(last ? Arrays.asList(trip, type) : Arrays.asList(trip, type, KEY_END));
+
+		List<Document> docs = documents(q);
+		return ((docs != null) && (docs.size() > 0)) ? docs.get(0) : null;
+	}
+
+	private List<Document> documents(Query q) {
+		try {
+			QueryEnumerator rows = q.run();
+			List<Document> docs = new ArrayList<Document>(rows.getCount());
+
+			while (rows.hasNext()) {
+				docs.add(rows.next().getDocument());
+			}
+
+			return docs;
+		} catch (CouchbaseLiteException e) {
+			Log.e(TAG, "query fail:" + q.getView().getName(), e);
+			return null;
+		}
+	}
+
+	private long count(Query q) {
+		try {
+			QueryEnumerator rows = q.run();
+
+			return rows.hasNext() ? ((Number) rows.next().getValue()).longValue() : 0;
+		} catch (CouchbaseLiteException e) {
+			Log.e(TAG, "count fail:" + q.getView().getName(), e);
+			return -1;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> reduce(Query q) {
+		try {
+			QueryEnumerator rows = q.run();
+
+			if (!rows.hasNext()) {
+				Map<String, Object> s = new HashMap<String, Object>();
+				s.put("count", 0L);
+				s.put("sum", 0.0);
+				return s;
+			}
+
+			return (Map<String, Object>) rows.next().getValue();
+		} catch (CouchbaseLiteException e) {
+			Log.e(TAG, "reduce fail:" + q.getView().getName(), e);
+			return null;
+		}
+	}
+
+	private static String key(String vin) {
+		return (vin != null) ? vin : "";
+	}
+
+	// @description samples of recorded document as maps keyed by PID:
+	// {type, cts, geo, uid, vin, sec, <pid>: value, <pid>_ets: ets}
+	// @param type - record type, samples of other types in log are skipped
+	// @return empty if document can't be read
+	public static Iterator<Map<String, Object>> samples(Document doc, String type) {
+		Map<String, Object> props = doc.getProperties();
+		List<Map<String, Object>> none = Collections.emptyList();
+
+		try {
+			// log summary, decode raw segment
+			if ("log".equals(props.get("category"))) {
+				Attachment a = doc.getCurrentRevision().getAttachment(LogCompactor.LOG);
+				if (a == null) {
+					return none.iterator();
+				}
+				return log(a, type).iterator();
+			}
+
+			// trip bucket
+			if (props.containsKey("bucket")) {
+				if (!TripBucket.SERIES.equals(props.get("encoding"))) {
+					return TripBucket.read(props);
+				}
+				Attachment a = doc.getCurrentRevision().getAttachment(TripBucket.SERIES);
+				if (a == null) {
+					return none.iterator();
+				}
+				InputStream in = a.getContent();
+				try {
+					return TripBucket.read(props, in);
+				} finally {
+					in.close();
+				}
+			}
+		} catch (CouchbaseLiteException e) {
+			Log.e(TAG, "cannot read attachment of " + doc.getId() + ":" + e);
+			return none.iterator();
+		} catch (IOException e) {
+			Log.e(TAG, "cannot decode samples of " + doc.getId() + ":" + e);
+			return none.iterator();
+		}
+
+		// record document
+		return Collections.singletonList(record(props)).iterator();
+	}
+
+	// @description samples of type in log attachment
+	private static List<Map<String, Object>> log(Attachment a, String type)
+			throws CouchbaseLiteException, IOException {
+		List<Map<String, Object>> samples = new ArrayList<Map<String, Object>>();
+		InputStream in = a.getContent();
+		SegmentLog.reader r;
+
+		try {
+			r = SegmentLog.read(in);
+		} finally {
+			in.close();
+		}
+		if (r == null) {
+			return samples;
+		}
+
+		ByteBuffer payload;
+		while ((payload = r.next()) != null) {
+			Map<String, Object> sample = LogCompactor.sample(payload, r.getTrip(), r.getVin());
+			if ((type == null) || type.equals(sample.get("type"))) {
+				samples.add(sample);
+			}
+		}
+
+		return samples;
+	}
+
+	// @description record document with <field>_pid also keyed by PID
+	private static Map<String, Object> record(Map<String, Object> props) {
+		Map<String, Object> sample = new Hashtable<String, Object>();
+
+		for (Map.Entry<String, Object> e : props.entrySet()) {
+			// Hashtable take no null, missing value is absent key
+			if (e.getValue() != null) {
+				sample.put(e.getKey(), e.getValue());
+			}
+		}
+		for (Map.Entry<String, Object> e : props.entrySet()) {
+			String k = e.getKey();
+			if (k.endsWith("_pid") && (e.getValue() instanceof String)) {
+				String field = k.substring(0, k.length() - 4);
+				String pid = (String) e.getValue();
+				if (props.get(field) != null) {
+					sample.put(pid, props.get(field));
+				}
+				if (props.get(field + "_ets") != null) {
+					sample.put(pid + "_ets", props.get(field + "_ets"));
+				}
+			}
+		}
+
+		return sample;
+	}
+
+	/**
+	 * @return the database
+	 */
+	public Database getDatabase() {
+		return database;
+	}
+
+}
@@ -0,0 +1,265 @@
+/**
+ * @description write-behind stage of recorded documents
+ */
+package com.example.icar;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.couchbase.lite.CouchbaseLiteException;
+import com.couchbase.lite.Database;
+import com.couchbase.lite.Document;
+import com.couchbase.lite.TransactionalTask;
+import com.couchbase.lite.UnsavedRevision;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: response thread only queue document properties, writer thread
+ * commit them in batches inside one Database.runInTransaction, so one
+ * SQLite transaction carry many records and slow storage never stall
+ * response processing. Batch is flushed when it reach batch size or the
+ * oldest queued record wait flush interval. When queue is full the record
+ * is dropped and counted, shutdown flush what is queued.
+ */
+public class RecordWriter extends Thread {
+	private static final String TAG = "RecordWriter";
+
+	public static final int QUEUE_DEFAULT = 256;
+	public static final int BATCH_DEFAULT = 32;
+	public static final long FLUSH_DEFAULT = 2000;
+
+	// document map key of attachments, name to content bytes
+	public static final String ATTACHMENTS = "_attachments_content";
+
+	private final Database database;
+	private final ArrayBlockingQueue<Map<String, Object>> queue;
+	private final int batchSize;
+	private final long flushMs;
+
+	private volatile boolean running;
+
+	// metrics, guarded by writer
+	private long queued;
+	private long dropped;
+	private long committed;
+	private long failed;
+	private long commits;
+	private long commitNs;
+	private long maxCommitNs;
+	private long lastCommitNs;
+
+	public RecordWriter(Database database) {
+		this(database, QUEUE_DEFAULT, BATCH_DEFAULT, FLUSH_DEFAULT);
+	}
+
+	// @param queueSize - records waiting for commit at most
+	// @param batchSize - records per transaction at most
+	// @param flushMs - longest wait of queued record before commit
+	public RecordWriter(Database database, int queueSize, int batchSize, long flushMs) {
+		super(TAG);
+		this.database = database;
+		this.queue = new ArrayBlockingQueue<Map<String, Object>>(Math.max(1, queueSize));
+		this.batchSize = Math.max(1, batchSize);
+		this.flushMs = Math.max(1, flushMs);
+		this.running = true;
+	}
+
+	// @description queue document properties, never block caller
+	// notes: "_id" in properties name the new document, like bucket, and
+	// ATTACHMENTS are saved as binary attachments of it
+	// @return false if queue is full or writer is shut down
+	public boolean write(Map<String, Object> properties) {
+		if (running && queue.offer(properties)) {
+			synchronized (this) {
+				queued++;
+			}
+			return true;
+		}
+
+		synchronized (this) {
+			dropped++;
+		}
+		Log.w(TAG, "drop record, queue depth " + queue.size());
+		return false;
+	}
+
+	@Override
+	public void run() {
+		List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(batchSize);
+
+		while (running || !queue.isEmpty()) {
+			try {
+				// wait first record, then gather batch until size or interval
+				Map<String, Object> first = queue.poll(flushMs, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+
+				long deadline = System.nanoTime() + flushMs * 1000000;
+				while (running && (batch.size() < batchSize)) {
+					long left = deadline - System.nanoTime();
+					if (left <= 0) {
+						break;
+					}
+					Map<String, Object> next = queue.poll(left, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// shutdown, commit what is gathered and left in queue
+			}
+			queue.drainTo(batch, batchSize - batch.size());
+
+			commit(batch);
+			batch.clear();
+		}
+
+		Log.d(TAG, "writer done " + this);
+	}
+
+	// @description commit batch in one transaction
+	private void commit(final List<Map<String, Object>> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		final int[] ok = { 0 };
+		boolean done = database.runInTransaction(new TransactionalTask() {
+
+			@Override
+			public boolean run() {
+				for (int i = 0; i < batch.size(); i++) {
+					// create an empty document and write properties
+					Map<String, Object> properties = batch.get(i);
+					Object id = properties.remove("_id");
+					Object attachments = properties.remove(ATTACHMENTS);
+					Document document = (id instanceof String) ?
+							database.getDocument((String) id) : database.createDocument();
+					try {
+						if (attachments instanceof Map) {
+							save(document, properties, (Map<?, ?>) attachments);
+						} else {
+							document.putProperties(properties);
+						}
+						ok[0]++;
+					} catch (CouchbaseLiteException e) {
+						Log.e(TAG, "Cannot write document to database", e);
+					}
+				}
+
+				// keep records written even if some failed
+				return true;
+			}
+
+		});
+		long ns = System.nanoTime() - start;
+
+		synchronized (this) {
+			commits++;
+			commitNs += ns;
+			lastCommitNs = ns;
+			maxCommitNs = Math.max(maxCommitNs, ns);
+			committed += done ? ok[0] : 0;
+			failed += done ? batch.size() - ok[0] : batch.size();
+		}
+	}
+
+	// @description save properties with binary attachments in one revision
+	static void save(Document document, Map<String, Object> properties,
+			Map<?, ?> attachments) throws CouchbaseLiteException {
+		UnsavedRevision rev = document.createRevision();
+
+		rev.setUserProperties(properties);
+		for (Map.Entry<?, ?> e : attachments.entrySet()) {
+			rev.setAttachment((String) e.getKey(), "application/octet-stream",
+					new ByteArrayInputStream((byte[]) e.getValue()));
+		}
+		rev.save();
+	}
+
+	// @description stop taking records, flush queue and wait writer done
+	// @param timeout - ms to wait, 0 not wait
+	public void shutdown(long timeout) {
+		running = false;
+		interrupt();
+
+		if (timeout > 0) {
+			try {
+				join(timeout);
+			} catch (InterruptedException e) {
+				Log.w(TAG, "shutdown interrupted");
+			}
+		}
+	}
+
+	/**
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the queued
+	 */
+	public synchronized long getQueued() {
+		return queued;
+	}
+
+	/**
+	 * @return the dropped
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the committed
+	 */
+	public synchronized long getCommitted() {
+		return committed;
+	}
+
+	/**
+	 * @return the failed
+	 */
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	// @return average commit latency ms, 0 before first commit
+	public synchronized float getCommitLatency() {
+		return (commits > 0) ? commitNs / 1e6f / commits : 0;
+	}
+
+	// @return last commit latency ms
+	public synchronized float getLastCommitLatency() {
+		return lastCommitNs / 1e6f;
+	}
+
+	// @return max commit latency ms
+	public synchronized float getMaxCommitLatency() {
+		return maxCommitNs / 1e6f;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "depth=" + queue.size() + " queued=" + queued + " dropped=" + dropped
+				+ " committed=" + committed + " failed=" + failed
+				+ " commits=" + commits + " latency=" + getCommitLatency()
+				+ "/" + getMaxCommitLatency() + "ms";
+	}
+
+}
@@ -0,0 +1,154 @@
+/**
+ * @description pool of compact PID samples for streaming consumers
+ */
+package com.example.icar;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: sample_t carry mode, pid, timestamps and up to MAX_VALUES primitive
+ * values, nothing else. Samples are preallocated and recycled through a
+ * fixed stack, so steady polling allocate nothing. When pool run dry, like
+ * consumer hold too many samples, a new one is allocated and counted as miss;
+ * sample recycled into a full pool is left to GC.
+ */
+public class SamplePool {
+	private static final String TAG = "SamplePool";
+
+	// values per sample, covers every PID with numeric result items
+	public static final int MAX_VALUES = 4;
+
+	public static final int SIZE_DEFAULT = 64;
+
+	// @description PID sample, owned by consumer until recycle
+	public static final class sample_t {
+		private final SamplePool pool;
+
+		private int mode;
+		private int pid;
+		// query and response time ms
+		private long qts;
+		private long rts;
+
+		private int count;
+		private final float[] values;
+
+		private sample_t(SamplePool pool) {
+			this.pool = pool;
+			this.values = new float[MAX_VALUES];
+		}
+
+		// @description fill header, values are set by OBDReader.pidDesc.toSample
+		void set(int mode, int pid, long qts, long rts) {
+			this.mode = mode;
+			this.pid = pid;
+			this.qts = qts;
+			this.rts = rts;
+			this.count = 0;
+		}
+
+		void add(float value) {
+			if (count < MAX_VALUES) {
+				values[count++] = value;
+			}
+		}
+
+		public int getMode() {
+			return mode;
+		}
+
+		public int getPid() {
+			return pid;
+		}
+
+		public long getQts() {
+			return qts;
+		}
+
+		public long getRts() {
+			return rts;
+		}
+
+		// @return number of values
+		public int getCount() {
+			return count;
+		}
+
+		public float getValue(int i) {
+			return values[i];
+		}
+
+		// @description give sample back, don't touch it afterwards
+		public void recycle() {
+			pool.release(this);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(32);
+
+			sb.append(String.format("%02X%02X@%d", mode, pid, rts));
+			for (int i = 0; i < count; i++) {
+				sb.append(i == 0 ? ":" : ",").append(values[i]);
+			}
+
+			return sb.toString();
+		}
+	}
+
+	// free samples, guarded by pool
+	private final sample_t[] free;
+	private int top;
+
+	// allocations out of pool
+	private long misses;
+
+	public SamplePool() {
+		this(SIZE_DEFAULT);
+	}
+
+	// @param size - samples kept for reuse
+	public SamplePool(int size) {
+		this.free = new sample_t[Math.max(1, size)];
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new sample_t(this);
+		}
+		this.top = free.length;
+	}
+
+	// @description take free sample
+	public sample_t acquire() {
+		synchronized (this) {
+			if (top > 0) {
+				sample_t s = free[--top];
+				free[top] = null;
+				return s;
+			}
+			misses++;
+		}
+
+		return new sample_t(this);
+	}
+
+	private synchronized void release(sample_t s) {
+		if (top < free.length) {
+			free[top++] = s;
+		}
+	}
+
+	/**
+	 * @return the free samples
+	 */
+	public synchronized int getFree() {
+		return top;
+	}
+
+	/**
+	 * @return the misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+}
@@ -0,0 +1,530 @@
+/**
+ * @description append-only segment-rolled binary log of recorded samples
+ */
+package com.example.icar;
+
+import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: segment file seg-<seq>.log is mapped read-write at full size, so
+ * append is a memory copy, no system call:
+ *   header: 'O' 'B' 'D' 'L' version(int) trip vin
+ *   record: length(int) crc32(int) payload
+ * Payload and CRC are put before length, and mapped file is zero filled,
+ * so a record cut by process kill read as length 0, end of segment. Pages
+ * written to mapping survive process kill; power loss can lose pages not
+ * forced yet, which recovery drop by CRC.
+ * On open, last segment of previous run is recovered: truncated after its
+ * last valid record. Every segment of previous runs and each rolled one is
+ * queued as closed for compactor; open segment is never read.
+ * Log own its dir by lock file, from open() until release() after compactor
+ * took closed segments, so a recorder started before previous one is done
+ * can't recover its mapped segment or reuse its seq.
+ */
+public class SegmentLog {
+	private static final String TAG = "SegmentLog";
+
+	public static final int SEGMENT_DEFAULT = 1024 * 1024;
+
+	private static final byte[] MAGIC = { 'O', 'B', 'D', 'L' };
+	private static final int VERSION = 1;
+
+	// record length and crc
+	private static final int RECORD_HEADER = 8;
+
+	private static final String PREFIX = "seg-";
+	private static final String SUFFIX = ".log";
+	private static final String LOCK = "lock";
+
+	private final File dir;
+	private final int segmentSize;
+	private final byte[] head;
+
+	// open segment, guarded by log
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+	private long seq;
+	private final CRC32 crc;
+
+	// dir lock, held from open to release
+	private RandomAccessFile lockFile;
+	private FileLock lock;
+
+	// closed segments waiting for compactor
+	private final LinkedBlockingQueue<File> closed;
+
+	// metrics, guarded by log
+	private long appended;
+	private long dropped;
+	private long rolled;
+
+	// @param dir - segments directory
+	// @param trip - trip id written in segment header
+	// @param vin - vehicle written in segment header, null if unknown
+	// @param segmentSize - bytes per segment file
+	public SegmentLog(File dir, String trip, String vin, int segmentSize) {
+		this.dir = dir;
+		this.segmentSize = Math.max(4096, segmentSize);
+		this.head = header(trip, (vin != null) ? vin : "");
+		this.crc = new CRC32();
+		this.closed = new LinkedBlockingQueue<File>();
+	}
+
+	// @description recover segments of previous runs and open a new one
+	// @return 0 on success, -1 on failure
+	public synchronized int open() {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Log.e(TAG, "cannot create log dir " + dir);
+			return -1;
+		}
+		if (lock() != 0) {
+			return -1;
+		}
+
+		// previous segments in order, last one may be cut by crash
+		File[] segs = list(dir);
+		for (int i = 0; i < segs.length; i++) {
+			if ((i == segs.length - 1) && (recover(segs[i]) != 0)) {
+				continue;
+			}
+			closed.offer(segs[i]);
+		}
+		if (segs.length > 0) {
+			seq = seqOf(segs[segs.length - 1]);
+		}
+
+		if (create(seq + 1) != 0) {
+			release();
+			return -1;
+		}
+
+		return 0;
+	}
+
+	// @description append one record, roll segment when full
+	// @return 0 on success, -1 if log is closed or record is too large
+	public synchronized int append(byte[] buf, int off, int len) {
+		if ((map == null) || (len <= 0) || (len > segmentSize - head.length - RECORD_HEADER)) {
+			dropped++;
+			return -1;
+		}
+
+		if (map.remaining() < RECORD_HEADER + len) {
+			if ((roll() != 0) || (map == null)) {
+				dropped++;
+				return -1;
+			}
+		}
+
+		int at = map.position();
+		crc.reset();
+		crc.update(buf, off, len);
+
+		map.position(at + RECORD_HEADER);
+		map.put(buf, off, len);
+		map.putInt(at + 4, (int) crc.getValue());
+		// length last, record is visible only when complete
+		map.putInt(at, len);
+
+		appended++;
+		return 0;
+	}
+
+	// @description close open segment and start next one
+	// @return 0 on success, -1 on failure
+	public synchronized int roll() {
+		if (map == null) {
+			return -1;
+		}
+		if (seal() != 0) {
+			return -1;
+		}
+		rolled++;
+
+		return create(seq + 1);
+	}
+
+	// @description force and close open segment, it is queued as closed
+	// @return 0 on success, -1 on failure
+	public synchronized int close() {
+		if (map == null) {
+			return 0;
+		}
+
+		return seal();
+	}
+
+	// @description release dir lock, log is not reopened
+	// notes: call after close, once closed segments are compacted
+	public synchronized void release() {
+		try {
+			if (lock != null) {
+				lock.release();
+			}
+			if (lockFile != null) {
+				lockFile.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "release log dir lock:" + e);
+		}
+		lock = null;
+		lockFile = null;
+	}
+
+	// @description wait for next closed segment
+	// @return null on timeout
+	public File takeClosed(long timeout) throws InterruptedException {
+		return closed.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	// @description count of closed segments waiting for compactor
+	public int getClosedCount() {
+		return closed.size();
+	}
+
+	// @description take dir lock, fail if other log own dir
+	private int lock() {
+		if (lock != null) {
+			return 0;
+		}
+
+		try {
+			lockFile = new RandomAccessFile(new File(dir, LOCK), "rw");
+			lock = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// held by other log in this process
+			lock = null;
+		} catch (IOException e) {
+			Log.e(TAG, "cannot lock log dir " + dir + ":" + e);
+			lock = null;
+		}
+
+		if (lock == null) {
+			Log.w(TAG, "log dir " + dir + " is in use");
+			release();
+			return -1;
+		}
+
+		return 0;
+	}
+
+	// notes: call with lock held
+	private int create(long next) {
+		File f = new File(dir, String.format("%s%016x%s", PREFIX, next, SUFFIX));
+
+		try {
+			file = new RandomAccessFile(f, "rw");
+			file.setLength(0);
+			map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			map.put(head);
+			seq = next;
+		} catch (IOException e) {
+			Log.e(TAG, "cannot create segment " + f + ":" + e);
+			closeFile();
+			map = null;
+			return -1;
+		}
+
+		return 0;
+	}
+
+	// notes: call with lock held
+	private int seal() {
+		File f = new File(dir, String.format("%s%016x%s", PREFIX, seq, SUFFIX));
+		int ret = 0;
+
+		try {
+			map.force();
+			// drop zero filled tail, mapping is not touched afterwards
+			file.getChannel().truncate(map.position());
+		} catch (IOException e) {
+			Log.e(TAG, "cannot seal segment " + f + ":" + e);
+			ret = -1;
+		}
+		map = null;
+		closeFile();
+
+		// recovered on next open if seal failed
+		if (ret == 0) {
+			closed.offer(f);
+		}
+
+		return ret;
+	}
+
+	private void closeFile() {
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				Log.w(TAG, "close segment:" + e);
+			}
+			file = null;
+		}
+	}
+
+	private static byte[] header(String trip, String vin) {
+		ByteBuffer b = ByteBuffer.allocate(8 + 4 + trip.length() * 3 + vin.length() * 3);
+
+		b.put(MAGIC);
+		b.putInt(VERSION);
+		putString(b, trip);
+		putString(b, vin);
+
+		return Arrays.copyOf(b.array(), b.position());
+	}
+
+	// @description truncate segment after last valid record
+	// @return 0 on success, -1 if segment is unusable and removed
+	static int recover(File f) {
+		reader r = read(f);
+
+		if (r == null) {
+			Log.w(TAG, "remove broken segment " + f);
+			f.delete();
+			return -1;
+		}
+		while (r.next() != null) {
+			// scan to last valid record
+		}
+
+		if (r.getEnd() < f.length()) {
+			Log.w(TAG, "recover segment " + f + " at " + r.getEnd() + "/" + f.length());
+			try {
+				RandomAccessFile raf = new RandomAccessFile(f, "rw");
+				try {
+					raf.setLength(r.getEnd());
+				} finally {
+					raf.close();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "cannot truncate segment " + f + ":" + e);
+				return -1;
+			}
+		}
+
+		return 0;
+	}
+
+	// @description segments of dir in seq order
+	private static File[] list(File dir) {
+		File[] all = dir.listFiles();
+		int n = 0;
+
+		if (all == null) {
+			return new File[0];
+		}
+		for (int i = 0; i < all.length; i++) {
+			if (seqOf(all[i]) >= 0) {
+				all[n++] = all[i];
+			}
+		}
+
+		File[] segs = Arrays.copyOf(all, n);
+		// fixed width hex name sort as seq
+		Arrays.sort(segs);
+
+		return segs;
+	}
+
+	// @return segment seq, -1 if not a segment file
+	public static long seqOf(File f) {
+		String name = f.getName();
+
+		if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)
+				|| (name.length() != PREFIX.length() + 16 + SUFFIX.length())) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(PREFIX.length(),
+					name.length() - SUFFIX.length()), 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// @description read closed segment
+	// @return null if segment can't be read or header is invalid
+	public static reader read(File f) {
+		try {
+			FileInputStream in = new FileInputStream(f);
+			try {
+				return read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "cannot read segment " + f + ":" + e);
+			return null;
+		}
+	}
+
+	// @description read segment content, like log attachment of summary
+	// @return null if header is invalid
+	public static reader read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+		byte[] buf = new byte[8 * 1024];
+		int n;
+
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+
+		return reader.open(out.toByteArray());
+	}
+
+	// @description record reader of segment content
+	// notes: next() stop at first record of length 0 or bad CRC
+	public static final class reader {
+		private final ByteBuffer buf;
+		private final String trip;
+		private final String vin;
+		private final CRC32 crc;
+		private int end;
+
+		private reader(ByteBuffer buf, String trip, String vin) {
+			this.buf = buf;
+			this.trip = trip;
+			this.vin = vin;
+			this.crc = new CRC32();
+			this.end = buf.position();
+		}
+
+		private static reader open(byte[] content) {
+			ByteBuffer b = ByteBuffer.wrap(content);
+
+			try {
+				byte[] magic = new byte[MAGIC.length];
+				b.get(magic);
+				if (!Arrays.equals(magic, MAGIC) || (b.getInt() != VERSION)) {
+					return null;
+				}
+				String trip = getString(b);
+				String vin = getString(b);
+
+				return new reader(b, trip, vin);
+			} catch (RuntimeException e) {
+				// short or garbage header
+				return null;
+			}
+		}
+
+		// @description next record payload, backed by segment content
+		// @return null at end of valid records
+		public ByteBuffer next() {
+			if (buf.remaining() < RECORD_HEADER) {
+				return null;
+			}
+
+			int at = buf.position();
+			int len = buf.getInt(at);
+			if ((len <= 0) || (len > buf.remaining() - RECORD_HEADER)) {
+				return null;
+			}
+			crc.reset();
+			crc.update(buf.array(), at + RECORD_HEADER, len);
+			if ((int) crc.getValue() != buf.getInt(at + 4)) {
+				return null;
+			}
+
+			ByteBuffer payload = ByteBuffer.wrap(buf.array(), at + RECORD_HEADER, len).slice();
+			buf.position(at + RECORD_HEADER + len);
+			end = buf.position();
+
+			return payload;
+		}
+
+		public String getTrip() {
+			return trip;
+		}
+
+		// @return vin, empty if unknown
+		public String getVin() {
+			return vin;
+		}
+
+		// @return offset after last valid record read
+		public int getEnd() {
+			return end;
+		}
+
+		// @return segment content up to last valid record read
+		public byte[] getContent() {
+			return Arrays.copyOf(buf.array(), end);
+		}
+	}
+
+	// @description short length prefixed UTF-8 string
+	static void putString(ByteBuffer b, String s) {
+		byte[] bytes;
+
+		try {
+			bytes = (s != null) ? s.getBytes("UTF-8") : new byte[0];
+		} catch (UnsupportedEncodingException e) {
+			bytes = new byte[0];
+		}
+		b.putShort((short) bytes.length);
+		b.put(bytes);
+	}
+
+	static String getString(ByteBuffer b) {
+		int len = b.getShort() & 0xffff;
+		byte[] bytes = new byte[len];
+
+		b.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return "";
+		}
+	}
+
+	/**
+	 * @return the seq of open segment
+	 */
+	public synchronized long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * @return the appended
+	 */
+	public synchronized long getAppended() {
+		return appended;
+	}
+
+	/**
+	 * @return the dropped
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return the rolled
+	 */
+	public synchronized long getRolled() {
+		return rolled;
+	}
+
+}
@@ -0,0 +1,299 @@
+/**
+ * @description compact binary codec of recorded PID time series
+ */
+package com.example.icar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: a stream is a sequence of self-delimited series blocks, so blocks
+ * can be appended to a file or attachment and read back one by one:
+ *   'O' 'S' version mode pid flags items [scale offset] count samples
+ * Each sample is timestamp then items values, all as zigzag varints:
+ * - timestamp: first absolute ms, second delta, then delta of delta, so
+ *   regular sampling cost one byte
+ * - value: quantized by PID resolution, raw = round((v - offset) / scale),
+ *   as delta to previous raw; PID without known resolution keep float bits
+ *   as delta to previous bits
+ * A 10Hz series of slowly changing PID take about 2-3 bytes per sample.
+ */
+public class SeriesCodec {
+	private static final String TAG = "SeriesCodec";
+
+	private static final int MAGIC0 = 'O';
+	private static final int MAGIC1 = 'S';
+	private static final int VERSION = 1;
+
+	// flags
+	private static final int FLAG_QUANTIZED = 0x01;
+
+	// values per sample at most
+	public static final int MAX_ITEMS = SamplePool.MAX_VALUES;
+
+	// @description encoder of one PID series, samples are buffered until
+	// writeTo since block header carry sample count
+	public static final class encoder {
+		private final int mode;
+		private final int pid;
+		private final int items;
+		private final float scale;
+		private final float offset;
+
+		private byte[] buf;
+		private int len;
+		private int count;
+
+		private long lastTs;
+		private long lastDelta;
+		private final long[] last;
+
+		// @param items - values per sample, 0 for timestamps only
+		public encoder(int mode, int pid, int items) {
+			OBDReader.pidDef def = OBDReader.pidDef.get(mode, pid);
+
+			this.mode = mode;
+			this.pid = pid;
+			this.items = Math.max(0, Math.min(MAX_ITEMS, items));
+			// quantize single value linear PID by its resolution
+			this.scale = ((def != null) && (this.items == 1)) ? def.getResolution() : 0;
+			this.offset = (this.scale != 0) ? def.getOffset() : 0;
+			this.buf = new byte[64];
+			this.last = new long[MAX_ITEMS];
+		}
+
+		// @description append sample
+		// @param values - items values, only first items are used
+		public void append(long ts, float[] values) {
+			// timestamp
+			if (count == 0) {
+				putVarint(zigzag(ts));
+			} else {
+				long delta = ts - lastTs;
+				putVarint(zigzag((count == 1) ? delta : delta - lastDelta));
+				lastDelta = delta;
+			}
+			lastTs = ts;
+
+			// values
+			for (int i = 0; i < items; i++) {
+				long raw = (scale != 0) ? Math.round((values[i] - offset) / scale)
+						: Float.floatToIntBits(values[i]);
+				putVarint(zigzag(raw - last[i]));
+				last[i] = raw;
+			}
+
+			count++;
+		}
+
+		/**
+		 * @return the count
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		// @description write series block
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(MAGIC0);
+			out.write(MAGIC1);
+			out.write(VERSION);
+			out.write(mode);
+			out.write(pid);
+			out.write((scale != 0) ? FLAG_QUANTIZED : 0);
+			out.write(items);
+			if (scale != 0) {
+				writeInt(out, Float.floatToIntBits(scale));
+				writeInt(out, Float.floatToIntBits(offset));
+			}
+			writeVarint(out, count);
+			out.write(buf, 0, len);
+		}
+
+		private void putVarint(long v) {
+			if (len + 10 > buf.length) {
+				byte[] nbuf = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, nbuf, 0, len);
+				buf = nbuf;
+			}
+
+			while ((v & ~0x7fL) != 0) {
+				buf[len++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			buf[len++] = (byte) v;
+		}
+	}
+
+	// @description streaming decoder of series blocks
+	// notes: nextSeries() move to next block, next() to next sample of it
+	public static final class decoder {
+		private final InputStream in;
+
+		private int mode;
+		private int pid;
+		private int items;
+		private float scale;
+		private float offset;
+		private int remaining;
+		private int index;
+
+		private long ts;
+		private long delta;
+		private final long[] raw;
+		private final float[] values;
+
+		public decoder(InputStream in) {
+			this.in = in;
+			this.raw = new long[MAX_ITEMS];
+			this.values = new float[MAX_ITEMS];
+		}
+
+		// @description read next series block header, skip rest of current one
+		// @return false at end of stream
+		public boolean nextSeries() throws IOException {
+			while (remaining > 0) {
+				next();
+			}
+
+			int m0 = in.read();
+			if (m0 < 0) {
+				return false;
+			}
+			if ((m0 != MAGIC0) || (readByte(in) != MAGIC1) || (readByte(in) != VERSION)) {
+				throw new IOException("invalid series block");
+			}
+			mode = readByte(in);
+			pid = readByte(in);
+			int flags = readByte(in);
+			items = readByte(in);
+			if (items > MAX_ITEMS) {
+				throw new IOException("invalid series items " + items);
+			}
+			if ((flags & FLAG_QUANTIZED) != 0) {
+				scale = Float.intBitsToFloat(readInt(in));
+				offset = Float.intBitsToFloat(readInt(in));
+			} else {
+				scale = 0;
+				offset = 0;
+			}
+			remaining = (int) readVarint(in);
+			index = 0;
+			for (int i = 0; i < MAX_ITEMS; i++) {
+				raw[i] = 0;
+			}
+
+			return true;
+		}
+
+		// @description read next sample of current series
+		// @return false at end of series
+		public boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+
+			long v = unzigzag(readVarint(in));
+			if (index == 0) {
+				ts = v;
+			} else {
+				delta = (index == 1) ? v : delta + v;
+				ts += delta;
+			}
+
+			for (int i = 0; i < items; i++) {
+				raw[i] += unzigzag(readVarint(in));
+				values[i] = (scale != 0) ? raw[i] * scale + offset
+						: Float.intBitsToFloat((int) raw[i]);
+			}
+
+			index++;
+			remaining--;
+			return true;
+		}
+
+		public int getMode() {
+			return mode;
+		}
+
+		public int getPid() {
+			return pid;
+		}
+
+		// @return values per sample
+		public int getItems() {
+			return items;
+		}
+
+		// @return samples left in current series
+		public int getRemaining() {
+			return remaining;
+		}
+
+		public long getTs() {
+			return ts;
+		}
+
+		public float getValue(int i) {
+			return values[i];
+		}
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void writeVarint(OutputStream out, long v) throws IOException {
+		while ((v & ~0x7fL) != 0) {
+			out.write((int) ((v & 0x7f) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static long readVarint(InputStream in) throws IOException {
+		long v = 0;
+
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte(in);
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+
+		throw new IOException("invalid varint");
+	}
+
+	private static void writeInt(OutputStream out, int v) throws IOException {
+		out.write(v >>> 24);
+		out.write(v >>> 16);
+		out.write(v >>> 8);
+		out.write(v);
+	}
+
+	private static int readInt(InputStream in) throws IOException {
+		return (readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8)
+				| readByte(in);
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+
+		if (b < 0) {
+			throw new EOFException();
+		}
+
+		return b;
+	}
+
+}
@@ -0,0 +1,128 @@
+/**
+ * @description ELM327 transport over blocking streams, like Bluetooth RFCOMM socket
+ */
+package com.example.icar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: Bluetooth socket is not selectable, so one pump thread copies
+ * input stream into a pipe selected by event loop. Commands are few bytes
+ * and written through on loop thread.
+ */
+public class StreamTransport extends NioTransport {
+	private static final String TAG = "StreamTransport";
+
+	private final InputStream in;
+	private final OutputStream out;
+	private Pipe pipe;
+	private pumpThread pump;
+
+	public StreamTransport(InputStream in, OutputStream out) {
+		this.in = in;
+		this.out = out;
+	}
+
+	@Override
+	protected boolean openChannels() throws IOException {
+		pipe = Pipe.open();
+
+		rxChannel = pipe.source();
+		txChannel = new streamChannel();
+
+		pump = new pumpThread();
+		pump.setDaemon(true);
+		pump.start();
+
+		return true;
+	}
+
+	@Override
+	protected void closeChannels() {
+		try {
+			in.close();
+			pipe.sink().close();
+		} catch (IOException e) {
+			Log.e(TAG, "close stream exception:" + e);
+		}
+	}
+
+	// @description write through output stream, flush on each write
+	private class streamChannel implements WritableByteChannel {
+		private final byte[] buf = new byte[256];
+		private boolean open = true;
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int n = 0;
+
+			while (src.hasRemaining()) {
+				int len = Math.min(src.remaining(), buf.length);
+				src.get(buf, 0, len);
+				out.write(buf, 0, len);
+				n += len;
+			}
+			out.flush();
+
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			open = false;
+			out.close();
+		}
+	}
+
+	// @description copy input stream into pipe, pipe closed on stream end
+	private class pumpThread extends Thread {
+
+		public void run() {
+			Log.d(TAG, "pump thread started");
+
+			final byte[] buf = new byte[1024];
+			final ByteBuffer bb = ByteBuffer.wrap(buf);
+			int len;
+
+			try {
+				while ((len = in.read(buf)) >= 0) {
+					bb.clear();
+					bb.limit(len);
+					while (bb.hasRemaining()) {
+						pipe.sink().write(bb);
+					}
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "read stream exception:" + e);
+			}
+
+			try {
+				pipe.sink().close();
+			} catch (IOException e) {
+				Log.e(TAG, "close pipe exception:" + e);
+			}
+		}
+
+	}
+
+	@Override
+	public String toString() {
+		return "stream";
+	}
+
+}
@@ -0,0 +1,271 @@
+/**
+ * @description supported PID bitmap index of one vehicle
+ */
+package com.example.icar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: 256 bits of mode 1 (shared by mode 2) and mode 9 PIDs are kept as
+ * int[8] in the [A7..D0] order of supported PIDs responses. A mode is known
+ * once its supported PIDs scan completed or bitmap is loaded from store by
+ * VIN. Before that every PID is let through; after that query of unsupported
+ * PID fail fast instead of waiting out the adapter timeout.
+ * Other modes, like DTC read/clear, are never checked.
+ */
+public class SupportedPids {
+	private static final String TAG = "SupportedPids";
+
+	// @description bitmap persistence, like per VIN
+	public interface store {
+		// @return bitmap as string, null if unknown
+		public String getSupportedPids(String vin);
+
+		public void putSupportedPids(String vin, String bits);
+	}
+
+	// bitmap words per mode
+	private static final int WORDS = 8;
+
+	// bitmap of mode 1&2 and mode 9, null until known
+	private volatile int[] bits01;
+	private volatile int[] bits09;
+
+	// scan in progress, guarded by index
+	private boolean scan01;
+	private boolean scan09;
+
+	private store store;
+	private volatile String vin;
+
+	// queries rejected before hit the bus
+	private final AtomicLong rejected = new AtomicLong();
+
+	public SupportedPids() {
+	}
+
+	// @param store - bitmap persistence, null to keep in memory only
+	public synchronized void setStore(store store) {
+		this.store = store;
+	}
+
+	// @description bind bitmap to vehicle
+	// notes: known bitmap is loaded from store, or bitmap scanned before VIN
+	// is known is stored for next session. Bitmap of other vehicle is dropped.
+	public synchronized void setVin(String vin) {
+		if ((vin == null) || vin.equals(this.vin)) {
+			return;
+		}
+		if (this.vin != null) {
+			bits01 = null;
+			bits09 = null;
+		}
+		this.vin = vin;
+
+		if (store == null) {
+			return;
+		}
+		if (!decode(store.getSupportedPids(vin))) {
+			save();
+		} else {
+			Log.d(TAG, "loaded supported PIDs of " + vin);
+		}
+	}
+
+	/**
+	 * @return the vin
+	 */
+	public String getVin() {
+		return vin;
+	}
+
+	// @description check if mode bitmap is known
+	public boolean isKnown(int mode) {
+		return words(mode) != null;
+	}
+
+	// @description check mode&pid in O(1)
+	// @return false only if bitmap of mode is known and pid is not set
+	public boolean isSupported(int mode, int pid) {
+		int[] w = words(mode);
+
+		if ((w == null) || (pid == 0x00)) {
+			return true;
+		}
+		if ((pid < 0) || (pid > 0xff)) {
+			return false;
+		}
+
+		return (w[(pid - 1) >> 5] & (0x80000000 >>> ((pid - 1) & 31))) != 0;
+	}
+
+	// @description check mode&pid before query is sent
+	// @return true if query may go to adapter, false counted as rejected
+	public boolean admit(int mode, int pid) {
+		if (isSupported(mode, pid)) {
+			return true;
+		}
+
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	// @description list supported PIDs of mode
+	// @return null if bitmap of mode is unknown
+	public List<Integer> list(int mode) {
+		int[] w = words(mode);
+		if (w == null) {
+			return null;
+		}
+
+		List<Integer> pids = new ArrayList<Integer>();
+		for (int pid = 1; pid <= 0xff; pid++) {
+			if ((w[(pid - 1) >> 5] & (0x80000000 >>> ((pid - 1) & 31))) != 0) {
+				pids.add(pid);
+			}
+		}
+
+		return pids;
+	}
+
+	// @description start scan of mode
+	// @return true if caller has to scan, false if scan is in progress
+	public synchronized boolean beginScan(int mode) {
+		int m = index(mode);
+
+		if ((m == 1) ? scan01 : (m == 9) ? scan09 : true) {
+			return false;
+		}
+		if (m == 1) {
+			scan01 = true;
+		} else {
+			scan09 = true;
+		}
+
+		return true;
+	}
+
+	// @description complete scan of mode
+	// @param words - bitmap as int[8], null if scan failed
+	public synchronized void endScan(int mode, int[] words) {
+		int m = index(mode);
+
+		if (m == 1) {
+			scan01 = false;
+			if (words != null) {
+				bits01 = words;
+			}
+		} else if (m == 9) {
+			scan09 = false;
+			if (words != null) {
+				bits09 = words;
+			}
+		}
+
+		if ((words != null) && (vin != null)) {
+			save();
+		}
+	}
+
+	// @description drop bitmap, like adapter connected to other vehicle
+	public synchronized void clear() {
+		bits01 = null;
+		bits09 = null;
+		vin = null;
+	}
+
+	/**
+	 * @return the rejected
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return "vin=" + vin + " 01=" + list(0x01) + " 09=" + list(0x09)
+				+ " rejected=" + rejected.get();
+	}
+
+	// @description bitmap index, mode 2 share mode 1
+	// @return 1 or 9, -1 if mode is not indexed
+	private static int index(int mode) {
+		return ((mode == 0x01) || (mode == 0x02)) ? 1 : (mode == 0x09) ? 9 : -1;
+	}
+
+	private int[] words(int mode) {
+		int m = index(mode);
+
+		return (m == 1) ? bits01 : (m == 9) ? bits09 : null;
+	}
+
+	private void save() {
+		if ((store != null) && ((bits01 != null) || (bits09 != null))) {
+			store.putSupportedPids(vin, encode(bits01) + "," + encode(bits09));
+		}
+	}
+
+	// @description bitmap as 64 hex digits, empty if unknown
+	private static String encode(int[] w) {
+		if (w == null) {
+			return "";
+		}
+
+		StringBuilder sb = new StringBuilder(WORDS * 8);
+		for (int i = 0; i < WORDS; i++) {
+			sb.append(String.format("%08x", w[i]));
+		}
+
+		return sb.toString();
+	}
+
+	// @description parse "<mode 1 bitmap>,<mode 9 bitmap>"
+	// @return true if any bitmap loaded
+	private boolean decode(String s) {
+		if (s == null) {
+			return false;
+		}
+
+		String[] parts = s.split(",", -1);
+		if (parts.length != 2) {
+			Log.w(TAG, "invalid supported PIDs " + s);
+			return false;
+		}
+
+		int[] w01 = decode1(parts[0]);
+		int[] w09 = decode1(parts[1]);
+		if (w01 != null) {
+			bits01 = w01;
+		}
+		if (w09 != null) {
+			bits09 = w09;
+		}
+
+		return (w01 != null) || (w09 != null);
+	}
+
+	private static int[] decode1(String s) {
+		if (s.length() != WORDS * 8) {
+			return null;
+		}
+
+		int[] w = new int[WORDS];
+		try {
+			for (int i = 0; i < WORDS; i++) {
+				w[i] = (int) Long.parseLong(s.substring(i * 8, i * 8 + 8), 16);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		return w;
+	}
+
+}
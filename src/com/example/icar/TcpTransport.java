@@ -0,0 +1,53 @@
+/**
+ * @description ELM327 transport over TCP, like WiFi OBD2 dongle
+ */
+package com.example.icar;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ */
+public class TcpTransport extends NioTransport {
+	private static final String TAG = "TcpTransport";
+
+	// most WiFi ELM327 dongles listen on 192.168.0.10:35000
+	public static final String DEFAULT_HOST = "192.168.0.10";
+	public static final int DEFAULT_PORT = 35000;
+
+	private final String host;
+	private final int port;
+
+	public TcpTransport(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	public TcpTransport() {
+		this(DEFAULT_HOST, DEFAULT_PORT);
+	}
+
+	@Override
+	protected boolean openChannels() throws IOException {
+		SocketChannel ch = SocketChannel.open();
+
+		ch.configureBlocking(false);
+		// commands are few bytes, send at once
+		ch.socket().setTcpNoDelay(true);
+
+		rxChannel = ch;
+		txChannel = ch;
+
+		return ch.connect(new InetSocketAddress(host, port));
+	}
+
+	@Override
+	public String toString() {
+		return "tcp://" + host + ":" + port;
+	}
+
+}
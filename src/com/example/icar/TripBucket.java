@@ -0,0 +1,476 @@
+/**
+ * @description time bucketed columnar document of recorded samples
+ */
+package com.example.icar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import android.util.Log;
+
+import com.example.icar.OBDReader.pidDesc;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: samples of one record type in one trip-minute share one document.
+ * Repeated keys like category, uid, vin, sec, type and tags are written once
+ * per bucket; per sample data are columns:
+ * {
+ *  _id: trip:type:bucket
+ *  trip, bucket: bucket start ms, span: bucket ms, sealed: true
+ *  count, from, to: samples and their first and last created time
+ *  stats: {"010D": {count, min, max, sum} of first number item}, like log
+ *         summary, kept in JSON with series encoding too
+ *  category, type, tags, uid, vin, sec
+ *  pids: ["010D", "015E"]
+ *  cts: [created time of each sample]
+ *  geo: [location of each sample], optional
+ *  ets: {"010D": [response time of each sample], ...}
+ *  values: {"010D": [value of each sample], ...}
+ * }
+ * Value is float, string, or list of them for multiple result items; null
+ * if PID is missing in sample. Bucket is sealed and written once when next
+ * sample fall out of it or recorder is closed.
+ * Sealed with series encoding, cts and number PIDs present in every sample
+ * are moved out of JSON into SeriesCodec blocks in attachment "series",
+ * and "encoding": "series" is set; other PIDs, like DTC strings, stay JSON.
+ */
+public class TripBucket {
+	private static final String TAG = "TripBucket";
+
+	public static final long SPAN_DEFAULT = 60 * 1000;
+
+	// series attachment name and encoding
+	public static final String SERIES = "series";
+
+	// record header keys written once per bucket
+	private static final String[] HEADER = { "category", "type", "tags", "uid",
+			"vin", "sec" };
+
+	private final String trip;
+	private final long start;
+	private final long span;
+	private final Map<String, Object> header;
+
+	// columns
+	private final List<Long> cts;
+	private final List<String> geo;
+	private final List<String> pids;
+	private final Map<String, List<Long>> ets;
+	private final Map<String, List<Object>> values;
+
+	// @param trip - trip id
+	// @param ts - time of first sample, bucket start at span boundary
+	// @param header - category, type, tags, uid, vin, sec of record, null
+	// value is left out
+	public TripBucket(String trip, long ts, long span, Map<String, Object> header) {
+		this.trip = trip;
+		this.span = span;
+		this.start = ts - (ts % span);
+		this.header = new Hashtable<String, Object>();
+		for (int i = 0; i < HEADER.length; i++) {
+			Object v = header.get(HEADER[i]);
+			if (v != null) {
+				this.header.put(HEADER[i], v);
+			}
+		}
+
+		this.cts = new ArrayList<Long>();
+		this.geo = new ArrayList<String>();
+		this.pids = new ArrayList<String>();
+		this.ets = new Hashtable<String, List<Long>>();
+		this.values = new Hashtable<String, List<Object>>();
+	}
+
+	// @description check if sample time is in bucket
+	public boolean covers(long ts) {
+		return (ts >= start) && (ts < start + span);
+	}
+
+	// @description append one sample as a row of columns
+	// @param geo - location, null if not available
+	// @param descs - converted PID responses of sample
+	public void append(long ts, String location, List<pidDesc> descs) {
+		int row = cts.size();
+
+		cts.add(ts);
+		geo.add(location);
+
+		for (int i = 0; i < descs.size(); i++) {
+			pidDesc desc = descs.get(i);
+			if (desc == null) {
+				continue;
+			}
+			String pid = String.format("%02X%02X", desc.getMode(), desc.getPid());
+
+			List<Long> e = ets.get(pid);
+			List<Object> v = values.get(pid);
+			if (e == null) {
+				// PID first seen, earlier rows are missing it
+				pids.add(pid);
+				e = new ArrayList<Long>(row + 1);
+				v = new ArrayList<Object>(row + 1);
+				for (int r = 0; r < row; r++) {
+					e.add(null);
+					v.add(null);
+				}
+				ets.put(pid, e);
+				values.put(pid, v);
+			}
+			e.add(desc.getRts());
+			v.add(value(desc));
+		}
+
+		// PIDs missing in this sample
+		for (int i = 0; i < pids.size(); i++) {
+			List<Long> e = ets.get(pids.get(i));
+			if (e.size() == row) {
+				e.add(null);
+				values.get(pids.get(i)).add(null);
+			}
+		}
+	}
+
+	// @description sample value of converted pidDesc
+	// item_value_type: 0 - number(float), 1 - string, 2 - error
+	private static Object value(pidDesc desc) {
+		int n = desc.getResult_item_number();
+		int[] type = desc.getResult_item_value_type();
+
+		if ((n <= 0) || (type == null)) {
+			return null;
+		}
+		if (n == 1) {
+			return item(desc, 0);
+		}
+
+		List<Object> items = new ArrayList<Object>(n);
+		for (int i = 0; i < n; i++) {
+			items.add(item(desc, i));
+		}
+
+		return items;
+	}
+
+	private static Object item(pidDesc desc, int i) {
+		switch (desc.getResult_item_value_type()[i]) {
+		case 0:
+			return desc.getResult_item_value_number()[i];
+		case 1:
+			return desc.getResult_item_value_string()[i];
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the sample count
+	 */
+	public int getCount() {
+		return cts.size();
+	}
+
+	// @description document id of bucket
+	public String getId() {
+		return trip + ":" + header.get("type") + ":" + start;
+	}
+
+	// @description sealed bucket as document map
+	public Map<String, Object> seal() {
+		return seal(false);
+	}
+
+	// @description sealed bucket as document map
+	// @param series - encode cts and number PIDs in series attachment, which
+	// is put in RecordWriter.ATTACHMENTS of document map
+	public Map<String, Object> seal(boolean series) {
+		Map<String, Object> doc = new Hashtable<String, Object>(header);
+		boolean located = false;
+
+		for (int i = 0; i < geo.size(); i++) {
+			located |= (geo.get(i) != null);
+		}
+
+		doc.put("_id", getId());
+		doc.put("trip", trip);
+		doc.put("bucket", start);
+		doc.put("span", span);
+		doc.put("sealed", true);
+		if (cts.size() > 0) {
+			doc.put("count", cts.size());
+			doc.put("from", cts.get(0));
+			doc.put("to", cts.get(cts.size() - 1));
+		}
+		doc.put("pids", pids);
+		doc.put("stats", stats());
+		doc.put("cts", cts);
+		if (located) {
+			doc.put("geo", geo);
+		}
+		doc.put("ets", ets);
+		doc.put("values", values);
+
+		if (series) {
+			encode(doc);
+		}
+
+		return doc;
+	}
+
+	// @description stats of first number item per PID
+	private Map<String, Map<String, Object>> stats() {
+		Map<String, Map<String, Object>> stats = new Hashtable<String, Map<String, Object>>();
+
+		for (int i = 0; i < pids.size(); i++) {
+			String pid = pids.get(i);
+			List<Object> v = values.get(pid);
+
+			for (int r = 0; r < v.size(); r++) {
+				Object o = v.get(r);
+				if (o instanceof List) {
+					for (Object item : (List<?>) o) {
+						if (item instanceof Float) {
+							o = item;
+							break;
+						}
+					}
+				}
+				if (o instanceof Float) {
+					LogCompactor.stat(stats, pid, (Float) o);
+				}
+			}
+		}
+
+		return stats;
+	}
+
+	// @description move cts and number PID columns into series attachment
+	private void encode(Map<String, Object> doc) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + cts.size() * 4);
+		Map<String, List<Long>> jets = new Hashtable<String, List<Long>>(ets);
+		Map<String, List<Object>> jvalues = new Hashtable<String, List<Object>>(values);
+		float[] vs = new float[SeriesCodec.MAX_ITEMS];
+
+		try {
+			// timestamps only series of mode 0 pid 0
+			SeriesCodec.encoder ce = new SeriesCodec.encoder(0, 0, 0);
+			for (int r = 0; r < cts.size(); r++) {
+				ce.append(cts.get(r), vs);
+			}
+			ce.writeTo(out);
+
+			for (int i = 0; i < pids.size(); i++) {
+				String pid = pids.get(i);
+				List<Object> v = values.get(pid);
+				int items = items(v);
+				if (items < 0) {
+					continue;
+				}
+
+				SeriesCodec.encoder e = new SeriesCodec.encoder(
+						Integer.parseInt(pid.substring(0, 2), 16),
+						Integer.parseInt(pid.substring(2, 4), 16), items);
+				List<Long> t = ets.get(pid);
+				for (int r = 0; r < v.size(); r++) {
+					Object o = v.get(r);
+					for (int k = 0; k < items; k++) {
+						vs[k] = (Float) ((o instanceof List) ? ((List<?>) o).get(k) : o);
+					}
+					e.append(t.get(r), vs);
+				}
+				e.writeTo(out);
+
+				jets.remove(pid);
+				jvalues.remove(pid);
+			}
+		} catch (IOException e) {
+			// in memory stream, keep JSON columns
+			Log.e(TAG, "series encode fail:" + e);
+			return;
+		}
+
+		Map<String, byte[]> attachments = new Hashtable<String, byte[]>();
+		attachments.put(SERIES, out.toByteArray());
+
+		doc.put("encoding", SERIES);
+		doc.remove("cts");
+		doc.put("ets", jets);
+		doc.put("values", jvalues);
+		doc.put(RecordWriter.ATTACHMENTS, attachments);
+	}
+
+	// @description number items of PID column
+	// @return items per sample, -1 if any sample is missing or not number
+	private static int items(List<Object> v) {
+		int items = -1;
+
+		for (int r = 0; r < v.size(); r++) {
+			Object o = v.get(r);
+			int n;
+
+			if (o instanceof Float) {
+				n = 1;
+			} else if (o instanceof List) {
+				List<?> l = (List<?>) o;
+				for (int k = 0; k < l.size(); k++) {
+					if (!(l.get(k) instanceof Float)) {
+						return -1;
+					}
+				}
+				n = l.size();
+			} else {
+				return -1;
+			}
+
+			if (((items >= 0) && (n != items)) || (n > SeriesCodec.MAX_ITEMS)) {
+				return -1;
+			}
+			items = n;
+		}
+
+		return items;
+	}
+
+	// @description iterate samples of bucket document back out
+	public static reader read(Map<String, Object> doc) {
+		return new reader(doc);
+	}
+
+	// @description iterate samples of series encoded bucket document
+	// @param series - content of series attachment
+	public static reader read(Map<String, Object> doc, InputStream series)
+			throws IOException {
+		Map<String, Object> full = new Hashtable<String, Object>(doc);
+		Map<String, Object> fets = new Hashtable<String, Object>();
+		Map<String, Object> fvalues = new Hashtable<String, Object>();
+
+		if (doc.get("ets") instanceof Map) {
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) doc.get("ets")).entrySet()) {
+				fets.put((String) e.getKey(), e.getValue());
+			}
+		}
+		if (doc.get("values") instanceof Map) {
+			for (Map.Entry<?, ?> e : ((Map<?, ?>) doc.get("values")).entrySet()) {
+				fvalues.put((String) e.getKey(), e.getValue());
+			}
+		}
+
+		SeriesCodec.decoder d = new SeriesCodec.decoder(series);
+		while (d.nextSeries()) {
+			List<Long> t = new ArrayList<Long>(d.getRemaining());
+			List<Object> v = new ArrayList<Object>(d.getRemaining());
+
+			while (d.next()) {
+				t.add(d.getTs());
+				if (d.getItems() == 1) {
+					v.add(d.getValue(0));
+				} else if (d.getItems() > 1) {
+					List<Object> l = new ArrayList<Object>(d.getItems());
+					for (int k = 0; k < d.getItems(); k++) {
+						l.add(d.getValue(k));
+					}
+					v.add(l);
+				}
+			}
+
+			if ((d.getMode() == 0) && (d.getPid() == 0)) {
+				full.put("cts", t);
+			} else {
+				String pid = String.format("%02X%02X", d.getMode(), d.getPid());
+				fets.put(pid, t);
+				fvalues.put(pid, v);
+			}
+		}
+		full.put("ets", fets);
+		full.put("values", fvalues);
+
+		return new reader(full);
+	}
+
+	// @description sample of bucket as map, like one document per sample:
+	// {category, type, uid, vin, sec, cts, geo, <pid>: value, <pid>_ets: ets}
+	public static final class reader implements Iterator<Map<String, Object>> {
+		private final Map<String, Object> doc;
+		private final List<?> cts;
+		private final List<?> geo;
+		private final List<?> pids;
+		private final Map<?, ?> ets;
+		private final Map<?, ?> values;
+		private int row;
+
+		private reader(Map<String, Object> doc) {
+			this.doc = doc;
+			this.cts = list(doc.get("cts"));
+			this.geo = list(doc.get("geo"));
+			this.pids = list(doc.get("pids"));
+			this.ets = (doc.get("ets") instanceof Map) ? (Map<?, ?>) doc.get("ets") : null;
+			this.values = (doc.get("values") instanceof Map) ? (Map<?, ?>) doc.get("values") : null;
+		}
+
+		private static List<?> list(Object o) {
+			return (o instanceof List) ? (List<?>) o : null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return (cts != null) && (row < cts.size());
+		}
+
+		@Override
+		public Map<String, Object> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			Map<String, Object> sample = new Hashtable<String, Object>();
+			for (int i = 0; i < HEADER.length; i++) {
+				Object v = doc.get(HEADER[i]);
+				if (v != null) {
+					sample.put(HEADER[i], v);
+				}
+			}
+			put(sample, "cts", cts.get(row));
+			if ((geo != null) && (row < geo.size())) {
+				put(sample, "geo", geo.get(row));
+			}
+
+			for (int i = 0; (pids != null) && (i < pids.size()); i++) {
+				String pid = (String) pids.get(i);
+				List<?> v = (values != null) ? list(values.get(pid)) : null;
+				List<?> e = (ets != null) ? list(ets.get(pid)) : null;
+
+				if ((v != null) && (row < v.size())) {
+					put(sample, pid, v.get(row));
+				}
+				if ((e != null) && (row < e.size())) {
+					put(sample, pid + "_ets", e.get(row));
+				}
+			}
+			row++;
+
+			return sample;
+		}
+
+		private static void put(Map<String, Object> m, String k, Object v) {
+			// Hashtable take no null, missing value is absent key
+			if (v != null) {
+				m.put(k, v);
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
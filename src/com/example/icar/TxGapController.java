@@ -0,0 +1,161 @@
+/**
+ * @description adaptive inter-packet gap controller for OBD adapter
+ */
+package com.example.icar;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+
+import android.util.Log;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ */
+public class TxGapController {
+	private static final String TAG = "TxGapController";
+
+	// gap bounds in ms
+	private static final long gapMin = 0;
+	private static final long gapMax = 2000;
+	private static final long gapInit = 150;
+
+	// query timeout bounds in ms
+	private static final long timeoutMin = 300;
+	private static final long timeoutMax = 5000;
+	private static final long timeoutInit = 600;
+
+	// RTT samples kept per protocol
+	private static final int rttWindow = 128;
+
+	// @description gap and RTT state of one protocol
+	private static class protocol_state_t {
+		private long gap = gapInit;
+
+		// RTT ring buffer
+		private final long[] rtts = new long[rttWindow];
+		private int rttCnt;
+		private int rttIdx;
+
+		// statistics
+		private long okCnt;
+		private long overrunCnt;
+		private long timeoutCnt;
+	}
+
+	private final String adapter;
+	private final Hashtable<String, protocol_state_t> states;
+	private protocol_state_t state;
+	private String protocol;
+
+	// reusable percentile scratch
+	private final long[] scratch = new long[rttWindow];
+
+	public TxGapController(String adapter) {
+		this.adapter = adapter;
+		this.states = new Hashtable<String, protocol_state_t>();
+
+		setProtocol("auto");
+	}
+
+	// @description switch state to negotiated protocol, like ATDPN result
+	public synchronized void setProtocol(String protocol) {
+		this.protocol = protocol;
+
+		this.state = states.get(protocol);
+		if (this.state == null) {
+			this.state = new protocol_state_t();
+			states.put(protocol, this.state);
+		}
+		Log.d(TAG, adapter + " protocol " + protocol + " gap " + state.gap);
+	}
+
+	/**
+	 * @return the protocol
+	 */
+	public synchronized String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * @return the current gap ms
+	 */
+	public synchronized long getGap() {
+		return state.gap;
+	}
+
+	// @description got response in rtt ms, drive gap toward minimum
+	public synchronized void onResponse(long rtt) {
+		if (rtt >= 0) {
+			state.rtts[state.rttIdx] = rtt;
+			state.rttIdx = (state.rttIdx + 1) % rttWindow;
+			if (state.rttCnt < rttWindow)
+				state.rttCnt++;
+		}
+
+		state.okCnt++;
+		state.gap = Math.max(gapMin, state.gap - Math.max(1, state.gap / 8));
+	}
+
+	// @description adapter overrun like BUFFER FULL, STOPPED, back off
+	public synchronized void onOverrun() {
+		state.overrunCnt++;
+		state.gap = Math.min(gapMax, state.gap * 2 + 20);
+		Log.d(TAG, adapter + " overrun, gap " + state.gap);
+	}
+
+	// @description query timeout, back off
+	public synchronized void onTimeout() {
+		state.timeoutCnt++;
+		state.gap = Math.min(gapMax, state.gap * 2 + 20);
+		Log.d(TAG, adapter + " timeout, gap " + state.gap);
+	}
+
+	// @description RTT percentile in ms
+	// @param percentile 0 - 100
+	// @return -1 if no sample
+	public synchronized long getRtt(int percentile) {
+		int n = state.rttCnt;
+
+		if (n == 0) {
+			return -1;
+		}
+
+		System.arraycopy(state.rtts, 0, scratch, 0, n);
+		Arrays.sort(scratch, 0, n);
+
+		int idx = (int) Math.ceil(percentile / 100.0 * n) - 1;
+		return scratch[Math.max(0, Math.min(n - 1, idx))];
+	}
+
+	// @description query timeout from measured RTT, 3 times of p99
+	public long getTimeout() {
+		long p99 = getRtt(99);
+
+		if (p99 < 0) {
+			return timeoutInit;
+		}
+
+		return Math.max(timeoutMin, Math.min(timeoutMax, p99 * 3));
+	}
+
+	// @description estimated queries per second with one command in flight
+	public long getQueryRate() {
+		long p50 = getRtt(50);
+
+		if (p50 < 0) {
+			return 0;
+		}
+
+		return 1000 / Math.max(1, p50 + getGap());
+	}
+
+	@Override
+	public synchronized String toString() {
+		return adapter + " protocol " + protocol + " gap " + state.gap
+				+ "ms ok " + state.okCnt + " overrun " + state.overrunCnt
+				+ " timeout " + state.timeoutCnt;
+	}
+
+}
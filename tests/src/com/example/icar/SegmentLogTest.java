@@ -0,0 +1,279 @@
+/**
+ * @description append, roll and crash recovery tests of SegmentLog
+ */
+package com.example.icar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: a crash is a log left open, its segment stay mapped at full size
+ * with zero filled tail, and its dir lock released as by process death,
+ * then a new log is opened on the same dir.
+ */
+public class SegmentLogTest {
+	private static final int SIZE = 4096;
+	private static final String TRIP = "t1";
+	private static final String VIN = "V";
+	// magic, version, trip and vin with short length
+	private static final int HEAD = 8 + 2 + TRIP.length() + 2 + VIN.length();
+	private static final int RECORD_HEADER = 8;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("segmentlog", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdirs());
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		for (int i = 0; (files != null) && (i < files.length); i++) {
+			files[i].delete();
+		}
+		dir.delete();
+	}
+
+	private static byte[] record(int i, int len) {
+		byte[] b = new byte[len];
+		for (int k = 0; k < len; k++) {
+			b[k] = (byte) (i * 31 + k);
+		}
+		return b;
+	}
+
+	private static List<byte[]> read(File f) {
+		SegmentLog.reader r = SegmentLog.read(f);
+		List<byte[]> records = new ArrayList<byte[]>();
+		ByteBuffer p;
+
+		assertNotNull(r);
+		while ((p = r.next()) != null) {
+			byte[] b = new byte[p.remaining()];
+			p.get(b);
+			records.add(b);
+		}
+		return records;
+	}
+
+	private SegmentLog open() {
+		SegmentLog log = new SegmentLog(dir, TRIP, VIN, SIZE);
+		assertEquals(0, log.open());
+		return log;
+	}
+
+	// @description drop log without close, like process killed
+	private static void crash(SegmentLog log) {
+		log.release();
+	}
+
+	private File segment(long seq) {
+		return new File(dir, String.format("seg-%016x.log", seq));
+	}
+
+	@Test
+	public void appendCloseRead() throws Exception {
+		SegmentLog log = open();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, log.append(record(i, 10 + i), 0, 10 + i));
+		}
+		assertEquals(0, log.close());
+
+		File f = log.takeClosed(0);
+		assertEquals(segment(1), f);
+		assertEquals(HEAD + 10 * RECORD_HEADER + 145, f.length());
+
+		SegmentLog.reader r = SegmentLog.read(f);
+		assertEquals(TRIP, r.getTrip());
+		assertEquals(VIN, r.getVin());
+
+		List<byte[]> records = read(f);
+		assertEquals(10, records.size());
+		for (int i = 0; i < 10; i++) {
+			assertArrayEquals(record(i, 10 + i), records.get(i));
+		}
+		log.release();
+	}
+
+	@Test
+	public void recordAtSegmentBoundary() throws Exception {
+		SegmentLog log = open();
+		int max = SIZE - HEAD - RECORD_HEADER;
+
+		// too large never fit
+		assertEquals(-1, log.append(new byte[max + 1], 0, max + 1));
+		assertEquals(1, log.getDropped());
+
+		// exactly fill first segment, next one roll
+		assertEquals(0, log.append(record(1, max), 0, max));
+		assertEquals(0, log.getRolled());
+		assertEquals(0, log.append(record(2, 1), 0, 1));
+		assertEquals(1, log.getRolled());
+		assertEquals(2, log.getSeq());
+		assertEquals(0, log.close());
+
+		File first = log.takeClosed(0);
+		assertEquals(SIZE, first.length());
+		List<byte[]> records = read(first);
+		assertEquals(1, records.size());
+		assertArrayEquals(record(1, max), records.get(0));
+
+		records = read(log.takeClosed(0));
+		assertEquals(1, records.size());
+		assertArrayEquals(record(2, 1), records.get(0));
+		log.release();
+	}
+
+	@Test
+	public void dirLockedUntilRelease() throws Exception {
+		SegmentLog first = open();
+		assertEquals(0, first.append(record(0, 100), 0, 100));
+
+		// segment of first log is neither recovered nor reused
+		SegmentLog second = new SegmentLog(dir, TRIP, VIN, SIZE);
+		assertEquals(-1, second.open());
+		assertEquals(SIZE, segment(1).length());
+
+		// closed segment still belong to first log until released
+		assertEquals(0, first.close());
+		assertEquals(-1, second.open());
+		assertEquals(segment(1), first.takeClosed(0));
+		first.release();
+
+		assertEquals(0, second.open());
+		assertEquals(2, second.getSeq());
+		assertEquals(segment(1), second.takeClosed(0));
+		assertEquals(1, read(segment(1)).size());
+		second.close();
+		second.release();
+	}
+
+	@Test
+	public void recoverZeroFilledTail() throws Exception {
+		SegmentLog crashed = open();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, crashed.append(record(i, 100), 0, 100));
+		}
+		// no close, segment is still full size
+		crash(crashed);
+		assertEquals(SIZE, segment(1).length());
+
+		SegmentLog log = open();
+		assertEquals(2, log.getSeq());
+		assertEquals(segment(1), log.takeClosed(0));
+		assertEquals(HEAD + 3 * (RECORD_HEADER + 100), segment(1).length());
+		assertEquals(3, read(segment(1)).size());
+		log.close();
+		log.release();
+	}
+
+	@Test
+	public void recoverBadCrcMidSegment() throws Exception {
+		SegmentLog crashed = open();
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, crashed.append(record(i, 100), 0, 100));
+		}
+		crash(crashed);
+
+		// flip a payload byte of second record
+		int second = HEAD + RECORD_HEADER + 100;
+		RandomAccessFile raf = new RandomAccessFile(segment(1), "rw");
+		try {
+			raf.seek(second + RECORD_HEADER + 50);
+			int b = raf.read();
+			raf.seek(second + RECORD_HEADER + 50);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+
+		// records after bad one are not trusted
+		assertEquals(0, SegmentLog.recover(segment(1)));
+		assertEquals(second, segment(1).length());
+		List<byte[]> records = read(segment(1));
+		assertEquals(1, records.size());
+		assertArrayEquals(record(0, 100), records.get(0));
+	}
+
+	@Test
+	public void recoverTornLength() throws Exception {
+		SegmentLog crashed = open();
+		assertEquals(0, crashed.append(record(0, 100), 0, 100));
+		crash(crashed);
+
+		// length of next record written, payload and crc not
+		int next = HEAD + RECORD_HEADER + 100;
+		RandomAccessFile raf = new RandomAccessFile(segment(1), "rw");
+		try {
+			raf.seek(next);
+			raf.writeInt(200);
+		} finally {
+			raf.close();
+		}
+
+		assertEquals(0, SegmentLog.recover(segment(1)));
+		assertEquals(next, segment(1).length());
+		assertEquals(1, read(segment(1)).size());
+
+		// length pointing past end of file
+		raf = new RandomAccessFile(segment(1), "rw");
+		try {
+			raf.seek(next);
+			raf.writeInt(1 << 20);
+			raf.writeInt(0);
+		} finally {
+			raf.close();
+		}
+		assertEquals(0, SegmentLog.recover(segment(1)));
+		assertEquals(next, segment(1).length());
+	}
+
+	@Test
+	public void recoverBrokenHeader() throws Exception {
+		SegmentLog first = open();
+		first.close();
+		first.release();
+		SegmentLog crashed = open();
+		assertEquals(2, crashed.getSeq());
+		crash(crashed);
+
+		// crash while header is written
+		RandomAccessFile raf = new RandomAccessFile(segment(2), "rw");
+		try {
+			raf.setLength(3);
+		} finally {
+			raf.close();
+		}
+
+		SegmentLog log = open();
+		assertFalse(segment(2).exists());
+		assertEquals(segment(1), log.takeClosed(0));
+		assertNull(log.takeClosed(0));
+		// seq is not reused
+		assertEquals(3, log.getSeq());
+		log.close();
+		log.release();
+	}
+
+}
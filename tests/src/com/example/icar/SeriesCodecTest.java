@@ -0,0 +1,215 @@
+/**
+ * @description round trip tests of SeriesCodec
+ */
+package com.example.icar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Copyright (c) 2014 Tom Zhou
+ * @author tomzhou
+ *
+ * notes: every test encode, decode and compare sample by sample; quantized
+ * series use PID 010C, engine RPM, resolution 0.25.
+ */
+public class SeriesCodecTest {
+
+	private static byte[] encode(SeriesCodec.encoder e) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		e.writeTo(out);
+		return out.toByteArray();
+	}
+
+	private static SeriesCodec.decoder decoder(byte[] bytes) {
+		return new SeriesCodec.decoder(new ByteArrayInputStream(bytes));
+	}
+
+	@Test
+	public void timestampsDeltaOfDelta() throws IOException {
+		// regular, jitter, going back in time and big jumps
+		long[] ts = { 1400000000000L, 1400000000100L, 1400000000200L,
+				1400000000299L, 1400000000401L, 1400000000350L, 1400000000350L,
+				1400000999999L, 0L, -5L, 1L << 62, -(1L << 62) };
+		SeriesCodec.encoder e = new SeriesCodec.encoder(0, 0, 0);
+		float[] none = new float[SeriesCodec.MAX_ITEMS];
+
+		for (int i = 0; i < ts.length; i++) {
+			e.append(ts[i], none);
+		}
+		assertEquals(ts.length, e.getCount());
+
+		SeriesCodec.decoder d = decoder(encode(e));
+		assertTrue(d.nextSeries());
+		assertEquals(0, d.getMode());
+		assertEquals(0, d.getPid());
+		assertEquals(0, d.getItems());
+		assertEquals(ts.length, d.getRemaining());
+		for (int i = 0; i < ts.length; i++) {
+			assertTrue(d.next());
+			assertEquals(ts[i], d.getTs());
+		}
+		assertFalse(d.next());
+		assertFalse(d.nextSeries());
+	}
+
+	@Test
+	public void regularSamplingCostOneByte() throws IOException {
+		SeriesCodec.encoder e = new SeriesCodec.encoder(0, 0, 0);
+		float[] none = new float[SeriesCodec.MAX_ITEMS];
+
+		for (int i = 0; i < 1000; i++) {
+			e.append(1400000000000L + i * 100, none);
+		}
+
+		// block header, count, first ts and delta, then one byte per sample
+		assertTrue(encode(e).length < 1000 + 32);
+	}
+
+	@Test
+	public void quantizedValues() throws IOException {
+		// rising, falling and flat RPM, all on 0.25 grid
+		float[] rpm = { 800f, 800.25f, 812.5f, 3500f, 3499.75f, 650f, 0f, 0f,
+				16383.75f, 0.25f };
+		SeriesCodec.encoder e = new SeriesCodec.encoder(0x01, 0x0C, 1);
+
+		for (int i = 0; i < rpm.length; i++) {
+			e.append(1000L * i, new float[] { rpm[i] });
+		}
+
+		SeriesCodec.decoder d = decoder(encode(e));
+		assertTrue(d.nextSeries());
+		assertEquals(0x01, d.getMode());
+		assertEquals(0x0C, d.getPid());
+		assertEquals(1, d.getItems());
+		for (int i = 0; i < rpm.length; i++) {
+			assertTrue(d.next());
+			assertEquals(1000L * i, d.getTs());
+			assertEquals(rpm[i], d.getValue(0), 0f);
+		}
+		assertFalse(d.next());
+	}
+
+	@Test
+	public void quantizedOffGridWithinHalfStep() throws IOException {
+		float[] rpm = { 800.1f, 800.37f, 799.9f, -0.1f };
+		SeriesCodec.encoder e = new SeriesCodec.encoder(0x01, 0x0C, 1);
+
+		for (int i = 0; i < rpm.length; i++) {
+			e.append(i, new float[] { rpm[i] });
+		}
+
+		SeriesCodec.decoder d = decoder(encode(e));
+		assertTrue(d.nextSeries());
+		for (int i = 0; i < rpm.length; i++) {
+			assertTrue(d.next());
+			assertEquals(rpm[i], d.getValue(0), 0.125f + 1e-4f);
+		}
+	}
+
+	@Test
+	public void floatBitsValues() throws IOException {
+		// 2 items are never quantized, float bits delta keep values exact
+		float[][] v = { { 0.5f, -3.1f }, { -0.0f, Float.MAX_VALUE },
+				{ Float.NaN, Float.NEGATIVE_INFINITY }, { 1e-30f, -1e30f },
+				{ 0.5f, -3.1f } };
+		SeriesCodec.encoder e = new SeriesCodec.encoder(0x01, 0x14, 2);
+
+		for (int i = 0; i < v.length; i++) {
+			e.append(10L * i, v[i]);
+		}
+
+		SeriesCodec.decoder d = decoder(encode(e));
+		assertTrue(d.nextSeries());
+		assertEquals(2, d.getItems());
+		for (int i = 0; i < v.length; i++) {
+			assertTrue(d.next());
+			for (int k = 0; k < 2; k++) {
+				assertEquals(Float.floatToRawIntBits(v[i][k]),
+						Float.floatToRawIntBits(d.getValue(k)));
+			}
+		}
+	}
+
+	@Test
+	public void blocksInSequenceAndSkip() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SeriesCodec.encoder a = new SeriesCodec.encoder(0x01, 0x0D, 1);
+		SeriesCodec.encoder empty = new SeriesCodec.encoder(0x01, 0x05, 1);
+		SeriesCodec.encoder b = new SeriesCodec.encoder(0x01, 0x0C, 1);
+
+		for (int i = 0; i < 5; i++) {
+			a.append(i, new float[] { 50 + i });
+			b.append(i, new float[] { 800 + i });
+		}
+		a.writeTo(out);
+		empty.writeTo(out);
+		b.writeTo(out);
+
+		SeriesCodec.decoder d = decoder(out.toByteArray());
+		// read part of first block, rest is skipped
+		assertTrue(d.nextSeries());
+		assertEquals(0x0D, d.getPid());
+		assertTrue(d.next());
+		assertTrue(d.next());
+
+		assertTrue(d.nextSeries());
+		assertEquals(0x05, d.getPid());
+		assertEquals(0, d.getRemaining());
+		assertFalse(d.next());
+
+		assertTrue(d.nextSeries());
+		assertEquals(0x0C, d.getPid());
+		for (int i = 0; i < 5; i++) {
+			assertTrue(d.next());
+			assertEquals(800 + i, d.getValue(0), 0f);
+		}
+		assertFalse(d.nextSeries());
+	}
+
+	@Test
+	public void truncatedBlock() throws IOException {
+		SeriesCodec.encoder e = new SeriesCodec.encoder(0x01, 0x0C, 1);
+		for (int i = 0; i < 10; i++) {
+			e.append(i * 100, new float[] { 800 + i });
+		}
+		byte[] bytes = encode(e);
+
+		SeriesCodec.decoder d = decoder(Arrays.copyOf(bytes, bytes.length - 3));
+		assertTrue(d.nextSeries());
+		try {
+			while (d.next()) {
+				// read until cut
+			}
+			fail("truncated block decoded");
+		} catch (EOFException ex) {
+			// expected
+		}
+	}
+
+	@Test
+	public void badMagic() throws IOException {
+		SeriesCodec.encoder e = new SeriesCodec.encoder(0, 0, 0);
+		e.append(1, new float[SeriesCodec.MAX_ITEMS]);
+		byte[] bytes = encode(e);
+		bytes[0] = 'X';
+
+		try {
+			decoder(bytes).nextSeries();
+			fail("bad block accepted");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+}